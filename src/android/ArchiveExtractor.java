@@ -0,0 +1,519 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts a ZIP or tar.gz archive into a directory in a single sequential pass over the stream, so the archive can
+ * be extracted while it is being downloaded. The archive is hashed on the way. Entries which would be written
+ * outside of the directory fail the extraction; links and special files in tar archives are skipped.
+ *
+ * Files and directories created by a failed or discarded extraction are deleted. Entries which would overwrite an
+ * existing file are extracted next to it and replace it only when the extraction is committed, so a failed
+ * extraction leaves the existing files as they were.
+ *
+ * Does not depend on Android APIs so it can be exercised on a plain JVM.
+ */
+class ArchiveExtractor {
+
+    static final String FORMAT_ZIP = "zip";
+    static final String FORMAT_TAR_GZ = "tar.gz";
+
+    private static final int BUFFER_SIZE = 65536; //64KB
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    interface Listener {
+        /**
+         * Called after each extracted entry. Throwing InterruptedIOException cancels the extraction.
+         */
+        void onEntry(ArchiveExtractor extractor) throws InterruptedIOException;
+    }
+
+    /**
+     * Counts the bytes read from the archive and passes them to the integrity check.
+     */
+    private class SourceInputStream extends FilterInputStream {
+
+        private final IntegrityCheck integrityCheck;
+
+        private SourceInputStream(InputStream in, IntegrityCheck integrityCheck) {
+            super(in);
+            this.integrityCheck = integrityCheck;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead > 0) {
+                archiveBytesRead += bytesRead;
+                if (integrityCheck != null) {
+                    integrityCheck.update(ByteBuffer.wrap(b, off, bytesRead));
+                }
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes have to be hashed too
+            byte[] buf = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int bytesRead = read(buf, 0, buf.length);
+            return Math.max(0, bytesRead);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Data of a single tar entry.
+     */
+    private static class TarEntryInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private TarEntryInputStream(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int bytesRead = super.read(b, off, (int) Math.min(len, remaining));
+            if (bytesRead < 0) {
+                throw new EOFException("Unexpected end of tar entry");
+            }
+            remaining -= bytesRead;
+            return bytesRead;
+        }
+
+        private void skipRemaining(byte[] buf) throws IOException {
+            while (read(buf, 0, buf.length) >= 0) {
+                // the data of the entry is not needed
+            }
+        }
+    }
+
+    private final String format;
+    private final File directory;
+    // files and directories created by the extraction in the order they were created
+    private final ArrayList<File> createdFiles = new ArrayList<>();
+    // file each entry was written to by the extraction, a temporary file if the entry replaces an existing file
+    private final HashMap<File, File> outputFiles = new HashMap<>();
+    private String directoryPath;
+    private volatile String currentEntry;
+    private volatile int entriesExtracted;
+    private volatile long bytesExtracted;
+    private volatile long archiveBytesRead;
+    private boolean isRunning;
+    private volatile boolean isDiscarded;
+
+    private ArchiveExtractor(String format, File directory) {
+        this.format = format;
+        this.directory = directory;
+    }
+
+    /**
+     * @param format 'zip', 'tar.gz' or 'tgz'
+     */
+    static ArchiveExtractor create(String format, File directory) {
+        String name = format.toLowerCase(Locale.US);
+        if (FORMAT_ZIP.equals(name)) {
+            return new ArchiveExtractor(FORMAT_ZIP, directory);
+        }
+        if (FORMAT_TAR_GZ.equals(name) || "tgz".equals(name)) {
+            return new ArchiveExtractor(FORMAT_TAR_GZ, directory);
+        }
+        throw new IllegalArgumentException("Unsupported archive format: " + format);
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return name of the entry extracted last
+     */
+    public String getCurrentEntry() {
+        return currentEntry;
+    }
+
+    public int getEntriesExtracted() {
+        return entriesExtracted;
+    }
+
+    /**
+     * @return uncompressed size of the extracted files
+     */
+    public long getBytesExtracted() {
+        return bytesExtracted;
+    }
+
+    /**
+     * @return number of bytes of the archive read so far
+     */
+    public long getArchiveBytesRead() {
+        return archiveBytesRead;
+    }
+
+    /**
+     * Extracts the archive and reads the stream to the end, so the hash covers all of it. The stream is not closed.
+     * The extracted files are deleted if the extraction fails.
+     *
+     * @param integrityCheck reset and updated with the archive bytes, null if the archive is not hashed
+     */
+    public void extract(InputStream in, IntegrityCheck integrityCheck, Listener listener) throws IOException {
+        synchronized (this) {
+            if (isDiscarded) {
+                throw new InterruptedIOException("Extraction discarded");
+            }
+            isRunning = true;
+        }
+        currentEntry = null;
+        entriesExtracted = 0;
+        bytesExtracted = 0;
+        archiveBytesRead = 0;
+
+        boolean isSucceeded = false;
+        try {
+            if (integrityCheck != null) {
+                integrityCheck.reset();
+            }
+            InputStream source = new SourceInputStream(in, integrityCheck);
+            byte[] buf = new byte[BUFFER_SIZE];
+
+            makeDirectories(directory);
+            directoryPath = directory.getCanonicalPath();
+            if (FORMAT_ZIP.equals(format)) {
+                extractZip(source, buf, listener);
+            } else {
+                extractTarGz(source, buf, listener);
+            }
+
+            while (source.read(buf, 0, buf.length) >= 0) {
+                // trailing data such as the ZIP central directory
+            }
+            isSucceeded = true;
+        } finally {
+            boolean shouldDelete;
+            synchronized (this) {
+                isRunning = false;
+                shouldDelete = !isSucceeded || isDiscarded;
+            }
+            if (shouldDelete) {
+                deleteCreatedFiles();
+            }
+        }
+        if (isDiscarded) {
+            throw new InterruptedIOException("Extraction discarded");
+        }
+    }
+
+    /**
+     * Replaces the existing files overwritten by the archive with the extracted ones. Called once the extraction
+     * has succeeded and the archive has been verified.
+     */
+    public synchronized void commit() throws IOException {
+        if (isDiscarded) {
+            throw new InterruptedIOException("Extraction discarded");
+        }
+        for (Map.Entry<File, File> entry : outputFiles.entrySet()) {
+            File target = entry.getKey();
+            File output = entry.getValue();
+            if (!output.equals(target) && !output.renameTo(target)) {
+                throw new IOException("Cannot replace " + target);
+            }
+        }
+        outputFiles.clear();
+    }
+
+    /**
+     * Stops the extraction and deletes the extracted files, the running extraction deletes them once it stops.
+     */
+    public void discard() {
+        synchronized (this) {
+            isDiscarded = true;
+            if (isRunning) {
+                return;
+            }
+        }
+        deleteCreatedFiles();
+    }
+
+    private void extractZip(InputStream in, byte[] buf, Listener listener) throws IOException {
+        // not closed, it would close the source stream which still has to be read to the end
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            extractEntry(entry.getName(), entry.isDirectory(), zip, buf, listener);
+        }
+    }
+
+    private void extractTarGz(InputStream in, byte[] buf, Listener listener) throws IOException {
+        InputStream tar = new GZIPInputStream(in, BUFFER_SIZE);
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        // name of the next entry set by GNU long name or pax extended header
+        String nextName = null;
+        while (readBlock(tar, header) && !isZeroBlock(header)) {
+            String name = nextName != null ? nextName : getTarName(header);
+            nextName = null;
+            long size = parseTarNumber(header, 124, 12);
+            TarEntryInputStream data = new TarEntryInputStream(tar, size);
+
+            switch (header[156]) {
+                case 0:
+                case '0':
+                case '7':
+                    extractEntry(name, false, data, buf, listener);
+                    break;
+                case '5':
+                    extractEntry(name, true, data, buf, listener);
+                    break;
+                case 'L':
+                    nextName = trimName(new String(readEntry(data, size), UTF_8));
+                    break;
+                case 'x':
+                    nextName = getPaxPath(new String(readEntry(data, size), UTF_8));
+                    break;
+                default:
+                    // links, devices and global pax headers
+                    break;
+            }
+
+            data.skipRemaining(buf);
+            long padding = (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+            new TarEntryInputStream(tar, padding).skipRemaining(buf);
+        }
+    }
+
+    private void extractEntry(String name, boolean isDirectory, InputStream data, byte[] buf, Listener listener)
+            throws IOException {
+        currentEntry = name;
+        File target = resolve(name);
+        if (isDirectory) {
+            makeDirectories(target);
+        } else {
+            makeDirectories(target.getParentFile());
+            FileOutputStream out = new FileOutputStream(getOutputFile(target));
+            try {
+                int bytesRead;
+                while ((bytesRead = data.read(buf, 0, buf.length)) >= 0) {
+                    if (isDiscarded) {
+                        throw new InterruptedIOException("Extraction discarded");
+                    }
+                    out.write(buf, 0, bytesRead);
+                    bytesExtracted += bytesRead;
+                }
+            } finally {
+                out.close();
+            }
+        }
+        entriesExtracted++;
+        listener.onEntry(this);
+    }
+
+    /**
+     * Rejects entries such as '../../file' which would be written outside of the directory (zip slip).
+     */
+    private File resolve(String name) throws IOException {
+        File target = new File(directory, name);
+        String path = target.getCanonicalPath();
+        if (!path.equals(directoryPath) && !path.startsWith(directoryPath + File.separator)) {
+            throw new IOException("Archive entry is outside of the target directory: " + name);
+        }
+        return target;
+    }
+
+    /**
+     * @return file the entry is written to, existing files are not overwritten until the extraction is committed
+     */
+    private File getOutputFile(File target) {
+        File output = outputFiles.get(target);
+        if (output == null) {
+            output = target.isFile() ? new File(target.getParentFile(), target.getName() + ".extracting") : target;
+            outputFiles.put(target, output);
+            createdFiles.add(output);
+        }
+        return output;
+    }
+
+    private void makeDirectories(File dir) throws IOException {
+        if (dir.isDirectory()) {
+            return;
+        }
+        File parent = dir.getParentFile();
+        if (parent != null) {
+            makeDirectories(parent);
+        }
+        if (!dir.mkdir() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        createdFiles.add(dir);
+    }
+
+    private synchronized void deleteCreatedFiles() {
+        // contents first, directories were created before them
+        for (int i = createdFiles.size() - 1; i >= 0; i--) {
+            createdFiles.get(i).delete();
+        }
+        createdFiles.clear();
+        outputFiles.clear();
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int bytesRead = in.read(block, offset, block.length - offset);
+            if (bytesRead < 0) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            offset += bytesRead;
+        }
+        return true;
+    }
+
+    private static byte[] readEntry(TarEntryInputStream data, long size) throws IOException {
+        if (size > BUFFER_SIZE) {
+            throw new IOException("Tar header is too long");
+        }
+        byte[] content = new byte[(int) size];
+        int offset = 0;
+        int bytesRead;
+        while (offset < content.length && (bytesRead = data.read(content, offset, content.length - offset)) >= 0) {
+            offset += bytesRead;
+        }
+        return content;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return name of the entry, prefixed with the ustar prefix field if there is one
+     */
+    private static String getTarName(byte[] header) {
+        String name = getTarString(header, 0, 100);
+        if ("ustar".equals(getTarString(header, 257, 6).trim())) {
+            String prefix = getTarString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static String getTarString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, UTF_8);
+    }
+
+    /**
+     * Parses octal number or base-256 number used by GNU tar for big files.
+     */
+    private static long parseTarNumber(byte[] header, int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+
+        String octal = getTarString(header, offset, length).trim();
+        if (octal.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(octal, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid tar header");
+        }
+    }
+
+    /**
+     * @return path from pax extended header records "length path=value\n" or null if there is none
+     */
+    private static String getPaxPath(String records) {
+        for (String record : records.split("\n")) {
+            int idx = record.indexOf(' ');
+            if (idx >= 0 && record.startsWith("path=", idx + 1)) {
+                return record.substring(idx + 1 + "path=".length());
+            }
+        }
+        return null;
+    }
+
+    private static String trimName(String name) {
+        int end = name.indexOf(0);
+        return end < 0 ? name : name.substring(0, end);
+    }
+}
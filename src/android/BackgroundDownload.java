@@ -20,18 +20,38 @@ package org.apache.cordova.backgroundDownload;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
@@ -42,19 +62,27 @@ import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import android.Manifest;
 import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 import android.util.SparseArray;
 
 /**
  * Based on DownloadManager which is intended to be used for long-running HTTP downloads. Support of Android 2.3. (API 9) and later
- * http://developer.android.com/reference/android/app/DownloadManager.html TODO: concurrent downloads support
+ * http://developer.android.com/reference/android/app/DownloadManager.html
+ * Concurrent downloads are queued by DownloadScheduler which limits the number of downloads running at the same time.
  */
 
 public class BackgroundDownload extends CordovaPlugin {
@@ -63,32 +91,365 @@ public class BackgroundDownload extends CordovaPlugin {
 
     private static final int ERROR_CANCELED = Integer.MAX_VALUE;
 
+    private static final int ERROR_HASH_MISMATCH = Integer.MAX_VALUE - 1;
+
+    private static final int ERROR_EXTRACTION_FAILED = Integer.MAX_VALUE - 2;
+
     private static final long DOWNLOAD_ID_UNDEFINED = -1;
+
+    private static final String ENGINE_DOWNLOAD_MANAGER = "downloadManager";
+    private static final String ENGINE_SEGMENTED = "segmented";
+    private static final int DEFAULT_SEGMENTS = 4;
     private static final long DOWNLOAD_PROGRESS_UPDATE_TIMEOUT = 500;
-    private static final int BUFFER_SIZE = 16777216; //16MB
+    // polling interval used as a safety net when progress is driven by DownloadManager events
+    private static final long DOWNLOAD_PROGRESS_FALLBACK_TIMEOUT = 10000;
+    private static final Uri DOWNLOADS_CONTENT_URI = Uri.parse("content://downloads/my_downloads");
+    private static final String PREFERENCE_EVENT_DRIVEN_PROGRESS = "BackgroundDownloadEventDrivenProgress";
+    private static final String PREFERENCE_MAX_CONCURRENT_DOWNLOADS = "BackgroundDownloadMaxConcurrentDownloads";
+    private static final String PREFERENCE_MAX_CONCURRENT_DOWNLOADS_PER_HOST = "BackgroundDownloadMaxConcurrentDownloadsPerHost";
+    // size limit of the download cache in megabytes
+    private static final String PREFERENCE_CACHE_SIZE = "BackgroundDownloadCacheSize";
+    // downloads finalized at the same time, each of them may copy and hash a multi-GB file
+    private static final int MAX_CONCURRENT_FINALIZATIONS = 2;
+    // idle threads of the executors stop after this time
+    private static final long THREAD_KEEP_ALIVE = 30000;
+    // in-process transfers running at the same time, the others wait for a thread; archives of the running ones are
+    // extracted at the same time
+    private static final int MAX_CONCURRENT_TRANSFERS = 8;
+    // threads of the additional segments shared by all transfers, the transfer thread downloads the rest itself
+    private static final int MAX_SEGMENT_THREADS = 16;
+    // number of completed downloads whose stats are kept for getStats
+    private static final int RECENT_STATS_SIZE = 20;
+
+    // plugin wide counters reported by getStats
+    private static final AtomicLong progressPollCount = new AtomicLong();
+    private static final AtomicLong downloadManagerQueryCount = new AtomicLong();
+    private static final AtomicLong bridgeMessageCount = new AtomicLong();
 
     private static class PermissionsRequest {
 
+        private final String action;
         private final JSONArray rawArgs;
         private final CallbackContext callbackContext;
 
-        private PermissionsRequest(JSONArray rawArgs, CallbackContext callbackContext) {
+        private PermissionsRequest(String action, JSONArray rawArgs, CallbackContext callbackContext) {
+            this.action = action;
             this.rawArgs = rawArgs;
             this.callbackContext = callbackContext;
         }
     }
 
+    /**
+     * @param isQueued true if the tasks above the limit wait for a thread, false if they are rejected
+     * @return executor whose threads are started on demand and stop when idle
+     */
+    private static ThreadPoolExecutor createExecutor(int maxThreads, boolean isQueued, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(isQueued ? maxThreads : 0, maxThreads, THREAD_KEEP_ALIVE,
+                TimeUnit.MILLISECONDS,
+                isQueued ? new LinkedBlockingQueue<Runnable>() : new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        return new Thread(task, name + "-" + count.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Delivers results of the downloads started together through the single callback of the batch. Every result is
+     * tagged with the uri and the index of the download in the batch, the same uri can be downloaded to several
+     * files; the batch callback is released when all downloads are completed.
+     */
+    private static class DownloadBatch {
+
+        private final CallbackContext callbackContext;
+        private int pendingItems;
+
+        private DownloadBatch(CallbackContext callbackContext, int items) {
+            this.callbackContext = callbackContext;
+            this.pendingItems = items;
+        }
+
+        public CallbackContext createItemCallbackContext(final String uriString, final int index) {
+            return new CallbackContext(callbackContext.getCallbackId(), null) {
+
+                private boolean isFinished;
+
+                @Override
+                public boolean isFinished() {
+                    return isFinished;
+                }
+
+                @Override
+                public void sendPluginResult(PluginResult pluginResult) {
+                    synchronized (this) {
+                        if (isFinished) {
+                            return;
+                        }
+                        isFinished = !pluginResult.getKeepCallback();
+                    }
+                    sendItemResult(uriString, index, pluginResult);
+                }
+            };
+        }
+
+        private synchronized void sendItemResult(String uriString, int index, PluginResult itemResult) {
+            try {
+                Object message = null;
+                if (itemResult.getMessageType() == PluginResult.MESSAGE_TYPE_JSON) {
+                    message = new JSONTokener(itemResult.getMessage()).nextValue();
+                } else if (itemResult.getMessageType() == PluginResult.MESSAGE_TYPE_STRING) {
+                    message = itemResult.getStrMessage();
+                }
+
+                JSONObject obj = new JSONObject();
+                obj.put("uri", uriString);
+                obj.put("index", index);
+                if (itemResult.getStatus() != PluginResult.Status.OK.ordinal()) {
+                    obj.put("error", message);
+                } else if (itemResult.getKeepCallback()) {
+                    obj.put("progress", message instanceof JSONObject && ((JSONObject) message).has("progress")
+                            ? ((JSONObject) message).get("progress") : message);
+                } else {
+                    obj.put("completed", true);
+                }
+
+                PluginResult result = new PluginResult(PluginResult.Status.OK, obj);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+
+            if (!itemResult.getKeepCallback() && --pendingItems == 0) {
+                try {
+                    JSONObject obj = new JSONObject();
+                    obj.put("batchCompleted", true);
+                    callbackContext.success(obj);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Limits the number of downloads handed over to DownloadManager at the same time, globally and per host.
+     * Downloads above the limits wait in the queue and are started in order of priority, then in the order they were
+     * queued. Limit of 0 means no limit. Downloads whose network policy is not met are held in the queue, low priority
+     * ones also until the device is on an unmetered network or charging if holdLowPriority is set.
+     */
+    private static class DownloadScheduler {
+
+        private static final Comparator<Download> QUEUE_ORDER = new Comparator<Download>() {
+            @Override
+            public int compare(Download lhs, Download rhs) {
+                if (lhs.getPriority() != rhs.getPriority()) {
+                    return lhs.getPriority() > rhs.getPriority() ? -1 : 1;
+                }
+                return lhs.getQueueSequence() < rhs.getQueueSequence() ? -1
+                        : (lhs.getQueueSequence() == rhs.getQueueSequence() ? 0 : 1);
+            }
+        };
+
+        private int maxConcurrentDownloads;
+        private int maxConcurrentDownloadsPerHost;
+        private boolean isLowPriorityHeld;
+        private final HashMap<String, Integer> hostLimits = new HashMap<>();
+        private final ArrayList<Download> queue = new ArrayList<>();
+        private long queueSequence;
+
+        public void configure(JSONObject options) throws JSONException {
+            maxConcurrentDownloads = options.optInt("maxConcurrentDownloads", maxConcurrentDownloads);
+            maxConcurrentDownloadsPerHost = options.optInt("maxConcurrentDownloadsPerHost", maxConcurrentDownloadsPerHost);
+            isLowPriorityHeld = options.optBoolean("holdLowPriority", isLowPriorityHeld);
+
+            JSONObject limits = options.optJSONObject("hostLimits");
+            if (limits != null) {
+                hostLimits.clear();
+                JSONArray hosts = limits.names();
+                for (int i = 0; hosts != null && i < hosts.length(); i++) {
+                    String host = hosts.getString(i);
+                    hostLimits.put(host, limits.getInt(host));
+                }
+            }
+        }
+
+        public void add(Download download) {
+            download.setQueueSequence(queueSequence++);
+            queue.add(download);
+        }
+
+        public boolean remove(Download download) {
+            return queue.remove(download);
+        }
+
+        public boolean isQueued(Download download) {
+            return queue.contains(download);
+        }
+
+        /**
+         * @return the next download to start or null if there is none or the limits are reached
+         */
+        public Download next(Collection<Download> activeDownloads, NetworkPolicy.DeviceState deviceState) {
+            if (queue.isEmpty()) {
+                return null;
+            }
+
+            int running = 0;
+            HashMap<String, Integer> runningPerHost = new HashMap<>();
+            for (Download download : activeDownloads) {
+                if (download.isStarted() && !download.isFinalizing()) {
+                    running++;
+                    Integer count = runningPerHost.get(download.getHost());
+                    runningPerHost.put(download.getHost(), count == null ? 1 : count + 1);
+                }
+            }
+
+            if (maxConcurrentDownloads > 0 && running >= maxConcurrentDownloads) {
+                return null;
+            }
+
+            Download next = null;
+            for (Download download : queue) {
+                int hostLimit = getHostLimit(download.getHost());
+                Integer hostRunning = runningPerHost.get(download.getHost());
+                if (hostLimit > 0 && hostRunning != null && hostRunning >= hostLimit) {
+                    continue;
+                }
+                if (!getWaitingFor(download, deviceState).isEmpty()) {
+                    continue;
+                }
+                if (next == null || QUEUE_ORDER.compare(download, next) < 0) {
+                    next = download;
+                }
+            }
+
+            if (next != null) {
+                queue.remove(next);
+            }
+            return next;
+        }
+
+        /**
+         * @return constraints the download waits for before it can be started, empty if there are none
+         */
+        public List<String> getWaitingFor(Download download, NetworkPolicy.DeviceState deviceState) {
+            List<String> constraints = download.getNetworkPolicy().getUnmetConstraints(deviceState,
+                    !download.isInProcess());
+            if (isLowPriorityHeld && download.getPriority() < 0 && deviceState.isMetered()
+                    && !deviceState.isCharging()) {
+                constraints.add(NetworkPolicy.CONSTRAINT_UNMETERED_OR_CHARGING);
+            }
+            return constraints;
+        }
+
+        public JSONObject toJSON(Collection<Download> activeDownloads, NetworkPolicy.DeviceState deviceState)
+                throws JSONException {
+            JSONArray running = new JSONArray();
+            for (Download download : activeDownloads) {
+                if (download.isStarted()) {
+                    running.put(toJSON(download).put("finalizing", download.isFinalizing()));
+                }
+            }
+
+            ArrayList<Download> queued = new ArrayList<>(queue);
+            Collections.sort(queued, QUEUE_ORDER);
+            JSONArray jsonQueued = new JSONArray();
+            for (Download download : queued) {
+                List<String> waitingFor = getWaitingFor(download, deviceState);
+                JSONObject jsonDownload = toJSON(download);
+                if (!waitingFor.isEmpty()) {
+                    jsonDownload.put("waitingFor", new JSONArray(waitingFor));
+                }
+                jsonQueued.put(jsonDownload);
+            }
+
+            JSONObject obj = new JSONObject();
+            obj.put("maxConcurrentDownloads", maxConcurrentDownloads);
+            obj.put("maxConcurrentDownloadsPerHost", maxConcurrentDownloadsPerHost);
+            obj.put("holdLowPriority", isLowPriorityHeld);
+            obj.put("running", running);
+            obj.put("queued", jsonQueued);
+            return obj;
+        }
+
+        private int getHostLimit(String host) {
+            Integer limit = hostLimits.get(host);
+            return limit != null ? limit : maxConcurrentDownloadsPerHost;
+        }
+
+        private static JSONObject toJSON(Download download) throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("uri", download.getUriString());
+            obj.put("host", download.getHost());
+            obj.put("priority", download.getPriority());
+            return obj;
+        }
+    }
+
     private static class Download {
 
-        private Uri targetFileUri;
+        static final int STATE_QUEUED = 0;
+        static final int STATE_RUNNING = 1;
+        static final int STATE_PAUSED = 2;
+        static final int STATE_FINALIZING = 3;
+        static final int STATE_COMPLETED = 4;
+        static final int STATE_WAITING_TO_RETRY = 5;
+
+        // the result file and the callback move to a subscriber if the request is stopped, see handOver
+        private volatile Uri targetFileUri;
         private Uri tempFileUri;
         private String notificationTitle;
-        private String uriMatcher;
-        private String uriString;
-        private CallbackContext callbackContext; // The callback context from which we were invoked.
-        private long downloadId = DOWNLOAD_ID_UNDEFINED;
-        private Timer timerProgressUpdate = null;
-        private boolean isCanceled;
+        private volatile String uriMatcher;
+        private volatile String uriString;
+        private volatile CallbackContext callbackContext; // The callback context from which we were invoked.
+        // nothing is sent to the callback after its final result
+        private boolean isResultSent;
+        private volatile ProgressFilter progressFilter;
+        private final DownloadStats stats = new DownloadStats(System.currentTimeMillis());
+        private boolean isStatsReported;
+        private String host;
+        private int priority;
+        private long queueSequence; // order in which the download was queued
+        private String engine = ENGINE_DOWNLOAD_MANAGER;
+        private int segments = DEFAULT_SEGMENTS;
+        private volatile SegmentedDownload transfer;
+        private SegmentedDownload.ResumeState resumeState;
+        private IntegrityCheck integrityCheck;
+        private NetworkPolicy networkPolicy = NetworkPolicy.DEFAULT;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        // number of the current attempt, starting from 1
+        private volatile int attempt = 1;
+        // rate limit of the in-process transfer in bytes per second, 0 if only the global limit applies
+        private long maxBytesPerSecond;
+        private double bandwidthWeight = 1;
+        private boolean isCacheEnabled;
+        private String cacheKey;
+        // extracts the archive into the target directory instead of saving it as the target file
+        private ArchiveExtractor extractor;
+        // extraction running during the in-process transfer
+        private Future<?> extraction;
+        // requests for the same file which share the transfer of this download
+        private final ArrayList<Download> subscribers = new ArrayList<>();
+        private volatile long downloadId = DOWNLOAD_ID_UNDEFINED;
+        private volatile boolean isCanceled;
+        // stopped while it was finalized for its subscribers, its own result has been reported already
+        private volatile boolean isDetached;
+        // pause of the running transfer is requested and it has not stopped yet, changed under the plugin lock
+        private boolean isPauseRequested;
+        // the bridge, the timer, the transfers and the finalization race for the transitions, so they are atomic:
+        // queued -> running -> finalizing -> completed, running <-> paused via queued,
+        // running -> waiting to retry -> queued, any state -> completed
+        private final AtomicInteger state = new AtomicInteger(STATE_QUEUED);
+        // last state sent over the aggregated progress channel: status, bytes received, total bytes
+        private final long[] aggregatedSnapshot = new long[] { -1, -1, -1 };
+        // last known progress, kept for the aggregated progress while the download is finalized and for its result
+        private volatile long lastBytesReceived;
+        private volatile long lastTotalBytes = -1;
 
         public static Download create(JSONArray args, CallbackContext callbackContext) throws JSONException  {
             String uriMatcher = null;
@@ -101,18 +462,59 @@ public class BackgroundDownload extends CordovaPlugin {
                 notificationTitle = args.getString(3);
             }
 
-            return new Download(args.get(0).toString(), args.get(1).toString(), notificationTitle, uriMatcher,
-                    callbackContext);
+            JSONObject progressOptions = args.optJSONObject(4);
+            ProgressFilter progressFilter = ProgressFilter.create(progressOptions);
+
+            Download download = new Download(args.get(0).toString(), args.get(1).toString(), notificationTitle,
+                    uriMatcher, progressFilter, callbackContext);
+            download.setStatsReported(progressOptions != null && progressOptions.optBoolean("includeStats", false));
+
+            JSONObject options = args.optJSONObject(5);
+            if (options != null) {
+                download.setPriority(options.optInt("priority", 0));
+                download.setEngine(options.optString("engine", ENGINE_DOWNLOAD_MANAGER), options.optInt("segments", DEFAULT_SEGMENTS));
+                download.setNetworkPolicy(NetworkPolicy.create(options));
+                download.setRetryPolicy(RetryPolicy.create(options.optJSONObject("retry")));
+                download.setBandwidth(options.optLong("maxBytesPerSecond", 0), options.optDouble("bandwidthWeight", 1));
+
+                String extractFormat = options.optString("extract", null);
+                if (extractFormat != null && !"".equals(extractFormat)) {
+                    try {
+                        download.setExtractor(ArchiveExtractor.create(extractFormat,
+                                new File(download.getTargetFileUri().getPath())));
+                    } catch (IllegalArgumentException e) {
+                        throw new JSONException(e.getMessage());
+                    }
+                } else if (options.optBoolean("cache", false) || options.has("cacheKey")) {
+                    // extracted files are not cached
+                    download.enableCache(options.optString("cacheKey", null));
+                }
+
+                String expectedHash = options.optString("expectedHash", null);
+                if (expectedHash != null && !"".equals(expectedHash)) {
+                    String hashAlgorithm = options.optString("hashAlgorithm", null);
+                    try {
+                        download.setIntegrityCheck(IntegrityCheck.create(hashAlgorithm, expectedHash));
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new JSONException("Unsupported hash algorithm: " + hashAlgorithm);
+                    }
+                }
+            }
+
+            return download;
         }
 
         public Download(String uriString, String targetFileUri, String notificationTitle,
-                String uriMatcher, CallbackContext callbackContext) {
+                String uriMatcher, ProgressFilter progressFilter, CallbackContext callbackContext) {
             this.uriString = uriString;
+            this.host = Uri.parse(uriString).getHost();
+            if (this.host == null) {
+                this.host = "";
+            }
             this.setTargetFileUri(targetFileUri);
             this.notificationTitle = notificationTitle;
             this.uriMatcher = uriMatcher;
-            this.setTempFileUri(Uri.fromFile(new File(android.os.Environment.getExternalStorageDirectory().getPath(),
-                    Uri.parse(targetFileUri).getLastPathSegment() + "." + System.currentTimeMillis())).toString());
+            this.progressFilter = progressFilter;
             this.callbackContext = callbackContext;
         }
 
@@ -128,6 +530,26 @@ public class BackgroundDownload extends CordovaPlugin {
             return uriString;
         }
 
+        public String getHost() {
+            return host;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+
+        public long getQueueSequence() {
+            return queueSequence;
+        }
+
+        public void setQueueSequence(long queueSequence) {
+            this.queueSequence = queueSequence;
+        }
+
         public String getNotificationTitle() {
             return this.notificationTitle;
         }
@@ -148,6 +570,375 @@ public class BackgroundDownload extends CordovaPlugin {
             return callbackContext;
         }
 
+        public ProgressFilter getProgressFilter() {
+            return progressFilter;
+        }
+
+        public DownloadStats getStats() {
+            return stats;
+        }
+
+        /**
+         * @return true if the stats are added to the progress notifications and the result of the download
+         */
+        public boolean isStatsReported() {
+            return isStatsReported;
+        }
+
+        public void setStatsReported(boolean isStatsReported) {
+            this.isStatsReported = isStatsReported;
+        }
+
+        /**
+         * Remembers the state sent over the aggregated progress channel.
+         *
+         * @return false if the state is the same as the previously sent one
+         */
+        public synchronized boolean updateAggregatedSnapshot(int status, long bytesDownloaded, long bytesTotal) {
+            if (aggregatedSnapshot[0] == status && aggregatedSnapshot[1] == bytesDownloaded
+                    && aggregatedSnapshot[2] == bytesTotal) {
+                return false;
+            }
+            aggregatedSnapshot[0] = status;
+            aggregatedSnapshot[1] = bytesDownloaded;
+            aggregatedSnapshot[2] = bytesTotal;
+            return true;
+        }
+
+        public void setLastProgress(long bytesReceived, long totalBytes) {
+            lastBytesReceived = bytesReceived;
+            lastTotalBytes = totalBytes;
+        }
+
+        public long getLastBytesReceived() {
+            return lastBytesReceived;
+        }
+
+        public long getLastTotalBytes() {
+            return lastTotalBytes;
+        }
+
+        public String getEngine() {
+            return engine;
+        }
+
+        public boolean isInProcess() {
+            return ENGINE_SEGMENTED.equals(engine);
+        }
+
+        public void setEngine(String engine, int segments) {
+            this.engine = engine;
+            this.segments = segments;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        public long getMaxBytesPerSecond() {
+            return maxBytesPerSecond;
+        }
+
+        public double getBandwidthWeight() {
+            return bandwidthWeight;
+        }
+
+        public void setBandwidth(long maxBytesPerSecond, double bandwidthWeight) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            this.bandwidthWeight = bandwidthWeight;
+        }
+
+        public RetryPolicy getRetryPolicy() {
+            return retryPolicy;
+        }
+
+        public void setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public void setAttempt(int attempt) {
+            this.attempt = attempt;
+        }
+
+        public NetworkPolicy getNetworkPolicy() {
+            return networkPolicy;
+        }
+
+        public void setNetworkPolicy(NetworkPolicy networkPolicy) {
+            this.networkPolicy = networkPolicy;
+        }
+
+        public IntegrityCheck getIntegrityCheck() {
+            return integrityCheck;
+        }
+
+        public void setIntegrityCheck(IntegrityCheck integrityCheck) {
+            this.integrityCheck = integrityCheck;
+        }
+
+        public ArchiveExtractor getExtractor() {
+            return extractor;
+        }
+
+        public void setExtractor(ArchiveExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        public Future<?> getExtraction() {
+            return extraction;
+        }
+
+        public void setExtraction(Future<?> extraction) {
+            this.extraction = extraction;
+        }
+
+        /**
+         * @return true if both downloads save the file the same way, so one of them can share the transfer of the other
+         */
+        public boolean isSameResult(Download download) {
+            if (extractor == null || download.extractor == null) {
+                return extractor == download.extractor;
+            }
+            return extractor.getFormat().equals(download.extractor.getFormat())
+                    && extractor.getDirectory().equals(download.extractor.getDirectory());
+        }
+
+        /**
+         * @param cacheKey key of the file in the cache, if null the key is chosen by resolveCacheKey
+         */
+        public void enableCache(String cacheKey) {
+            this.isCacheEnabled = true;
+            this.cacheKey = cacheKey != null ? "key:" + cacheKey : null;
+        }
+
+        /**
+         * Chooses the cache key unless it was set explicitly: content hash if the expected hash is known, then the
+         * part of the uri selected by uriMatcher, then the uri itself.
+         */
+        public void resolveCacheKey(String matcherKey) {
+            if (!isCacheEnabled || cacheKey != null) {
+                return;
+            }
+            if (integrityCheck != null) {
+                cacheKey = "hash:" + integrityCheck.getAlgorithm() + ":" + integrityCheck.getExpectedHash();
+            } else if (matcherKey != null) {
+                cacheKey = "match:" + matcherKey;
+            } else {
+                cacheKey = "uri:" + uriString;
+            }
+        }
+
+        /**
+         * @return key of the file in the download cache or null if the download is not cached
+         */
+        public String getCacheKey() {
+            return isCacheEnabled ? cacheKey : null;
+        }
+
+        /**
+         * Attaches a request for the same file, it shares the transfer of this download and gets its own
+         * notifications.
+         *
+         * @return false if the download has already completed
+         */
+        public synchronized boolean addSubscriber(Download subscriber) {
+            if (isCompleted()) {
+                return false;
+            }
+            subscribers.add(subscriber);
+            return true;
+        }
+
+        /**
+         * @param targetFileUri result file of the subscriber, null for any subscriber of the uri
+         */
+        public synchronized Download removeSubscriber(String uriString, String targetFileUri) {
+            for (Iterator<Download> it = subscribers.iterator(); it.hasNext(); ) {
+                Download subscriber = it.next();
+                if (subscriber.getUriString().equals(uriString)
+                        && (targetFileUri == null || subscriber.hasTargetFile(targetFileUri))) {
+                    it.remove();
+                    return subscriber;
+                }
+            }
+            return null;
+        }
+
+        public boolean hasTargetFile(String targetFileUri) {
+            return targetFileUri.equals(this.targetFileUri.toString())
+                    || Uri.parse(targetFileUri).getPath().equals(this.targetFileUri.getPath());
+        }
+
+        /**
+         * Lets a subscriber take over the transfer when this request is stopped. The transfer is kept, the uri, the
+         * result file, the callback and the notification settings of the subscriber are swapped in and the
+         * subscriber is detached with the ones of the stopped request. The file of a finalizing download is already
+         * being placed, so the request is only detached from its result then.
+         *
+         * @return the stopped request, which has to be reported as canceled, or null if there is no subscriber
+         */
+        public synchronized Download handOver() {
+            if (subscribers.isEmpty() || isCompleted() || isDetached) {
+                return null;
+            }
+            if (isFinalizing()) {
+                isDetached = true;
+                return new Download(uriString, targetFileUri.toString(), notificationTitle, uriMatcher,
+                        progressFilter, callbackContext);
+            }
+
+            // a request for the same uri is preferred, the others share the file by its cache key
+            int index = 0;
+            for (int i = 0; i < subscribers.size(); i++) {
+                if (subscribers.get(i).uriString.equals(uriString)) {
+                    index = i;
+                    break;
+                }
+            }
+            Download stopped = subscribers.remove(index);
+            String uriString = this.uriString;
+            this.uriString = stopped.uriString;
+            stopped.uriString = uriString;
+            String uriMatcher = this.uriMatcher;
+            this.uriMatcher = stopped.uriMatcher;
+            stopped.uriMatcher = uriMatcher;
+            Uri targetFileUri = this.targetFileUri;
+            this.targetFileUri = stopped.targetFileUri;
+            stopped.targetFileUri = targetFileUri;
+            CallbackContext callbackContext = this.callbackContext;
+            this.callbackContext = stopped.callbackContext;
+            stopped.callbackContext = callbackContext;
+            ProgressFilter progressFilter = this.progressFilter;
+            this.progressFilter = stopped.progressFilter;
+            stopped.progressFilter = progressFilter;
+            boolean isStatsReported = this.isStatsReported;
+            this.isStatsReported = stopped.isStatsReported;
+            stopped.isStatsReported = isStatsReported;
+            if (extractor == null) {
+                // an archive is hashed while it is extracted, a file only when it is placed
+                IntegrityCheck integrityCheck = this.integrityCheck;
+                this.integrityCheck = stopped.integrityCheck;
+                stopped.integrityCheck = integrityCheck;
+            }
+            return stopped;
+        }
+
+        /**
+         * @return true if the request was stopped while the file was finalized, the file is placed for the
+         * subscribers only
+         */
+        public boolean isDetached() {
+            return isDetached;
+        }
+
+        public synchronized List<Download> getSubscribers() {
+            return new ArrayList<>(subscribers);
+        }
+
+        /**
+         * Marks the download as completed, no more subscribers can be attached.
+         *
+         * @return false if the download was already completed, so its result has been or will be reported elsewhere
+         */
+        public synchronized boolean complete() {
+            return state.getAndSet(STATE_COMPLETED) != STATE_COMPLETED;
+        }
+
+        public boolean isCompleted() {
+            return state.get() == STATE_COMPLETED;
+        }
+
+        /**
+         * @return false if the download is not in the expected state
+         */
+        public boolean changeState(int expectedState, int newState) {
+            return state.compareAndSet(expectedState, newState);
+        }
+
+        /**
+         * Completion is reported both by the transfer and by the progress updates, the download is finalized once.
+         *
+         * @return false if the download is already finalizing or completed
+         */
+        public synchronized boolean startFinalizing() {
+            while (true) {
+                int currentState = state.get();
+                if (currentState == STATE_FINALIZING || currentState == STATE_COMPLETED) {
+                    return false;
+                }
+                if (state.compareAndSet(currentState, STATE_FINALIZING)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Sends the result to the download and all its subscribers.
+         */
+        public void sendPluginResult(PluginResult result) {
+            for (Download subscriber : getSubscribers()) {
+                subscriber.sendToCallback(result);
+            }
+            if (!isDetached) {
+                sendToCallback(result);
+            }
+        }
+
+        /**
+         * Progress is sent by the timer and the transfer threads while another thread may report the final result,
+         * so a progress result which loses the race is dropped rather than sent after the final one.
+         *
+         * @return false if the final result has already been sent
+         */
+        private synchronized boolean sendToCallback(PluginResult result) {
+            if (isResultSent) {
+                return false;
+            }
+            isResultSent = !result.getKeepCallback();
+            callbackContext.sendPluginResult(result);
+            bridgeMessageCount.incrementAndGet();
+            return true;
+        }
+
+        public SegmentedDownload.ResumeState getResumeState() {
+            return resumeState;
+        }
+
+        public void setResumeState(SegmentedDownload.ResumeState resumeState) {
+            this.resumeState = resumeState;
+        }
+
+        public boolean isPaused() {
+            return state.get() == STATE_PAUSED;
+        }
+
+        public boolean isPauseRequested() {
+            return isPauseRequested;
+        }
+
+        public void setPauseRequested(boolean isPauseRequested) {
+            this.isPauseRequested = isPauseRequested;
+        }
+
+        public SegmentedDownload getTransfer() {
+            return transfer;
+        }
+
+        public void setTransfer(SegmentedDownload transfer) {
+            this.transfer = transfer;
+        }
+
+        /**
+         * @return true if the download was handed over to DownloadManager or to the in-process engine
+         */
+        public boolean isStarted() {
+            return downloadId != DOWNLOAD_ID_UNDEFINED || transfer != null;
+        }
+
         public long getDownloadId() {
             return downloadId;
         }
@@ -156,14 +947,6 @@ public class BackgroundDownload extends CordovaPlugin {
             this.downloadId = downloadId;
         }
 
-        public Timer getTimerProgressUpdate() {
-            return timerProgressUpdate;
-        }
-
-        public void setTimerProgressUpdate(Timer TimerProgressUpdate) {
-            this.timerProgressUpdate = TimerProgressUpdate;
-        };
-
         public void cancel() {
             this.isCanceled = true;
         }
@@ -172,6 +955,10 @@ public class BackgroundDownload extends CordovaPlugin {
             return this.isCanceled;
         }
 
+        public boolean isFinalizing() {
+            return state.get() == STATE_FINALIZING;
+        }
+
         public void reportError(int errorCode) {
             String reasonMsg = getUserFriendlyReason(errorCode);
             if ("".equals(reasonMsg))
@@ -181,13 +968,78 @@ public class BackgroundDownload extends CordovaPlugin {
         }
 
         public void reportError(String msg) {
-            this.callbackContext.error(msg);
+            sendPluginResult(new PluginResult(PluginResult.Status.ERROR, msg));
+        }
+
+        public void reportSuccess() {
+            if (isDetached) {
+                return;
+            }
+            if (!isStatsReported) {
+                sendToCallback(new PluginResult(PluginResult.Status.OK));
+                return;
+            }
+
+            try {
+                JSONObject obj = new JSONObject();
+                obj.put("stats", stats.toJSON(System.currentTimeMillis()));
+                sendToCallback(new PluginResult(PluginResult.Status.OK, obj));
+            } catch (JSONException e) {
+                e.printStackTrace();
+                sendToCallback(new PluginResult(PluginResult.Status.OK));
+            }
         }
     }
 
     private SparseArray<PermissionsRequest> permissionRequests;
 
-    private HashMap<String, Download> activeDownloads = new HashMap<>();
+    // read without the plugin lock by the progress updates and the actions, changed together with the scheduler
+    // under the lock
+    private final ConcurrentHashMap<String, Download> activeDownloads = new ConcurrentHashMap<>();
+
+    private final DownloadScheduler scheduler = new DownloadScheduler();
+
+    // shares the global rate limit between the in-process transfers
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+
+    // stats of the recently completed downloads, the oldest go first
+    private final ArrayDeque<JSONObject> recentStats = new ArrayDeque<>();
+
+    private DownloadJournal journal;
+
+    private DownloadCache cache;
+
+    // plugin actions, run in the order they were called
+    private Executor actionExecutor;
+
+    // bounded, so a burst of completed downloads does not copy all files at once
+    private final ThreadPoolExecutor finalizationExecutor = createExecutor(MAX_CONCURRENT_FINALIZATIONS, true,
+            "Finalization");
+
+    private final ThreadPoolExecutor transferExecutor = createExecutor(MAX_CONCURRENT_TRANSFERS, true,
+            "SegmentedDownload");
+    private final ThreadPoolExecutor segmentExecutor = createExecutor(MAX_SEGMENT_THREADS, false,
+            "SegmentedDownload-segment");
+    // not shared with the transfers, an extraction waits for the content of its transfer
+    private final ThreadPoolExecutor extractionExecutor = createExecutor(MAX_CONCURRENT_TRANSFERS, true,
+            "ArchiveExtractor");
+
+    // single timer shared by all downloads, progress of all of them is queried in one batch per tick
+    private Timer timerProgressUpdate = null;
+    private TimerTask pendingProgressUpdate = null;
+    private long lastProgressUpdateTime = 0;
+
+    // receives a single batched progress notification per tick for all downloads
+    private volatile CallbackContext progressSubscriber = null;
+    // the ticks and the results of the downloads send to the subscriber under this lock, so no progress of a
+    // download is sent after its result
+    private final Object aggregatedProgressLock = new Object();
+
+    private boolean isEventDrivenProgress = true;
+    private BroadcastReceiver downloadCompleteReceiver = null;
+    // starts the downloads held by their network policy when the network or the power source changes
+    private BroadcastReceiver deviceStateReceiver = null;
+    private ContentObserver downloadsObserver = null;
 
     private DownloadManager getDownloadManager() {
         return (DownloadManager) cordova.getActivity().getSystemService(Context.DOWNLOAD_SERVICE);
@@ -198,164 +1050,1436 @@ public class BackgroundDownload extends CordovaPlugin {
         super.initialize(cordova, webView);
 
         permissionRequests = new SparseArray<>();
+        actionExecutor = new SerialExecutor(cordova.getThreadPool());
+        journal = new DownloadJournal(cordova.getActivity().getApplicationContext());
+        cache = new DownloadCache(cordova.getActivity().getApplicationContext());
+
+        if (preferences != null) {
+            isEventDrivenProgress = preferences.getBoolean(PREFERENCE_EVENT_DRIVEN_PROGRESS, true);
+            try {
+                JSONObject schedulerOptions = new JSONObject();
+                schedulerOptions.put("maxConcurrentDownloads",
+                        preferences.getInteger(PREFERENCE_MAX_CONCURRENT_DOWNLOADS, 0));
+                schedulerOptions.put("maxConcurrentDownloadsPerHost",
+                        preferences.getInteger(PREFERENCE_MAX_CONCURRENT_DOWNLOADS_PER_HOST, 0));
+                scheduler.configure(schedulerOptions);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            cache.setMaxSize(preferences.getInteger(PREFERENCE_CACHE_SIZE,
+                    (int) (DownloadCache.DEFAULT_MAX_SIZE / 1048576)) * 1048576L);
+        }
     }
 
     @Override
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
-        try {
-            if (action.equals("startAsync")) {
-                startAsync(args, callbackContext);
-                return true;
+    public void onDestroy() {
+        stopProgressTracking();
+        // finalizations already started are completed, the rest are picked up from the journal on the next start
+        finalizationExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean execute(final String action, final JSONArray args, final CallbackContext callbackContext)
+            throws JSONException {
+        // actions query DownloadManager and touch the file system, so they do not run on the bridge thread
+        actionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!executeAction(action, args, callbackContext)) {
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.INVALID_ACTION));
+                    }
+                } catch (Exception ex) {
+                    callbackContext.error(ex.getMessage());
+                }
             }
-            if (action.equals("stop")) {
-                stop(args, callbackContext);
-                return true;
+        });
+        return true;
+    }
+
+    private boolean executeAction(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        if (action.equals("startAsync")) {
+            startAsync(args, callbackContext);
+            return true;
+        }
+        if (action.equals("stop")) {
+            stop(args, callbackContext);
+            return true;
+        }
+        if (action.equals("startBatch")) {
+            startBatch(args, callbackContext);
+            return true;
+        }
+        if (action.equals("stopBatch")) {
+            stopBatch(args, callbackContext);
+            return true;
+        }
+        if (action.equals("pause")) {
+            pause(args, callbackContext);
+            return true;
+        }
+        if (action.equals("resume")) {
+            resume(args, callbackContext);
+            return true;
+        }
+        if (action.equals("setPriority")) {
+            setPriority(args, callbackContext);
+            return true;
+        }
+        if (action.equals("setBandwidth")) {
+            setBandwidth(args, callbackContext);
+            return true;
+        }
+        if (action.equals("getQueue")) {
+            getQueue(callbackContext);
+            return true;
+        }
+        if (action.equals("configureScheduler")) {
+            configureScheduler(args, callbackContext);
+            return true;
+        }
+        if (action.equals("getStats")) {
+            getStats(callbackContext);
+            return true;
+        }
+        if (action.equals("getActiveDownloads")) {
+            getActiveDownloads(callbackContext);
+            return true;
+        }
+        if (action.equals("subscribeProgress")) {
+            subscribeProgress(callbackContext);
+            return true;
+        }
+        if (action.equals("unsubscribeProgress")) {
+            unsubscribeProgress(callbackContext);
+            return true;
+        }
+        if (action.equals("configureCache")) {
+            configureCache(args, callbackContext);
+            return true;
+        }
+        if (action.equals("clearCache")) {
+            clearCache(callbackContext);
+            return true;
+        }
+        return false; // invalid action
+    }
+
+    private void startAsync(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        if (!checkPermissions("startAsync", args, callbackContext)) {
+            return;
+        }
+
+        Download curDownload = Download.create(args, callbackContext);
+        if (prepareDownload(curDownload)) {
+            startDownloads(Collections.singletonList(curDownload));
+        }
+    }
+
+    /**
+     * Starts several downloads with a single call: permissions are checked once, downloads started before the app
+     * restart are looked up with one DownloadManager query and the queue is dispatched once. Every item has the same
+     * arguments as startAsync.
+     */
+    private void startBatch(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        if (!checkPermissions("startBatch", args, callbackContext)) {
+            return;
+        }
+
+        JSONArray items = args.getJSONArray(0);
+        DownloadBatch batch = new DownloadBatch(callbackContext, items.length());
+        if (items.length() == 0) {
+            callbackContext.success();
+            return;
+        }
+
+        ArrayList<Download> downloads = new ArrayList<>();
+        for (int i = 0; i < items.length(); i++) {
+            JSONArray itemArgs = items.getJSONArray(i);
+            CallbackContext itemCallbackContext = batch.createItemCallbackContext(itemArgs.get(0).toString(), i);
+            try {
+                Download curDownload = Download.create(itemArgs, itemCallbackContext);
+                if (prepareDownload(curDownload)) {
+                    downloads.add(curDownload);
+                }
+            } catch (JSONException e) {
+                itemCallbackContext.error(e.getMessage());
+            }
+        }
+
+        startDownloads(downloads);
+    }
+
+    /**
+     * Chooses the temporary file and completes the download from the cache if the file is there.
+     *
+     * @return false if the download is completed from the cache
+     */
+    private boolean prepareDownload(Download curDownload) {
+        // the in-process engine can always write next to the target file
+        curDownload.setTempFileUri(curDownload.isInProcess()
+                ? getSiblingTempFileUri(new File(curDownload.getTargetFileUri().getPath()))
+                : getTempFileUri(curDownload.getTargetFileUri()));
+        curDownload.resolveCacheKey(journal.getMatcherKey(curDownload.getUriMatcher(), curDownload.getUriString()));
+
+        if (curDownload.getCacheKey() != null) {
+            File cachedFile = cache.get(curDownload.getCacheKey());
+            if (cachedFile != null) {
+                completeFromCache(curDownload, cachedFile);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startDownloads(List<Download> downloads) {
+        ArrayList<Download> newDownloads = new ArrayList<>();
+        ArrayList<Download> downloadManagerDownloads = new ArrayList<>();
+        synchronized (this) {
+            for (Download curDownload : downloads) {
+                // the same file is already being downloaded, so the request shares its transfer
+                Download sharedDownload = findSharedDownload(curDownload);
+                if (sharedDownload != null && !sharedDownload.isCompleted()
+                        && !sharedDownload.isSameResult(curDownload)) {
+                    curDownload.reportError("download of the same uri with different extract options is in progress");
+                    continue;
+                }
+                if (sharedDownload != null && sharedDownload.addSubscriber(curDownload)) {
+                    if (scheduler.isQueued(sharedDownload)) {
+                        reportQueued(curDownload);
+                    }
+                    continue;
+                }
+
+                activeDownloads.put(curDownload.getUriString(), curDownload);
+                newDownloads.add(curDownload);
+                if (!curDownload.isInProcess()) {
+                    downloadManagerDownloads.add(curDownload);
+                } else {
+                    restorePausedTransfer(curDownload);
+                }
+            }
+        }
+        if (newDownloads.isEmpty()) {
+            return;
+        }
+
+        // attempt to attach to active download for this file (download started and we close/open the app)
+        HashSet<Download> attachedDownloads = attachToExistingDownloads(downloadManagerDownloads);
+        synchronized (this) {
+            for (Download curDownload : newDownloads) {
+                if (!attachedDownloads.contains(curDownload)) {
+                    scheduler.add(curDownload);
+                }
+            }
+            dispatchQueuedDownloads();
+            for (Download curDownload : newDownloads) {
+                if (scheduler.isQueued(curDownload)) {
+                    reportQueued(curDownload);
+                }
+            }
+        }
+
+        // custom logic to track file download progress
+        startProgressTracking();
+    }
+
+    /**
+     * @return active download of the same uri or with the same cache key
+     */
+    private synchronized Download findSharedDownload(Download curDownload) {
+        Download sharedDownload = activeDownloads.get(curDownload.getUriString());
+        if (sharedDownload != null || curDownload.getCacheKey() == null) {
+            return sharedDownload;
+        }
+
+        for (Download download : activeDownloads.values()) {
+            if (curDownload.getCacheKey().equals(download.getCacheKey())) {
+                return download;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Links the cached file to the result file, the download is started if the cached file cannot be used.
+     */
+    private void completeFromCache(final Download curDownload, final File cachedFile) {
+        finalizationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                curDownload.getStats().onFinalizeStarted(System.currentTimeMillis());
+                if (deliverFile(curDownload, cachedFile) == 0) {
+                    curDownload.getStats().onFinalizeCompleted("cache", 0, System.currentTimeMillis());
+                    curDownload.setLastProgress(cachedFile.length(), cachedFile.length());
+                    sendAggregatedResult(curDownload, true);
+                    curDownload.reportSuccess();
+                    return;
+                }
+
+                cache.remove(curDownload.getCacheKey());
+                startDownloads(Collections.singletonList(curDownload));
+            }
+        });
+    }
+
+    /**
+     * Places the already downloaded file to the result file of the download and verifies its hash if needed.
+     *
+     * @return 0 or the reason the file cannot be used
+     */
+    private int deliverFile(Download curDownload, File file) {
+        File targetFile = new File(curDownload.getTargetFileUri().getPath());
+        try {
+            if (!getCanonicalPath(targetFile).equals(getCanonicalPath(file))) {
+                DownloadCache.linkOrCopy(file, targetFile);
+            }
+
+            IntegrityCheck integrityCheck = curDownload.getIntegrityCheck();
+            if (integrityCheck != null && !journal.isHashVerified(targetFile, integrityCheck)) {
+                FileCopy.hash(targetFile, integrityCheck, new FinalizingProgress(curDownload));
+                if (!verifyHash(curDownload, targetFile, integrityCheck)) {
+                    return ERROR_HASH_MISMATCH;
+                }
+            }
+            return 0;
+        } catch (InterruptedIOException e) {
+            return ERROR_CANCELED;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Cannot place '%s' to '%s'", file, targetFile), e);
+            return DownloadManager.ERROR_FILE_ERROR;
+        }
+    }
+
+    /**
+     * Hands queued downloads over to DownloadManager while the scheduler limits allow it.
+     */
+    private synchronized void dispatchQueuedDownloads() {
+        Download next;
+        NetworkPolicy.DeviceState deviceState = getDeviceState();
+        while ((next = scheduler.next(activeDownloads.values(), deviceState)) != null) {
+            enqueueDownload(next);
+        }
+    }
+
+    private void enqueueDownload(Download curDownload) {
+        curDownload.changeState(Download.STATE_QUEUED, Download.STATE_RUNNING);
+        curDownload.getStats().onStarted(System.currentTimeMillis());
+        if (curDownload.isInProcess()) {
+            startTransfer(curDownload);
+            return;
+        }
+
+        try {
+            // make sure file does not exist, in other case DownloadManager will fail
+            deleteFileIfExists(curDownload.getTempFileUri());
+
+            DownloadManager mgr = getDownloadManager();
+            DownloadManager.Request request = new DownloadManager.Request(Uri.parse(curDownload.getUriString()));
+            request.setTitle(curDownload.getNotificationTitle());
+            request.setVisibleInDownloadsUi(false);
+
+            // hide notification. Not compatible with current android api.
+            // request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN);
+
+            curDownload.getNetworkPolicy().apply(request);
+
+            request.setDestinationUri(curDownload.getTempFileUri());
+
+            curDownload.setDownloadId(mgr.enqueue(request));
+            journalDownload(curDownload);
+        } catch (Exception ex) {
+            if (cleanUp(curDownload, true)) {
+                curDownload.reportError(ex.getMessage());
+            }
+        }
+    }
+
+    private void startTransfer(final Download curDownload) {
+        try {
+            // partial file of the paused download is kept
+            SegmentedDownload.ResumeState resumeState = curDownload.getResumeState();
+            if (resumeState == null) {
+                deleteFileIfExists(curDownload.getTempFileUri());
+            }
+
+            SegmentedDownload transfer = new SegmentedDownload(new URL(curDownload.getUriString()),
+                    new File(curDownload.getTempFileUri().getPath()), curDownload.getSegments(), resumeState,
+                    segmentExecutor, new SegmentedDownload.Listener() {
+                        @Override
+                        public void onProgress(SegmentedDownload download) {
+                            curDownload.getStats().onBytesReceived(download.getBytesReceived(), System.currentTimeMillis());
+                            requestProgressUpdate(false);
+                        }
+
+                        @Override
+                        public void onComplete(SegmentedDownload download) {
+                            synchronized (BackgroundDownload.this) {
+                                // completed before it could be paused
+                                curDownload.setPauseRequested(false);
+                            }
+                            startFinalization(curDownload);
+                            requestProgressUpdate(true);
+                        }
+
+                        @Override
+                        public void onPaused(SegmentedDownload download) {
+                            synchronized (BackgroundDownload.this) {
+                                // stopped in the meantime
+                                if (curDownload.getTransfer() != download) {
+                                    return;
+                                }
+                                curDownload.setResumeState(download.getResumeState());
+                                curDownload.setTransfer(null);
+                                journalDownload(curDownload);
+                                if (!curDownload.isPauseRequested()) {
+                                    // resumed before the transfer stopped or held by its network policy, it
+                                    // continues from the partial file
+                                    if (curDownload.changeState(Download.STATE_RUNNING, Download.STATE_QUEUED)) {
+                                        requeuePausedDownload(curDownload);
+                                    }
+                                    return;
+                                }
+                                curDownload.setPauseRequested(false);
+                                curDownload.changeState(Download.STATE_RUNNING, Download.STATE_PAUSED);
+                                curDownload.getStats().onState("paused", System.currentTimeMillis());
+                                // paused download does not take a slot
+                                dispatchQueuedDownloads();
+                                // under the lock, so a resume or a stop cannot report before it
+                                reportPaused(curDownload, download.getBytesReceived(), download.getTotalBytes());
+                            }
+                        }
+
+                        @Override
+                        public void onError(SegmentedDownload download, int httpStatus, Exception e) {
+                            Log.e(TAG, "In-process download failed: " + curDownload.getUriString(), e);
+                            int reason = httpStatus > 0 ? httpStatus : DownloadManager.ERROR_HTTP_DATA_ERROR;
+                            if (scheduleRetry(curDownload, reason, download)) {
+                                return;
+                            }
+                            if (cleanUp(curDownload, true)) {
+                                curDownload.reportError(reason);
+                            }
+                        }
+                    });
+            transfer.setBandwidth(bandwidthLimiter.register(curDownload.getBandwidthWeight(),
+                    curDownload.getMaxBytesPerSecond()));
+            curDownload.setTransfer(transfer);
+            curDownload.setResumeState(null);
+            journalDownload(curDownload);
+            if (curDownload.getExtractor() != null) {
+                startExtraction(curDownload, transfer);
+            }
+            transfer.start(transferExecutor);
+        } catch (Exception ex) {
+            if (cleanUp(curDownload, true)) {
+                curDownload.reportError(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Extracts the archive while it is being downloaded. When the transfer is paused the extraction stops and its
+     * files are deleted; the resumed transfer extracts the archive again, reading the partial file first.
+     */
+    private void startExtraction(final Download curDownload, final SegmentedDownload transfer) {
+        final Future<?> previousExtraction = curDownload.getExtraction();
+        FutureTask<Void> extraction = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (previousExtraction != null) {
+                    // files of the paused transfer are deleted before they are written again
+                    try {
+                        previousExtraction.get();
+                    } catch (ExecutionException ignore) {
+                        // reported by the previous transfer
+                    }
+                }
+
+                InputStream in = transfer.openContentStream();
+                try {
+                    curDownload.getExtractor().extract(in, curDownload.getIntegrityCheck(),
+                            new ExtractionProgress(curDownload, -1));
+                } catch (InterruptedIOException e) {
+                    // the transfer was stopped or paused, it reports that itself
+                    throw e;
+                } catch (IOException e) {
+                    Log.e(TAG, "Extraction failed: " + curDownload.getUriString(), e);
+                    if (cleanUp(curDownload, true)) {
+                        curDownload.reportError(ERROR_EXTRACTION_FAILED);
+                    }
+                    throw e;
+                } finally {
+                    in.close();
+                }
+                return null;
+            }
+        });
+        curDownload.setExtraction(extraction);
+        extractionExecutor.execute(extraction);
+    }
+
+    /**
+     * Starts the failed download again after the backoff delay if its retry policy allows it. The in-process transfer
+     * continues from the data received so far, DownloadManager downloads are started from the beginning.
+     *
+     * @param transfer the failed in-process transfer, null for DownloadManager downloads
+     * @return false if the download is not retried and the failure has to be reported
+     */
+    private boolean scheduleRetry(final Download curDownload, int reason, SegmentedDownload transfer) {
+        final int failedAttempt = curDownload.getAttempt();
+        if (curDownload.isCanceled() || !curDownload.getRetryPolicy().shouldRetry(failedAttempt, reason)) {
+            return false;
+        }
+
+        long delay = curDownload.getRetryPolicy().getDelay(failedAttempt);
+        synchronized (this) {
+            // stopped in the meantime
+            if (transfer != null && curDownload.getTransfer() != transfer) {
+                return false;
+            }
+            if (!curDownload.changeState(Download.STATE_RUNNING, Download.STATE_WAITING_TO_RETRY)) {
+                return false;
+            }
+
+            if (transfer != null) {
+                curDownload.setResumeState(transfer.getResumeState());
+                curDownload.setTransfer(null);
+            } else {
+                getDownloadManager().remove(curDownload.getDownloadId());
+                curDownload.setDownloadId(DOWNLOAD_ID_UNDEFINED);
+            }
+            curDownload.setAttempt(failedAttempt + 1);
+            curDownload.getStats().onState("waitingToRetry", System.currentTimeMillis());
+            journalDownload(curDownload);
+            // waiting download does not take a slot
+            dispatchQueuedDownloads();
+
+            startProgressTracking();
+            timerProgressUpdate.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    retry(curDownload);
+                }
+            }, delay);
+        }
+
+        Log.w(TAG, String.format(Locale.US, "Attempt %d of '%s' failed with reason %d, retrying in %d ms",
+                failedAttempt, curDownload.getUriString(), reason, delay));
+        try {
+            JSONObject retryMessage = new JSONObject();
+            retryMessage.put("message", "Download failed with reason " + reason + ", retrying");
+            retryMessage.put("retrying", true);
+            retryMessage.put("reason", reason);
+            retryMessage.put("reasonName", getUserFriendlyReason(reason));
+            retryMessage.put("retryDelay", delay);
+            putAttempt(retryMessage, curDownload);
+            JSONObject obj = new JSONObject();
+            obj.put("progress", retryMessage);
+
+            PluginResult progressUpdate = new PluginResult(PluginResult.Status.OK, obj);
+            progressUpdate.setKeepCallback(true);
+            curDownload.sendPluginResult(progressUpdate);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private synchronized void retry(Download curDownload) {
+        // stopped or paused while it was waiting
+        if (!curDownload.changeState(Download.STATE_WAITING_TO_RETRY, Download.STATE_QUEUED)) {
+            return;
+        }
+        curDownload.getStats().onState(DownloadStats.STATE_QUEUED, System.currentTimeMillis());
+        scheduler.add(curDownload);
+        dispatchQueuedDownloads();
+        if (scheduler.isQueued(curDownload)) {
+            reportQueued(curDownload);
+        }
+    }
+
+    /**
+     * Adds the number of the current attempt if the download can be retried.
+     */
+    private static void putAttempt(JSONObject message, Download curDownload) throws JSONException {
+        if (curDownload.getRetryPolicy().getMaxAttempts() > 1) {
+            message.put("attempt", curDownload.getAttempt());
+            message.put("maxAttempts", curDownload.getRetryPolicy().getMaxAttempts());
+        }
+    }
+
+    private void reportQueued(Download curDownload) {
+        try {
+            JSONObject queuedMessage = new JSONObject();
+            queuedMessage.put("message", "Download queued");
+            queuedMessage.put("queued", true);
+            List<String> waitingFor = scheduler.getWaitingFor(curDownload, getDeviceState());
+            if (!waitingFor.isEmpty()) {
+                queuedMessage.put("waitingFor", new JSONArray(waitingFor));
+            }
+            putAttempt(queuedMessage, curDownload);
+            JSONObject obj = new JSONObject();
+            obj.put("progress", queuedMessage);
+
+            PluginResult progressUpdate = new PluginResult(PluginResult.Status.OK, obj);
+            progressUpdate.setKeepCallback(true);
+            curDownload.sendPluginResult(progressUpdate);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void reportPaused(Download curDownload, long bytesReceived, long bytesTotal) {
+        try {
+            JSONObject pausedMessage = new JSONObject();
+            pausedMessage.put("message", "Download paused");
+            pausedMessage.put("paused", true);
+            pausedMessage.put("bytesReceived", bytesReceived);
+            pausedMessage.put("totalBytesToReceive", bytesTotal);
+            JSONObject obj = new JSONObject();
+            obj.put("progress", pausedMessage);
+
+            PluginResult progressUpdate = new PluginResult(PluginResult.Status.OK, obj);
+            progressUpdate.setKeepCallback(true);
+            curDownload.sendPluginResult(progressUpdate);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Pauses the in-process download keeping the partial file. DownloadManager does not provide a way to pause
+     * a download, so only downloads made with the segmented engine can be paused.
+     */
+    private void pause(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        Download curDownload;
+        synchronized (this) {
+            curDownload = activeDownloads.get(args.get(0).toString());
+            if (curDownload == null) {
+                callbackContext.error("download request not found");
+                return;
+            }
+            if (!curDownload.isInProcess()) {
+                callbackContext.error("pause is supported by the segmented engine only");
+                return;
+            }
+            if (curDownload.isFinalizing()) {
+                callbackContext.error("download is already completed");
+                return;
+            }
+            if (curDownload.isPaused() || curDownload.isPauseRequested()) {
+                callbackContext.success();
+                return;
+            }
+
+            if (curDownload.getTransfer() != null) {
+                // the download is reported as paused once the transfer stops, unless it is resumed before
+                curDownload.setPauseRequested(true);
+                curDownload.getTransfer().pause();
+                callbackContext.success();
+                return;
+            }
+
+            // download is waiting in the queue
+            scheduler.remove(curDownload);
+            if (!curDownload.changeState(Download.STATE_QUEUED, Download.STATE_PAUSED)) {
+                // the retry is started by resume
+                curDownload.changeState(Download.STATE_WAITING_TO_RETRY, Download.STATE_PAUSED);
+            }
+            curDownload.getStats().onState("paused", System.currentTimeMillis());
+        }
+        SegmentedDownload.ResumeState resumeState = curDownload.getResumeState();
+        reportPaused(curDownload, resumeState != null ? resumeState.bytesReceived : 0,
+                resumeState != null ? resumeState.totalBytes : -1);
+        callbackContext.success();
+    }
+
+    /**
+     * Queues the paused download again, it continues from where it was paused unless the file has changed on the
+     * server. A transfer which is still stopping after pause is queued again as soon as it stops.
+     */
+    private void resume(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        synchronized (this) {
+            Download curDownload = activeDownloads.get(args.get(0).toString());
+            if (curDownload == null) {
+                callbackContext.error("download request not found");
+                return;
+            }
+            if (curDownload.isPauseRequested()) {
+                // onPaused queues the download again instead of reporting it as paused
+                curDownload.setPauseRequested(false);
+                callbackContext.success();
+                return;
+            }
+            if (!curDownload.changeState(Download.STATE_PAUSED, Download.STATE_QUEUED)) {
+                callbackContext.error("download is not paused");
+                return;
+            }
+            requeuePausedDownload(curDownload);
+        }
+        startProgressTracking();
+        callbackContext.success();
+    }
+
+    private synchronized void requeuePausedDownload(Download curDownload) {
+        curDownload.getStats().onState(DownloadStats.STATE_QUEUED, System.currentTimeMillis());
+        scheduler.add(curDownload);
+        dispatchQueuedDownloads();
+        if (scheduler.isQueued(curDownload)) {
+            reportQueued(curDownload);
+        }
+    }
+
+    private void setPriority(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        synchronized (this) {
+            Download curDownload = activeDownloads.get(args.get(0).toString());
+            if (curDownload == null) {
+                callbackContext.error("download request not found");
+                return;
+            }
+
+            curDownload.setPriority(args.getInt(1));
+            // a queued download with raised priority takes the next free slot
+            dispatchQueuedDownloads();
+        }
+        callbackContext.success();
+    }
+
+    /**
+     * Changes the rate limit and the weight of the in-process download, DownloadManager cannot be throttled.
+     */
+    private void setBandwidth(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        synchronized (this) {
+            Download curDownload = activeDownloads.get(args.get(0).toString());
+            if (curDownload == null) {
+                callbackContext.error("download request not found");
+                return;
+            }
+            if (!curDownload.isInProcess()) {
+                callbackContext.error("bandwidth limits are supported by the segmented engine only");
+                return;
+            }
+
+            JSONObject options = args.getJSONObject(1);
+            curDownload.setBandwidth(options.optLong("maxBytesPerSecond", curDownload.getMaxBytesPerSecond()),
+                    options.optDouble("bandwidthWeight", curDownload.getBandwidthWeight()));
+            SegmentedDownload transfer = curDownload.getTransfer();
+            if (transfer != null && transfer.getBandwidth() != null) {
+                transfer.getBandwidth().setLimit(curDownload.getBandwidthWeight(), curDownload.getMaxBytesPerSecond());
+            }
+        }
+        callbackContext.success();
+    }
+
+    private synchronized void getQueue(CallbackContext callbackContext) throws JSONException {
+        JSONObject queue = scheduler.toJSON(activeDownloads.values(), getDeviceState());
+        queue.put("maxBytesPerSecond", bandwidthLimiter.getMaxRate());
+        callbackContext.success(queue);
+    }
+
+    private void configureScheduler(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        JSONObject options = args.getJSONObject(0);
+        if (options.has("maxBytesPerSecond")) {
+            bandwidthLimiter.setMaxRate(options.getLong("maxBytesPerSecond"));
+        }
+        synchronized (this) {
+            scheduler.configure(options);
+            dispatchQueuedDownloads();
+        }
+        callbackContext.success();
+    }
+
+    private void configureCache(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        JSONObject options = args.getJSONObject(0);
+        if (options.has("maxSize")) {
+            cache.setMaxSize(options.getLong("maxSize"));
+        }
+        callbackContext.success(cache.toJSON());
+    }
+
+    private void clearCache(CallbackContext callbackContext) {
+        cache.clear();
+        journal.pruneHashVerified();
+        callbackContext.success();
+    }
+
+    private synchronized void startProgressTracking() {
+        // already started
+        if (timerProgressUpdate != null) {
+            return;
+        }
+
+        timerProgressUpdate = new Timer();
+        registerDeviceStateEvents();
+
+        boolean isEventDriven = isEventDrivenProgress && registerDownloadEvents();
+        long interval = isEventDriven ? DOWNLOAD_PROGRESS_FALLBACK_TIMEOUT : DOWNLOAD_PROGRESS_UPDATE_TIMEOUT;
+
+        timerProgressUpdate.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                updateProgress();
+            }
+        }, DOWNLOAD_PROGRESS_UPDATE_TIMEOUT, interval);
+    }
+
+    private synchronized void stopProgressTrackingIfIdle() {
+        if (activeDownloads.isEmpty()) {
+            stopProgressTracking();
+        }
+    }
+
+    private synchronized void stopProgressTracking() {
+        unregisterDownloadEvents();
+        unregisterDeviceStateEvents();
+
+        if (timerProgressUpdate != null) {
+            timerProgressUpdate.cancel();
+            timerProgressUpdate = null;
+        }
+        pendingProgressUpdate = null;
+    }
+
+    /**
+     * Subscribes to DownloadManager completion broadcasts and to changes of the downloads table so the progress is
+     * updated when something actually happens instead of on every tick.
+     *
+     * @return false if the events are not available and progress must be polled at the regular interval
+     */
+    private boolean registerDownloadEvents() {
+        Context context = cordova.getActivity().getApplicationContext();
+
+        downloadCompleteReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                requestProgressUpdate(true);
+            }
+        };
+        downloadsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                requestProgressUpdate(false);
+            }
+        };
+
+        try {
+            // sent by DownloadManager, which runs in another process
+            registerReceiver(context, downloadCompleteReceiver,
+                    new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE), true);
+            context.getContentResolver().registerContentObserver(DOWNLOADS_CONTENT_URI, true, downloadsObserver);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot subscribe to DownloadManager events, falling back to polling", e);
+            unregisterDownloadEvents();
+            return false;
+        }
+    }
+
+    /**
+     * Android 14 rejects a receiver registered at runtime unless it says whether other apps may send to it; the
+     * flags exist from Android 13.
+     */
+    private static void registerReceiver(Context context, BroadcastReceiver receiver, IntentFilter filter,
+                                         boolean isExported) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(receiver, filter,
+                    isExported ? Context.RECEIVER_EXPORTED : Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(receiver, filter);
+        }
+    }
+
+    private void registerDeviceStateEvents() {
+        deviceStateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // DownloadManager may be called to start the downloads, so not on the main thread
+                actionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        holdDownloadsOutsidePolicy();
+                        dispatchQueuedDownloads();
+                    }
+                });
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        try {
+            // protected system broadcasts reach receivers which are not exported too
+            registerReceiver(cordova.getActivity().getApplicationContext(), deviceStateReceiver, filter, false);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot subscribe to network and power changes", e);
+            deviceStateReceiver = null;
+        }
+    }
+
+    /**
+     * Pauses the in-process transfers whose network policy no longer holds after a network or power change. The
+     * partial file is kept and the download is queued again, so it continues once the policy holds. DownloadManager
+     * downloads are not held here: once enqueued, DownloadManager alone decides when they run.
+     */
+    private synchronized void holdDownloadsOutsidePolicy() {
+        NetworkPolicy.DeviceState deviceState = getDeviceState();
+        for (Download curDownload : activeDownloads.values()) {
+            SegmentedDownload transfer = curDownload.getTransfer();
+            if (transfer == null || curDownload.isFinalizing() || curDownload.isPauseRequested()) {
+                continue;
+            }
+            if (!scheduler.getWaitingFor(curDownload, deviceState).isEmpty()) {
+                // onPaused queues the download again as the pause was not requested by the app
+                transfer.pause();
+            }
+        }
+    }
+
+    private void unregisterDeviceStateEvents() {
+        if (deviceStateReceiver != null) {
+            try {
+                cordova.getActivity().getApplicationContext().unregisterReceiver(deviceStateReceiver);
+            } catch (IllegalArgumentException ignore) {
+                // receiver was not registered
+            }
+            deviceStateReceiver = null;
+        }
+    }
+
+    private void unregisterDownloadEvents() {
+        Context context = cordova.getActivity().getApplicationContext();
+
+        if (downloadCompleteReceiver != null) {
+            try {
+                context.unregisterReceiver(downloadCompleteReceiver);
+            } catch (IllegalArgumentException ignore) {
+                // receiver was not registered
+            }
+            downloadCompleteReceiver = null;
+        }
+        if (downloadsObserver != null) {
+            context.getContentResolver().unregisterContentObserver(downloadsObserver);
+            downloadsObserver = null;
+        }
+    }
+
+    /**
+     * Schedules a single progress update on the shared timer. Change notifications are coalesced so that
+     * progress is not queried more often than once per DOWNLOAD_PROGRESS_UPDATE_TIMEOUT.
+     */
+    private synchronized void requestProgressUpdate(boolean immediately) {
+        if (timerProgressUpdate == null || pendingProgressUpdate != null) {
+            return;
+        }
+
+        long delay = immediately ? 0
+                : Math.max(0, lastProgressUpdateTime + DOWNLOAD_PROGRESS_UPDATE_TIMEOUT - System.currentTimeMillis());
+
+        pendingProgressUpdate = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (BackgroundDownload.this) {
+                    pendingProgressUpdate = null;
+                }
+                updateProgress();
+            }
+        };
+        timerProgressUpdate.schedule(pendingProgressUpdate, delay);
+    }
+
+    /**
+     * Queries the state of all tracked downloads with a single DownloadManager query and dispatches
+     * each row to the corresponding download. State of in-process downloads is taken from their transfers.
+     * Package-private so a single tick can be measured by the benchmarks.
+     */
+    void updateProgress() {
+        final HashMap<Long, Download> trackedDownloads = new HashMap<>();
+        // the transfer is taken together with the download, onPaused and scheduleRetry clear it
+        final HashMap<Download, SegmentedDownload> inProcessDownloads = new HashMap<>();
+        final ArrayList<Download> pausedDownloads = new ArrayList<>();
+        final ArrayList<Download> queuedDownloads = new ArrayList<>();
+        final ArrayList<Download> finalizingDownloads = new ArrayList<>();
+        progressPollCount.incrementAndGet();
+        synchronized (this) {
+            lastProgressUpdateTime = System.currentTimeMillis();
+            for (Download download : activeDownloads.values()) {
+                SegmentedDownload transfer = download.getTransfer();
+                if (download.isFinalizing()) {
+                    finalizingDownloads.add(download);
+                } else if (transfer != null) {
+                    inProcessDownloads.put(download, transfer);
+                } else if (download.isPaused()) {
+                    pausedDownloads.add(download);
+                } else if (download.getDownloadId() != DOWNLOAD_ID_UNDEFINED) {
+                    trackedDownloads.put(download.getDownloadId(), download);
+                } else {
+                    // waiting for a slot, for the network or for the next attempt
+                    queuedDownloads.add(download);
+                }
+            }
+        }
+
+        final CallbackContext subscriber = progressSubscriber;
+        final JSONArray aggregatedProgress = subscriber != null ? new JSONArray() : null;
+
+        for (Map.Entry<Download, SegmentedDownload> entry : inProcessDownloads.entrySet()) {
+            Download curDownload = entry.getKey();
+            SegmentedDownload transfer = entry.getValue();
+            if (curDownload.isCompleted() || curDownload.getTransfer() != transfer) {
+                // stopped, failed, paused or completed since it was picked
+                continue;
+            }
+            int status = transfer.isStarted() ? DownloadManager.STATUS_RUNNING : DownloadManager.STATUS_PENDING;
+            processStatus(curDownload, status, 0, transfer.getBytesReceived(), transfer.getTotalBytes());
+            addAggregatedProgress(aggregatedProgress, curDownload, status, transfer.getBytesReceived(),
+                    transfer.getTotalBytes());
+        }
+
+        // paused downloads are reported to the download callback by pause, here only to the aggregated progress
+        for (Download curDownload : pausedDownloads) {
+            SegmentedDownload.ResumeState resumeState = curDownload.getResumeState();
+            addAggregatedProgress(aggregatedProgress, curDownload, DownloadManager.STATUS_PAUSED,
+                    resumeState != null ? resumeState.bytesReceived : 0,
+                    resumeState != null ? resumeState.totalBytes : -1);
+        }
+
+        for (Download curDownload : queuedDownloads) {
+            SegmentedDownload.ResumeState resumeState = curDownload.getResumeState();
+            addAggregatedProgress(aggregatedProgress, curDownload, DownloadManager.STATUS_PENDING,
+                    resumeState != null ? resumeState.bytesReceived : 0,
+                    resumeState != null ? resumeState.totalBytes : -1);
+        }
+
+        // the result is sent once the file is in place, until then the download is running
+        for (Download curDownload : finalizingDownloads) {
+            addAggregatedProgress(aggregatedProgress, curDownload, DownloadManager.STATUS_RUNNING,
+                    curDownload.getLastBytesReceived(), curDownload.getLastTotalBytes());
+        }
+
+        if (!trackedDownloads.isEmpty()) {
+            queryDownloadManager(trackedDownloads, aggregatedProgress);
+        }
+
+        if (aggregatedProgress != null && aggregatedProgress.length() > 0) {
+            sendAggregatedProgress(subscriber, aggregatedProgress);
+        }
+    }
+
+    private void queryDownloadManager(HashMap<Long, Download> trackedDownloads, JSONArray aggregatedProgress) {
+        long[] ids = new long[trackedDownloads.size()];
+        int i = 0;
+        for (Long id : trackedDownloads.keySet()) {
+            ids[i++] = id;
+        }
+
+        DownloadManager.Query q = new DownloadManager.Query();
+        q.setFilterById(ids);
+        downloadManagerQueryCount.incrementAndGet();
+        Cursor cursor = getDownloadManager().query(q);
+        try {
+            int idxId = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+            int idxStatus = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+            int idxReason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+            int idxBytesDownloaded = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+            int idxBytesTotal = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                Download curDownload = trackedDownloads.remove(cursor.getLong(idxId));
+                if (curDownload == null) {
+                    continue;
+                }
+                int status = cursor.getInt(idxStatus);
+                long bytesDownloaded = cursor.getLong(idxBytesDownloaded);
+                long bytesTotal = cursor.getLong(idxBytesTotal);
+                processStatus(curDownload, status, cursor.getInt(idxReason), bytesDownloaded, bytesTotal);
+                // completed by DownloadManager, but the file is not in place until it is finalized
+                addAggregatedProgress(aggregatedProgress, curDownload,
+                        status == DownloadManager.STATUS_SUCCESSFUL ? DownloadManager.STATUS_RUNNING : status,
+                        bytesDownloaded, bytesTotal);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // downloads which are not known to DownloadManager anymore were removed outside of the plugin
+        for (Download curDownload : trackedDownloads.values()) {
+            if (cleanUp(curDownload, true)) {
+                curDownload.reportError(ERROR_CANCELED);
+            }
+        }
+    }
+
+    /**
+     * Appends compact [uri, bytesReceived, totalBytesToReceive, status] tuple to the aggregated progress
+     * notification if the download state has changed since the previous one.
+     */
+    private static void addAggregatedProgress(JSONArray aggregatedProgress, Download curDownload, int status,
+            long bytesDownloaded, long bytesTotal) {
+        if (status != DownloadManager.STATUS_FAILED) {
+            curDownload.setLastProgress(bytesDownloaded, bytesTotal);
+        }
+        if (aggregatedProgress == null || !curDownload.updateAggregatedSnapshot(status, bytesDownloaded, bytesTotal)) {
+            return;
+        }
+
+        JSONArray tuple = new JSONArray();
+        tuple.put(curDownload.getUriString());
+        tuple.put(bytesDownloaded);
+        tuple.put(bytesTotal);
+        tuple.put(status);
+        aggregatedProgress.put(tuple);
+    }
+
+    /**
+     * Sends the progress of a tick, without the downloads completed since their state was read as their results have
+     * been sent already.
+     */
+    private void sendAggregatedProgress(CallbackContext subscriber, JSONArray aggregatedProgress) {
+        synchronized (aggregatedProgressLock) {
+            JSONArray progress = new JSONArray();
+            for (int i = 0; i < aggregatedProgress.length(); i++) {
+                JSONArray tuple = aggregatedProgress.optJSONArray(i);
+                if (activeDownloads.containsKey(tuple.optString(0))) {
+                    progress.put(tuple);
+                }
+            }
+            if (progress.length() == 0) {
+                return;
+            }
+            PluginResult progressUpdate = new PluginResult(PluginResult.Status.OK, progress);
+            progressUpdate.setKeepCallback(true);
+            subscriber.sendPluginResult(progressUpdate);
+            bridgeMessageCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sends the result of the download over the aggregated progress channel right away, the ticks skip completed
+     * downloads.
+     */
+    private void sendAggregatedResult(Download curDownload, boolean succeeded) {
+        synchronized (aggregatedProgressLock) {
+            CallbackContext subscriber = progressSubscriber;
+            if (subscriber == null) {
+                return;
+            }
+            long bytesTotal = curDownload.getLastTotalBytes();
+            long bytesDownloaded = succeeded && bytesTotal >= 0 ? bytesTotal : curDownload.getLastBytesReceived();
+            JSONArray aggregatedProgress = new JSONArray();
+            addAggregatedProgress(aggregatedProgress, curDownload,
+                    succeeded ? DownloadManager.STATUS_SUCCESSFUL : DownloadManager.STATUS_FAILED,
+                    bytesDownloaded, bytesTotal);
+            if (aggregatedProgress.length() == 0) {
+                return;
+            }
+            PluginResult progressUpdate = new PluginResult(PluginResult.Status.OK, aggregatedProgress);
+            progressUpdate.setKeepCallback(true);
+            subscriber.sendPluginResult(progressUpdate);
+            bridgeMessageCount.incrementAndGet();
+        }
+    }
+
+    private synchronized void subscribeProgress(CallbackContext callbackContext) {
+        if (progressSubscriber != null) {
+            // only one subscriber is supported, the previous one is released
+            progressSubscriber.success();
+        }
+        progressSubscriber = callbackContext;
+
+        // state of all downloads is sent to the new subscriber on the next update
+        for (Download download : activeDownloads.values()) {
+            download.updateAggregatedSnapshot(-1, -1, -1);
+        }
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+
+        requestProgressUpdate(true);
+    }
+
+    private synchronized void unsubscribeProgress(CallbackContext callbackContext) {
+        if (progressSubscriber != null) {
+            progressSubscriber.success();
+            progressSubscriber = null;
+        }
+        callbackContext.success();
+    }
+
+    private void startFinalization(final Download curDownload) {
+        if (!curDownload.startFinalizing()) {
+            return;
+        }
+        curDownload.getStats().onFinalizeStarted(System.currentTimeMillis());
+        dispatchQueuedDownloads();
+        // finalization can take a while for big files so it must not block the shared timer
+        finalizationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleSuccessDownload(curDownload);
+            }
+        });
+    }
+
+    private void processStatus(final Download curDownload, int status, int reason, long bytesDownloaded, long bytesTotal) {
+        PluginResult progressUpdate;
+        JSONObject obj;
+        long now = System.currentTimeMillis();
+        if (status == DownloadManager.STATUS_RUNNING || status == DownloadManager.STATUS_PAUSED
+                || status == DownloadManager.STATUS_PENDING) {
+            curDownload.getStats().onState(getStateName(status, reason), now);
+            if (curDownload.getTransfer() == null) {
+                // in-process downloads are sampled on every chunk by the listener
+                curDownload.getStats().onBytesReceived(bytesDownloaded, now);
+            }
+        }
+        try {
+            switch (status) {
+                case DownloadManager.STATUS_FAILED:
+                    if (scheduleRetry(curDownload, reason, null)) {
+                        return;
+                    }
+                    if (cleanUp(curDownload, true)) {
+                        curDownload.reportError(reason);
+                    }
+                    return;
+                case DownloadManager.STATUS_SUCCESSFUL:
+                    startFinalization(curDownload);
+                    return;
+                case DownloadManager.STATUS_RUNNING:
+                    if (!curDownload.getProgressFilter().shouldReport(status, reason, bytesDownloaded, bytesTotal)) {
+                        return;
+                    }
+                    JSONObject jsonProgress = new JSONObject();
+                    jsonProgress.put("bytesReceived", bytesDownloaded);
+                    jsonProgress.put("totalBytesToReceive", bytesTotal);
+                    SegmentedDownload transfer = curDownload.getTransfer();
+                    if (transfer != null && (transfer.getResumedBytes() > 0 || transfer.getRefetchedBytes() > 0)) {
+                        // bytes taken from the partial file vs bytes downloaded again as the file has changed
+                        jsonProgress.put("resumedBytes", transfer.getResumedBytes());
+                        jsonProgress.put("refetchedBytes", transfer.getRefetchedBytes());
+                    }
+                    if (transfer != null) {
+                        putExtractionProgress(jsonProgress, curDownload);
+                    }
+                    putAttempt(jsonProgress, curDownload);
+                    obj = new JSONObject();
+                    obj.put("progress", jsonProgress);
+                    break;
+                case DownloadManager.STATUS_PAUSED:
+                    if (!curDownload.getProgressFilter().shouldReport(status, reason, bytesDownloaded, bytesTotal)) {
+                        return;
+                    }
+                    JSONObject pauseMessage = new JSONObject();
+                    pauseMessage.put("message", "Download paused with reason " + reason);
+                    pauseMessage.put("status", status);
+                    pauseMessage.put("reason", reason);
+                    pauseMessage.put("reasonName", getPausedReasonName(reason));
+                    putWaitingFor(pauseMessage, curDownload);
+                    obj = new JSONObject();
+                    obj.put("progress", pauseMessage);
+                    break;
+                case DownloadManager.STATUS_PENDING:
+                    if (!curDownload.getProgressFilter().shouldReport(status, reason, bytesDownloaded, bytesTotal)) {
+                        return;
+                    }
+                    JSONObject pendingMessage = new JSONObject();
+                    pendingMessage.put("message", "Download pending with reason " + reason);
+                    pendingMessage.put("status", status);
+                    pendingMessage.put("reason", reason);
+                    putWaitingFor(pendingMessage, curDownload);
+                    obj = new JSONObject();
+                    obj.put("progress", pendingMessage);
+                    break;
+                default:
+                    curDownload.reportError("Unknown download state " + status);
+                    return;
+            }
+
+            if (curDownload.isStatsReported()) {
+                obj.getJSONObject("progress").put("stats", curDownload.getStats().toJSON(now));
             }
-            return false; // invalid action
-        } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
+            progressUpdate = new PluginResult(PluginResult.Status.OK, obj);
+            progressUpdate.setKeepCallback(true);
+            curDownload.sendPluginResult(progressUpdate);
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-        return true;
     }
 
-    private void startAsync(JSONArray args, CallbackContext callbackContext) throws JSONException {
-        if (!checkPermissions(args, callbackContext)) {
+    /**
+     * Adds the entries extracted so far if the archive is being extracted.
+     */
+    private static void putExtractionProgress(JSONObject progress, Download curDownload) throws JSONException {
+        ArchiveExtractor extractor = curDownload.getExtractor();
+        if (extractor == null) {
             return;
         }
+        progress.put("entriesExtracted", extractor.getEntriesExtracted());
+        progress.put("bytesExtracted", extractor.getBytesExtracted());
+        if (extractor.getCurrentEntry() != null) {
+            progress.put("currentEntry", extractor.getCurrentEntry());
+        }
+    }
 
-        Download curDownload = Download.create(args, callbackContext);
-
-        if (activeDownloads.containsKey(curDownload.getUriString())) {
+    /**
+     * Adds the constraints of the network policy which are not met, DownloadManager does not tell which one
+     * the download is waiting for.
+     */
+    private void putWaitingFor(JSONObject message, Download curDownload) throws JSONException {
+        if (curDownload.getNetworkPolicy().isDefault()) {
             return;
         }
+        List<String> waitingFor = curDownload.getNetworkPolicy().getUnmetConstraints(getDeviceState(), false);
+        if (!waitingFor.isEmpty()) {
+            message.put("waitingFor", new JSONArray(waitingFor));
+        }
+    }
 
-        activeDownloads.put(curDownload.getUriString(), curDownload);
-        Uri source = Uri.parse(curDownload.getUriString());
-        // Uri destination = Uri.parse(this.getTemporaryFilePath());
-
-        // attempt to attach to active download for this file (download started and we close/open the app)
-        if (!attachToExistingDownload(curDownload)) {
-            try {
-                // make sure file does not exist, in other case DownloadManager will fail
-                deleteFileIfExists(curDownload.getTempFileUri());
-
-                DownloadManager mgr = getDownloadManager();
-                DownloadManager.Request request = new DownloadManager.Request(source);
-                request.setTitle(curDownload.getNotificationTitle());
-                request.setVisibleInDownloadsUi(false);
-
-                // hide notification. Not compatible with current android api.
-                // request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN);
-
-                // we use default settings for roaming and network type
-                // request.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI | DownloadManager.Request.NETWORK_MOBILE);
-                // request.setAllowedOverRoaming(false);
-
-                request.setDestinationUri(curDownload.getTempFileUri());
+    private NetworkPolicy.DeviceState getDeviceState() {
+        return new NetworkPolicy.DeviceState(cordova.getActivity().getApplicationContext());
+    }
 
-                curDownload.setDownloadId(mgr.enqueue(request));
-            } catch (Exception ex) {
-                cleanUp(curDownload, true);
-                callbackContext.error(ex.getMessage());
-                return;
-            }
+    /**
+     * @return name of the state the time is accounted to in the download stats
+     */
+    private static String getStateName(int status, int reason) {
+        switch (status) {
+            case DownloadManager.STATUS_PENDING:
+                return "pending";
+            case DownloadManager.STATUS_RUNNING:
+                return "running";
+            default:
+                return "paused:" + getPausedReasonName(reason);
         }
+    }
 
-        // custom logic to track file download progress
-        startProgressTracking(curDownload);
+    private static String getPausedReasonName(int reason) {
+        switch (reason) {
+            case DownloadManager.PAUSED_WAITING_TO_RETRY:
+                return "waitingToRetry";
+            case DownloadManager.PAUSED_WAITING_FOR_NETWORK:
+                return "waitingForNetwork";
+            case DownloadManager.PAUSED_QUEUED_FOR_WIFI:
+                return "queuedForWifi";
+            default:
+                return "unknown";
+        }
     }
 
-    private void startProgressTracking(final Download curDownload) {
-        // already started
-        if (curDownload.getTimerProgressUpdate() != null) {
-            return;
+    /**
+     * @return false if the download was already cleaned up, only the caller which cleaned it up reports the result
+     */
+    private synchronized boolean cleanUp(Download curDownload, boolean shouldDeleteTargetFile) {
+        // requests for the same file made from now on start a new download
+        if (!curDownload.complete()) {
+            return false;
         }
-        final DownloadManager mgr = getDownloadManager();
+        recordStats(curDownload, !shouldDeleteTargetFile);
 
-        curDownload.setTimerProgressUpdate(new Timer());
-        curDownload.getTimerProgressUpdate().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                DownloadManager.Query q = new DownloadManager.Query();
-                q.setFilterById(curDownload.getDownloadId());
-                Cursor cursor = mgr.query(q);
-                try {
-                    if (!cursor.moveToFirst()) {
-                        cleanUp(curDownload, true);
-                        curDownload.reportError(ERROR_CANCELED);
-                        return;
-                    }
+        if (curDownload.getTransfer() != null) {
+            curDownload.getTransfer().cancel();
+        }
 
-                    final int status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
-                    final int reason = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON));
+        if (curDownload.getDownloadId() != DOWNLOAD_ID_UNDEFINED) {
+            getDownloadManager().remove(curDownload.getDownloadId());
+        }
 
-                    PluginResult progressUpdate;
-                    JSONObject obj;
-                    switch (status) {
-                        case DownloadManager.STATUS_FAILED:
-                            cleanUp(curDownload, true);
-                            curDownload.reportError(reason);
-                            return;
-                        case DownloadManager.STATUS_SUCCESSFUL:
-                            handleSuccessDownload(curDownload);
-                            return;
-                        case DownloadManager.STATUS_RUNNING:
-                            long bytesDownloaded = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                            long bytesTotal = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-                            JSONObject jsonProgress = new JSONObject();
-                            jsonProgress.put("bytesReceived", bytesDownloaded);
-                            jsonProgress.put("totalBytesToReceive", bytesTotal);
-                            obj = new JSONObject();
-                            obj.put("progress", jsonProgress);
-                            break;
-                        case DownloadManager.STATUS_PAUSED:
-                            JSONObject pauseMessage = new JSONObject();
-                            pauseMessage.put("message", "Download paused with reason " + reason);
-                            obj = new JSONObject();
-                            obj.put("progress", pauseMessage);
-                            break;
-                        case DownloadManager.STATUS_PENDING:
-                            JSONObject pendingMessage = new JSONObject();
-                            pendingMessage.put("message", "Download pending with reason " + reason);
-                            obj = new JSONObject();
-                            obj.put("progress", pendingMessage);
-                            break;
-                        default:
-                            curDownload.reportError("Unknown download state " + status);
-                            return;
-                    }
+        scheduler.remove(curDownload);
+        activeDownloads.remove(curDownload.getUriString());
+        journal.remove(curDownload.getUriString());
+        dispatchQueuedDownloads();
+        stopProgressTrackingIfIdle();
 
-                    progressUpdate = new PluginResult(PluginResult.Status.OK, obj);
-                    progressUpdate.setKeepCallback(true);
-                    curDownload.getCallbackContext().sendPluginResult(progressUpdate);
-                } catch (JSONException e){
-                    e.printStackTrace();
-                } finally {
-                    cursor.close();
-                }
+        deleteFileIfExists(curDownload.getTempFileUri());
+
+        if (shouldDeleteTargetFile) {
+            if (curDownload.getExtractor() != null) {
+                // the target is the directory the archive is extracted to, only the extracted files are deleted
+                curDownload.getExtractor().discard();
+            } else {
+                deleteTargetFile(curDownload);
             }
-        }, DOWNLOAD_PROGRESS_UPDATE_TIMEOUT, DOWNLOAD_PROGRESS_UPDATE_TIMEOUT);
+        }
+        // the target file is kept only if the download has succeeded
+        sendAggregatedResult(curDownload, !shouldDeleteTargetFile);
+        return true;
     }
 
-    private synchronized void cleanUp(Download curDownload, boolean shouldDeleteTargetFile) {
+    private void recordStats(Download curDownload, boolean succeeded) {
+        try {
+            JSONObject obj = curDownload.getStats().toJSON(System.currentTimeMillis());
+            obj.put("uri", curDownload.getUriString());
+            obj.put("succeeded", succeeded);
+            recentStats.addLast(obj);
+            if (recentStats.size() > RECENT_STATS_SIZE) {
+                recentStats.removeFirst();
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
 
-        if (curDownload.getTimerProgressUpdate() != null) {
-            curDownload.getTimerProgressUpdate().cancel();
+    /**
+     * Places the temporary file on the same volume as the target file so that completion is a rename rather than a
+     * copy. DownloadManager can only write to external storage: if the target is there, the temporary file is a hidden
+     * sibling of the target. If the target is on a secondary volume outside of the app directory, the app directory on
+     * that volume is used for staging. Targets in internal storage are staged in the external storage root.
+     */
+    private String getTempFileUri(Uri targetFileUri) {
+        File targetFile = new File(targetFileUri.getPath());
+        String targetPath = getCanonicalPath(targetFile);
+
+        File stagingDir = android.os.Environment.getExternalStorageDirectory();
+        if (isInDirectory(targetPath, stagingDir)) {
+            return getSiblingTempFileUri(targetFile);
         }
 
-        if (curDownload.getDownloadId() != DOWNLOAD_ID_UNDEFINED) {
-            getDownloadManager().remove(curDownload.getDownloadId());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            for (File appDir : cordova.getActivity().getExternalFilesDirs(null)) {
+                // null is returned for volumes which are not currently mounted
+                if (appDir == null) {
+                    continue;
+                }
+                if (isInDirectory(targetPath, appDir)) {
+                    return getSiblingTempFileUri(targetFile);
+                }
+                String appDirPath = getCanonicalPath(appDir);
+                int idxAppData = appDirPath.indexOf("/Android/data/");
+                if (idxAppData > 0 && isInDirectory(targetPath, new File(appDirPath.substring(0, idxAppData)))) {
+                    stagingDir = appDir;
+                    break;
+                }
+            }
         }
 
-        activeDownloads.remove(curDownload.getUriString());
+        return Uri.fromFile(new File(stagingDir, targetFile.getName() + "." + System.currentTimeMillis())).toString();
+    }
 
-        deleteFileIfExists(curDownload.getTempFileUri());
+    private static String getSiblingTempFileUri(File targetFile) {
+        return Uri.fromFile(new File(targetFile.getParentFile(), "." + targetFile.getName() + ".part")).toString();
+    }
 
-        if (shouldDeleteTargetFile) {
-            deleteFileIfExists(curDownload.getTargetFileUri());
+    private static boolean isInDirectory(String path, File dir) {
+        String dirPath = getCanonicalPath(dir);
+        return path.startsWith(dirPath.endsWith(File.separator) ? dirPath : dirPath + File.separator);
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
         }
     }
 
+    private void deleteTargetFile(Download curDownload) {
+        deleteFileIfExists(curDownload.getTargetFileUri());
+        journal.removeHashVerified(new File(curDownload.getTargetFileUri().getPath()));
+    }
+
     private static boolean deleteFileIfExists(Uri fileUri) {
         File targetFile = new File(fileUri.getPath());
         return targetFile.exists() && targetFile.delete();
@@ -409,117 +2533,674 @@ public class BackgroundDownload extends CordovaPlugin {
             case ERROR_CANCELED:
                 failedReason = "CANCELED";
                 break;
+            case ERROR_HASH_MISMATCH:
+                failedReason = "HASH_MISMATCH";
+                break;
+            case ERROR_EXTRACTION_FAILED:
+                failedReason = "EXTRACTION_FAILED";
+                break;
         }
 
         return failedReason;
     }
 
     private void stop(JSONArray args, CallbackContext callbackContext) throws JSONException {
-
-        Download curDownload = activeDownloads.get(args.get(0).toString());
-        if (curDownload == null) {
+        ArrayList<Long> removedIds = new ArrayList<>();
+        if (!stopDownload(args.get(0).toString(), optTargetFileUri(args, 1), removedIds)) {
             callbackContext.error("download request not found");
             return;
         }
 
-        curDownload.cancel();
-        getDownloadManager().remove(curDownload.getDownloadId());
+        removeFromDownloadManager(removedIds);
+        callbackContext.success();
+    }
+
+    /**
+     * Stops several downloads, DownloadManager rows are removed with a single call. Unknown uris are ignored.
+     */
+    private void stopBatch(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        JSONArray uris = args.getJSONArray(0);
+        JSONArray targetFileUris = args.optJSONArray(1);
+        ArrayList<Long> removedIds = new ArrayList<>();
+        for (int i = 0; i < uris.length(); i++) {
+            stopDownload(uris.getString(i), targetFileUris != null ? optTargetFileUri(targetFileUris, i) : null,
+                    removedIds);
+        }
+
+        removeFromDownloadManager(removedIds);
         callbackContext.success();
     }
 
-    private boolean attachToExistingDownload(Download downloadItem) {
+    private static String optTargetFileUri(JSONArray args, int index) {
+        return args.isNull(index) ? null : args.optString(index, null);
+    }
+
+    /**
+     * Requests for the same file share a single transfer, so only the stopped request is detached from it. The
+     * transfer is canceled when no other request shares it.
+     *
+     * @param targetFileUri result file of the stopped request, null for the request which started the transfer
+     * @param removedIds    receives ids of the downloads which have to be removed from DownloadManager; they are
+     *                      reported as canceled once DownloadManager does not have them anymore
+     * @return false if the download is not found
+     */
+    private boolean stopDownload(String uriString, String targetFileUri, List<Long> removedIds) {
+        Download curDownload = activeDownloads.get(uriString);
+        if (curDownload == null || (targetFileUri != null && !curDownload.hasTargetFile(targetFileUri))) {
+            // request which shares the transfer of another download is detached, the transfer goes on
+            Download subscriber = removeSubscriber(uriString, targetFileUri);
+            if (subscriber == null) {
+                return false;
+            }
+            subscriber.reportError(ERROR_CANCELED);
+            return true;
+        }
+
+        Download stopped = handOver(curDownload);
+        if (stopped != null) {
+            stopped.reportError(ERROR_CANCELED);
+            return true;
+        }
+
+        curDownload.cancel();
+        if (curDownload.getDownloadId() == DOWNLOAD_ID_UNDEFINED) {
+            // download is still waiting in the queue or runs in-process, so it is not tracked by DownloadManager
+            if (cleanUp(curDownload, true)) {
+                curDownload.reportError(ERROR_CANCELED);
+            }
+        } else {
+            removedIds.add(curDownload.getDownloadId());
+        }
+        return true;
+    }
+
+    private void removeFromDownloadManager(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        long[] downloadIds = new long[ids.size()];
+        for (int i = 0; i < downloadIds.length; i++) {
+            downloadIds[i] = ids.get(i);
+        }
+        getDownloadManager().remove(downloadIds);
+    }
+
+    /**
+     * @return the request which is stopped, null if no other request shares the transfer
+     */
+    private synchronized Download handOver(Download curDownload) {
+        Download stopped = curDownload.handOver();
+        if (stopped == null || curDownload.isDetached()) {
+            return stopped;
+        }
+        if (!stopped.getUriString().equals(curDownload.getUriString())) {
+            // the new owner shares the file by its cache key
+            activeDownloads.remove(stopped.getUriString());
+            activeDownloads.put(curDownload.getUriString(), curDownload);
+            sendAggregatedResult(stopped, false);
+        }
+        if (journal.find(stopped.getUriString(), null) != null) {
+            // reattached with the uri and the result file of the new owner after restart
+            journal.remove(stopped.getUriString());
+            journalDownload(curDownload);
+        }
+        return stopped;
+    }
+
+    private synchronized Download removeSubscriber(String uriString, String targetFileUri) {
+        for (Download download : activeDownloads.values()) {
+            Download subscriber = download.removeSubscriber(uriString, targetFileUri);
+            if (subscriber != null) {
+                return subscriber;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attaches the downloads to the ones found in the journal, DownloadManager is queried once to make sure it still
+     * has them.
+     *
+     * @return the downloads which are attached
+     */
+    private HashSet<Download> attachToExistingDownloads(List<Download> downloads) {
+        HashSet<Download> attachedDownloads = new HashSet<>();
+        if (downloads.isEmpty()) {
+            return attachedDownloads;
+        }
+        if (!journal.isInitialized()) {
+            importExistingDownloads();
+        }
+
+        HashMap<Download, DownloadJournal.Entry> entries = new HashMap<>();
+        ArrayList<Long> ids = new ArrayList<>();
+        for (Download downloadItem : downloads) {
+            DownloadJournal.Entry entry = journal.find(downloadItem.getUriString(), downloadItem.getUriMatcher());
+            if (entry != null && entry.downloadId != DOWNLOAD_ID_UNDEFINED) {
+                entries.put(downloadItem, entry);
+                ids.add(entry.downloadId);
+            }
+        }
+        if (entries.isEmpty()) {
+            return attachedDownloads;
+        }
+
+        // make sure DownloadManager still has the downloads
+        long[] downloadIds = new long[ids.size()];
+        for (int i = 0; i < downloadIds.length; i++) {
+            downloadIds[i] = ids.get(i);
+        }
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(downloadIds);
+        HashMap<Long, String> existingDownloads = new HashMap<>();
+        downloadManagerQueryCount.incrementAndGet();
+        Cursor cur = getDownloadManager().query(query);
+        try {
+            int idxId = cur.getColumnIndex(DownloadManager.COLUMN_ID);
+            int idxStatus = cur.getColumnIndex(DownloadManager.COLUMN_STATUS);
+            int idxLocalUri = cur.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
+            for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext()) {
+                if (cur.getInt(idxStatus) != DownloadManager.STATUS_FAILED) {
+                    existingDownloads.put(cur.getLong(idxId), cur.getString(idxLocalUri));
+                }
+            }
+        } finally {
+            cur.close();
+        }
+
+        for (Download downloadItem : downloads) {
+            DownloadJournal.Entry entry = entries.get(downloadItem);
+            if (entry == null) {
+                continue;
+            }
+
+            if (existingDownloads.containsKey(entry.downloadId)) {
+                String localUri = existingDownloads.get(entry.downloadId);
+                if (localUri == null) {
+                    localUri = entry.tempFileUri;
+                }
+                downloadItem.setDownloadId(entry.downloadId);
+                if (localUri != null) {
+                    downloadItem.setTempFileUri(localUri);
+                }
+            }
+
+            if (!entry.uri.equals(downloadItem.getUriString()) || !downloadItem.isStarted()) {
+                journal.remove(entry.uri);
+            }
+            if (downloadItem.isStarted()) {
+                downloadItem.changeState(Download.STATE_QUEUED, Download.STATE_RUNNING);
+                downloadItem.getStats().onStarted(System.currentTimeMillis());
+                journalDownload(downloadItem);
+                attachedDownloads.add(downloadItem);
+            }
+        }
+        return attachedDownloads;
+    }
+
+    /**
+     * Records the downloads started before the journal existed, so they can still be re-attached. Performed once.
+     */
+    private void importExistingDownloads() {
         DownloadManager.Query query = new DownloadManager.Query();
         query.setFilterByStatus(DownloadManager.STATUS_PAUSED | DownloadManager.STATUS_PENDING | DownloadManager.STATUS_RUNNING  | DownloadManager.STATUS_SUCCESSFUL);
 
+        ArrayList<DownloadJournal.Entry> existingDownloads = new ArrayList<>();
+        downloadManagerQueryCount.incrementAndGet();
         Cursor cur = getDownloadManager().query(query);
+        try {
+            int idxId = cur.getColumnIndex(DownloadManager.COLUMN_ID);
+            int idxUri = cur.getColumnIndex(DownloadManager.COLUMN_URI);
+            int idxLocalUri = cur.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
 
-        int idxId = cur.getColumnIndex(DownloadManager.COLUMN_ID);
-        int idxUri = cur.getColumnIndex(DownloadManager.COLUMN_URI);
-        int idxLocalUri = cur.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
-        
-        final Pattern pattern = downloadItem.getUriMatcher() != null && !"".equals(downloadItem.getUriMatcher())
-            ? Pattern.compile(downloadItem.getUriMatcher()) : null;
-
-        for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext()) {
-            final String existingDownloadUri = cur.getString(idxUri);
-            boolean uriMatches = false;
-            if (pattern != null) {
-                Matcher mForExistingUri = pattern.matcher(existingDownloadUri);
-                Matcher mForNewUri = pattern.matcher(downloadItem.getUriString());
-                uriMatches = mForExistingUri.find() && mForNewUri.find() && 
-                        mForExistingUri.group().equals(mForNewUri.group());
-            }
-            if (uriMatches || downloadItem.getUriString().equals(cur.getString(idxUri))) {
-                downloadItem.setDownloadId(cur.getLong(idxId));
-                downloadItem.setTempFileUri(cur.getString(idxLocalUri));
-                break;
+            for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext()) {
+                existingDownloads.add(new DownloadJournal.Entry(cur.getString(idxUri), null, null, cur.getLong(idxId),
+                        cur.getString(idxLocalUri), null, ENGINE_DOWNLOAD_MANAGER, null));
+            }
+        } finally {
+            cur.close();
+        }
+
+        journal.initialize(existingDownloads);
+    }
+
+    private void journalDownload(Download curDownload) {
+        journal.put(new DownloadJournal.Entry(curDownload.getUriString(), curDownload.getUriMatcher(),
+                journal.getMatcherKey(curDownload.getUriMatcher(), curDownload.getUriString()),
+                curDownload.getDownloadId(), curDownload.getTempFileUri().toString(),
+                curDownload.getTargetFileUri().toString(), curDownload.getEngine(),
+                resumeStateToJSON(curDownload.getResumeState())));
+    }
+
+    private static JSONObject resumeStateToJSON(SegmentedDownload.ResumeState resumeState) {
+        if (resumeState == null) {
+            return null;
+        }
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("validator", resumeState.validator);
+            obj.put("totalBytes", resumeState.totalBytes);
+            obj.put("bytesReceived", resumeState.bytesReceived);
+            JSONArray positions = new JSONArray();
+            JSONArray ends = new JSONArray();
+            for (int i = 0; i < resumeState.positions.length; i++) {
+                positions.put(resumeState.positions[i]);
+                ends.put(resumeState.ends[i]);
+            }
+            obj.put("positions", positions);
+            obj.put("ends", ends);
+            return obj;
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot save resume state", e);
+            return null;
+        }
+    }
+
+    private static SegmentedDownload.ResumeState resumeStateFromJSON(JSONObject obj) throws JSONException {
+        JSONArray positions = obj.getJSONArray("positions");
+        JSONArray ends = obj.getJSONArray("ends");
+        long[] segmentPositions = new long[positions.length()];
+        long[] segmentEnds = new long[positions.length()];
+        for (int i = 0; i < segmentPositions.length; i++) {
+            segmentPositions[i] = positions.getLong(i);
+            segmentEnds[i] = ends.getLong(i);
+        }
+        return new SegmentedDownload.ResumeState(obj.isNull("validator") ? null : obj.getString("validator"),
+                obj.getLong("totalBytes"), obj.getLong("bytesReceived"), segmentPositions, segmentEnds);
+    }
+
+    /**
+     * Picks up the partial file of the in-process download paused before the app was restarted.
+     */
+    private void restorePausedTransfer(Download curDownload) {
+        DownloadJournal.Entry entry = journal.find(curDownload.getUriString(), curDownload.getUriMatcher());
+        if (entry == null || entry.resumeState == null
+                || !curDownload.getTempFileUri().toString().equals(entry.tempFileUri)
+                || !new File(curDownload.getTempFileUri().getPath()).exists()) {
+            return;
+        }
+
+        try {
+            curDownload.setResumeState(resumeStateFromJSON(entry.resumeState));
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring corrupted resume state of " + entry.uri, e);
+        }
+    }
+
+    /**
+     * Reports the plugin wide counters, the stats of the downloads in progress and of the recently completed ones.
+     */
+    private void getStats(CallbackContext callbackContext) throws JSONException {
+        long now = System.currentTimeMillis();
+        JSONObject result = new JSONObject();
+        result.put("pollCount", progressPollCount.get());
+        result.put("downloadManagerQueries", downloadManagerQueryCount.get());
+        result.put("bridgeMessages", bridgeMessageCount.get());
+        result.put("copyBufferBytesAllocated", FileCopy.getBufferBytesAllocated());
+
+        JSONArray downloads = new JSONArray();
+        JSONArray recentDownloads = new JSONArray();
+        synchronized (this) {
+            for (Download curDownload : activeDownloads.values()) {
+                JSONObject obj = curDownload.getStats().toJSON(now);
+                obj.put("uri", curDownload.getUriString());
+                downloads.put(obj);
+            }
+            for (JSONObject obj : recentStats) {
+                recentDownloads.put(obj);
+            }
+        }
+        result.put("downloads", downloads);
+        result.put("recentDownloads", recentDownloads);
+
+        callbackContext.success(result);
+    }
+
+    /**
+     * Reports all downloads recorded in the journal, including the ones not re-attached yet after the app restart.
+     */
+    private void getActiveDownloads(CallbackContext callbackContext) throws JSONException {
+        HashMap<Long, JSONObject> managedDownloads = new HashMap<>();
+        JSONArray result = new JSONArray();
+
+        for (DownloadJournal.Entry entry : journal.getEntries()) {
+            JSONObject obj = new JSONObject();
+            obj.put("uri", entry.uri);
+            obj.put("resultFile", entry.targetFileUri);
+            obj.put("engine", entry.engine);
+
+            Download curDownload;
+            synchronized (this) {
+                curDownload = activeDownloads.get(entry.uri);
+            }
+            obj.put("attached", curDownload != null);
+
+            if (entry.downloadId != DOWNLOAD_ID_UNDEFINED) {
+                managedDownloads.put(entry.downloadId, obj);
+            } else if (curDownload != null && curDownload.getTransfer() != null) {
+                SegmentedDownload transfer = curDownload.getTransfer();
+                obj.put("status", transfer.isStarted() ? DownloadManager.STATUS_RUNNING : DownloadManager.STATUS_PENDING);
+                obj.put("bytesReceived", transfer.getBytesReceived());
+                obj.put("totalBytesToReceive", transfer.getTotalBytes());
+            } else {
+                // in-process download interrupted by the app restart, it is continued by startAsync
+                obj.put("status", DownloadManager.STATUS_PAUSED);
+            }
+            result.put(obj);
+        }
+
+        if (!managedDownloads.isEmpty()) {
+            long[] ids = new long[managedDownloads.size()];
+            int i = 0;
+            for (Long id : managedDownloads.keySet()) {
+                ids[i++] = id;
+            }
+
+            DownloadManager.Query query = new DownloadManager.Query();
+            query.setFilterById(ids);
+            downloadManagerQueryCount.incrementAndGet();
+            Cursor cur = getDownloadManager().query(query);
+            try {
+                int idxId = cur.getColumnIndex(DownloadManager.COLUMN_ID);
+                int idxStatus = cur.getColumnIndex(DownloadManager.COLUMN_STATUS);
+                int idxBytesDownloaded = cur.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+                int idxBytesTotal = cur.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+
+                for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext()) {
+                    JSONObject obj = managedDownloads.remove(cur.getLong(idxId));
+                    if (obj != null) {
+                        obj.put("status", cur.getInt(idxStatus));
+                        obj.put("bytesReceived", cur.getLong(idxBytesDownloaded));
+                        obj.put("totalBytesToReceive", cur.getLong(idxBytesTotal));
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+
+            // removed from DownloadManager outside of the plugin
+            for (JSONObject obj : managedDownloads.values()) {
+                obj.put("status", DownloadManager.STATUS_FAILED);
+                journal.remove(obj.getString("uri"));
             }
         }
-        cur.close();
 
-        return downloadItem.getDownloadId() != DOWNLOAD_ID_UNDEFINED;
+        callbackContext.success(result);
     }
 
     private void handleSuccessDownload(Download curDownload) {
+        if (curDownload.getExtractor() != null) {
+            handleExtractedDownload(curDownload);
+            return;
+        }
+
         File sourceFile = new File(curDownload.getTempFileUri().getPath());
         File destFile = new File(curDownload.getTargetFileUri().getPath());
+        IntegrityCheck integrityCheck = curDownload.getIntegrityCheck();
+        int errorCode = 0;
+        long fileSize = sourceFile.length();
 
         // try to perform rename operation first
         boolean copyingSuccess = sourceFile.renameTo(destFile);
-        if (!copyingSuccess) {
-            try {
-                if (destFile.getParentFile().getUsableSpace() < sourceFile.length()) {
-                    curDownload.reportError(DownloadManager.ERROR_INSUFFICIENT_SPACE);
-                } else {
-                    copyFile(curDownload, sourceFile, destFile);
-                    copyingSuccess = true;
+        boolean isRenamed = copyingSuccess;
+        try {
+            if (copyingSuccess) {
+                // data was not read by the rename, so it is hashed in a separate pass over the mapped file
+                if (integrityCheck != null && !journal.isHashVerified(destFile, integrityCheck)) {
+                    FileCopy.hash(destFile, integrityCheck, new FinalizingProgress(curDownload));
+                    copyingSuccess = verifyHash(curDownload, destFile, integrityCheck);
                 }
-            } catch (InterruptedIOException e) {
-                curDownload.reportError(ERROR_CANCELED);
-            } catch (Exception e) {
-                curDownload.reportError("Cannot copy from temporary path to actual path");
+            } else if (destFile.getParentFile().getUsableSpace() < sourceFile.length()) {
+                errorCode = DownloadManager.ERROR_INSUFFICIENT_SPACE;
+            } else if (integrityCheck != null && !journal.isHashVerified(sourceFile, integrityCheck)) {
+                FileCopy.copy(sourceFile, destFile, integrityCheck, new FinalizingProgress(curDownload));
+                copyingSuccess = verifyHash(curDownload, destFile, integrityCheck);
+            } else {
+                FileCopy.copy(sourceFile, destFile, null, new FinalizingProgress(curDownload));
+                copyingSuccess = true;
+                if (integrityCheck != null) {
+                    journal.putHashVerified(destFile, integrityCheck);
+                }
+            }
+            if (!copyingSuccess && errorCode == 0) {
+                errorCode = ERROR_HASH_MISMATCH;
+            }
+        } catch (InterruptedIOException e) {
+            copyingSuccess = false;
+            errorCode = ERROR_CANCELED;
+        } catch (Exception e) {
+            copyingSuccess = false;
+            if (curDownload.isCompleted()) {
+                // stopped while it was finalized, the temporary file is already deleted
+                errorCode = ERROR_CANCELED;
+            } else {
                 Log.e(TAG, String.format("Error occurred while copying the file. Source: '%s'(%s), dest: '%s'", curDownload.getTempFileUri(), sourceFile.exists(), curDownload.getTargetFileUri()), e);
             }
         }
 
-        if (copyingSuccess) {
-            curDownload.getCallbackContext().success();
+        if (copyingSuccess && curDownload.getCacheKey() != null) {
+            cache.put(curDownload.getCacheKey(), destFile);
+        }
+        curDownload.getStats().onFinalizeCompleted(isRenamed ? "rename" : "copy", isRenamed ? 0 : fileSize,
+                System.currentTimeMillis());
+
+        // subscribers are reported after clean up, when no more of them can be attached
+        if (!cleanUp(curDownload, !copyingSuccess)) {
+            // stopped while it was finalized, canceled is already reported
+            return;
+        }
+
+        if (!copyingSuccess) {
+            if (errorCode != 0) {
+                curDownload.reportError(errorCode);
+            } else {
+                curDownload.reportError("Cannot copy from temporary path to actual path");
+            }
+            return;
+        }
+
+        curDownload.reportSuccess();
+        for (Download subscriber : curDownload.getSubscribers()) {
+            int subscriberErrorCode = deliverFile(subscriber, destFile);
+            if (subscriberErrorCode == 0) {
+                subscriber.reportSuccess();
+            } else {
+                subscriber.reportError(subscriberErrorCode);
+            }
+        }
+        if (curDownload.isDetached() && !isSubscriberTarget(curDownload, destFile)) {
+            // the request was stopped during finalization, the subscribers have their own copies
+            deleteTargetFile(curDownload);
         }
+    }
 
-        cleanUp(curDownload, !copyingSuccess);
+    private static boolean isSubscriberTarget(Download curDownload, File file) {
+        for (Download subscriber : curDownload.getSubscribers()) {
+            if (subscriber.hasTargetFile(Uri.fromFile(file).toString())) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void copyFile(Download curDownload, File fromFile, File toFile) throws IOException {
-        InputStream from = null;
-        OutputStream to = null;
+    /**
+     * Finishes the extraction of the archive. In-process downloads wait for the extraction which runs during the
+     * transfer, archives downloaded by DownloadManager are extracted from the temporary file instead of being copied.
+     */
+    private void handleExtractedDownload(Download curDownload) {
+        File sourceFile = new File(curDownload.getTempFileUri().getPath());
+        ArchiveExtractor extractor = curDownload.getExtractor();
+        IntegrityCheck integrityCheck = curDownload.getIntegrityCheck();
+        int errorCode = 0;
         try {
-            from = new FileInputStream(fromFile);
-            to = new FileOutputStream(toFile);
-            byte[] buf = new byte[BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = from.read(buf)) > 0) {
-                to.write(buf, 0, bytesRead);
-                if (curDownload.isCanceled()) {
-                    throw new InterruptedIOException("Copying terminated");
+            Future<?> extraction = curDownload.getExtraction();
+            if (extraction != null) {
+                extraction.get();
+            } else {
+                FileInputStream in = new FileInputStream(sourceFile);
+                try {
+                    extractor.extract(in, integrityCheck, new ExtractionProgress(curDownload, sourceFile.length()));
+                } finally {
+                    in.close();
                 }
             }
-        } finally {
-            if (from != null)
-                from.close();
-            if (to != null) {
-                try {
-                    to.close();
-                } catch (Exception ignore) {
-                    ignore.printStackTrace();
+
+            // the archive is hashed while it is extracted
+            if (integrityCheck != null) {
+                String hash = integrityCheck.getHash();
+                if (!integrityCheck.matches(hash)) {
+                    Log.w(TAG, String.format("%s mismatch for '%s': expected %s, actual %s",
+                            integrityCheck.getAlgorithm(), curDownload.getUriString(),
+                            integrityCheck.getExpectedHash(), hash));
+                    errorCode = ERROR_HASH_MISMATCH;
+                }
+            }
+            // existing files are replaced only by a verified archive
+            if (errorCode == 0) {
+                extractor.commit();
+            }
+        } catch (ExecutionException e) {
+            errorCode = e.getCause() instanceof InterruptedIOException ? ERROR_CANCELED : ERROR_EXTRACTION_FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errorCode = ERROR_CANCELED;
+        } catch (InterruptedIOException e) {
+            errorCode = ERROR_CANCELED;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Cannot extract '%s' to '%s'", sourceFile, extractor.getDirectory()), e);
+            errorCode = ERROR_EXTRACTION_FAILED;
+        }
+
+        curDownload.getStats().onFinalizeCompleted("extract", extractor.getBytesExtracted(),
+                System.currentTimeMillis());
+
+        // extracted files are deleted by the clean up if the extraction has failed
+        if (!cleanUp(curDownload, errorCode != 0)) {
+            return;
+        }
+
+        if (errorCode != 0) {
+            curDownload.reportError(errorCode);
+            return;
+        }
+
+        // subscribers extract to the same directory
+        curDownload.reportSuccess();
+        for (Download subscriber : curDownload.getSubscribers()) {
+            subscriber.reportSuccess();
+        }
+    }
+
+    /**
+     * Compares the hash computed while the file was copied or read and remembers the file as verified.
+     */
+    private boolean verifyHash(Download curDownload, File file, IntegrityCheck integrityCheck) {
+        String hash = integrityCheck.getHash();
+        if (!integrityCheck.matches(hash)) {
+            Log.w(TAG, String.format("%s mismatch for '%s': expected %s, actual %s", integrityCheck.getAlgorithm(),
+                    curDownload.getUriString(), integrityCheck.getExpectedHash(), hash));
+            return false;
+        }
+        journal.putHashVerified(file, integrityCheck);
+        return true;
+    }
+
+    /**
+     * Reports progress of the copy and hash passes of the finalization to the download callback.
+     */
+    private static class FinalizingProgress implements FileCopy.Listener {
+
+        private final Download download;
+        private long lastReportTime;
+
+        FinalizingProgress(Download download) {
+            this.download = download;
+        }
+
+        @Override
+        public void onProgress(long bytesProcessed, long bytesTotal) throws InterruptedIOException {
+            lastReportTime = reportFinalizingProgress(download, bytesProcessed, bytesTotal, lastReportTime);
+        }
+    }
+
+    /**
+     * Checks for cancellation after every extracted entry. Progress of the extraction running during the transfer is
+     * sent with the download progress, after the transfer it is reported as finalization progress.
+     */
+    private static class ExtractionProgress implements ArchiveExtractor.Listener {
+
+        private final Download download;
+        // size of the archive, -1 to take it from the transfer
+        private final long bytesTotal;
+        private long lastReportTime;
+
+        ExtractionProgress(Download download, long bytesTotal) {
+            this.download = download;
+            this.bytesTotal = bytesTotal;
+        }
+
+        @Override
+        public void onEntry(ArchiveExtractor extractor) throws InterruptedIOException {
+            if (!download.isFinalizing()) {
+                if (download.isCanceled()) {
+                    throw new InterruptedIOException("Extraction terminated");
                 }
+                return;
+            }
+
+            SegmentedDownload transfer = download.getTransfer();
+            long total = bytesTotal < 0 && transfer != null ? transfer.getTotalBytes() : bytesTotal;
+            lastReportTime = reportFinalizingProgress(download, extractor.getArchiveBytesRead(), total, lastReportTime);
+        }
+    }
+
+    /**
+     * Checks for cancellation and notifies about finalization progress at most once per DOWNLOAD_PROGRESS_UPDATE_TIMEOUT.
+     *
+     * @return time of the last notification
+     */
+    private static long reportFinalizingProgress(Download curDownload, long bytesCopied, long bytesTotal,
+            long lastReportTime) throws InterruptedIOException {
+        if (curDownload.isCanceled()) {
+            throw new InterruptedIOException("Copying terminated");
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime < DOWNLOAD_PROGRESS_UPDATE_TIMEOUT) {
+            return lastReportTime;
+        }
+
+        try {
+            JSONObject jsonProgress = new JSONObject();
+            jsonProgress.put("finalizing", true);
+            jsonProgress.put("bytesCopied", bytesCopied);
+            jsonProgress.put("totalBytesToCopy", bytesTotal);
+            putExtractionProgress(jsonProgress, curDownload);
+            if (curDownload.isStatsReported()) {
+                jsonProgress.put("stats", curDownload.getStats().toJSON(now));
             }
+            JSONObject obj = new JSONObject();
+            obj.put("progress", jsonProgress);
+
+            PluginResult progressUpdate = new PluginResult(PluginResult.Status.OK, obj);
+            progressUpdate.setKeepCallback(true);
+            curDownload.sendPluginResult(progressUpdate);
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
+        return now;
     }
 
-    private boolean checkPermissions(JSONArray args, CallbackContext callbackContext) {
+    private boolean checkPermissions(String action, JSONArray args, CallbackContext callbackContext) {
         if (!PermissionHelper.hasPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)) {
-            permissionRequests.put(permissionRequests.size(), new PermissionsRequest(args, callbackContext));
-            PermissionHelper.requestPermission(this, permissionRequests.size() - 1, Manifest.permission.WRITE_EXTERNAL_STORAGE);
+            int requestCode;
+            // requested from the action thread, answered on the UI thread
+            synchronized (permissionRequests) {
+                requestCode = permissionRequests.size();
+                permissionRequests.put(requestCode, new PermissionsRequest(action, args, callbackContext));
+            }
+            PermissionHelper.requestPermission(this, requestCode, Manifest.permission.WRITE_EXTERNAL_STORAGE);
             return false;
         }
 
@@ -527,8 +3208,11 @@ public class BackgroundDownload extends CordovaPlugin {
     }
 
     public void onRequestPermissionResult(int requestCode, String[] permissions, int[] grantResults) {
-        final PermissionsRequest permissionsRequest = permissionRequests.get(requestCode);
-        permissionRequests.remove(requestCode);
+        final PermissionsRequest permissionsRequest;
+        synchronized (permissionRequests) {
+            permissionsRequest = permissionRequests.get(requestCode);
+            permissionRequests.remove(requestCode);
+        }
         if (permissionsRequest == null) {
             return;
         }
@@ -539,7 +3223,7 @@ public class BackgroundDownload extends CordovaPlugin {
         }
 
         try {
-            startAsync(permissionsRequest.rawArgs, permissionsRequest.callbackContext);
+            execute(permissionsRequest.action, permissionsRequest.rawArgs, permissionsRequest.callbackContext);
         } catch (JSONException ex) {
             permissionsRequest.callbackContext.error(ex.getMessage());
         }
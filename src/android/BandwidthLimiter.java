@@ -0,0 +1,311 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Limits the download rate of the in-process transfers. Every transfer has a token bucket shared by its segments.
+ * The global limit is split between the transfers in proportion to their weights; a transfer with its own lower
+ * limit gets only that much and the rest is shared by the others. The allocation is work-conserving: a transfer which
+ * receives clearly less than its share, because it is stalled or the server is slow, is limited to a bit more than it
+ * receives and the unused part goes to the others. Rates are in bytes per second, 0 means unlimited.
+ *
+ * Does not depend on Android APIs so it can be exercised on a plain JVM.
+ */
+class BandwidthLimiter {
+
+    // bytes a transfer can receive at once after it was idle, as the time at the current rate
+    private static final double BURST_SECONDS = 0.2;
+    // longest wait before the rate is checked again, so changed limits take effect quickly
+    private static final long MAX_WAIT = 100;
+    // the rates received by the transfers are measured and the global limit is reallocated this often
+    private static final long REALLOCATION_INTERVAL = 500;
+    // a transfer receiving less than this part of its rate does not use its share
+    private static final double USED_SHARE = 0.8;
+    // a transfer which does not use its share may still speed up this much until the next reallocation
+    private static final double DEMAND_HEADROOM = 1.5;
+    // part of the global limit split between the transfers which do not use their share, so a stalled one can recover
+    private static final double MIN_DEMAND_SHARE = 0.1;
+
+    /**
+     * Token bucket of a single transfer. Bytes are taken after they are read, so a read can make the balance
+     * negative; the next read waits until it is paid off.
+     */
+    class Bucket {
+
+        private double weight;
+        private long maxRate;
+        private double rate;
+        private double tokens;
+        private long lastRefillTime = System.nanoTime();
+        private boolean isClosed;
+        private long bytesTaken;
+        private long measuredBytes;
+        private long measureTime = System.nanoTime();
+        // rate the transfer is able to receive, 0 if it uses its share
+        private double demand;
+
+        private Bucket(double weight, long maxRate) {
+            this.weight = weight > 0 ? weight : 1;
+            this.maxRate = maxRate;
+        }
+
+        /**
+         * Waits until the transfer may receive more data after it has received the given number of bytes.
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            reallocateIfDue();
+            synchronized (this) {
+                bytesTaken += bytes;
+                if (isClosed || rate <= 0) {
+                    return;
+                }
+                refill();
+                tokens -= bytes;
+            }
+
+            // the limiter lock is taken before the bucket lock, so the shares are reallocated between the waits
+            while (!awaitTokens()) {
+                reallocateIfDue();
+            }
+        }
+
+        /**
+         * @return true if the balance is paid off, false if it has to be waited for again
+         */
+        private synchronized boolean awaitTokens() throws InterruptedIOException {
+            if (isClosed || rate <= 0 || tokens >= 0) {
+                return true;
+            }
+            long wait = Math.max(1, Math.min(MAX_WAIT, (long) Math.ceil(-tokens * 1000 / rate)));
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Waiting for bandwidth interrupted");
+            }
+            refill();
+            return isClosed || rate <= 0 || tokens >= 0;
+        }
+
+        /**
+         * Changes the limit of the transfer, the shares of all transfers are recalculated.
+         */
+        public void setLimit(double weight, long maxRate) {
+            synchronized (BandwidthLimiter.this) {
+                synchronized (this) {
+                    this.weight = weight > 0 ? weight : 1;
+                    this.maxRate = maxRate;
+                }
+                allocate();
+            }
+        }
+
+        /**
+         * Releases the share of the transfer and wakes up the waiting segments.
+         */
+        public void close() {
+            synchronized (BandwidthLimiter.this) {
+                synchronized (this) {
+                    if (isClosed) {
+                        return;
+                    }
+                    isClosed = true;
+                    notifyAll();
+                }
+                buckets.remove(this);
+                allocate();
+            }
+        }
+
+        /**
+         * @return current rate of the transfer, 0 if it is not limited
+         */
+        public synchronized long getRate() {
+            return Math.round(rate);
+        }
+
+        private synchronized void setRate(double newRate) {
+            if (rate <= 0) {
+                // the idle time before the limit is set does not count
+                tokens = 0;
+                lastRefillTime = System.nanoTime();
+            } else {
+                refill();
+            }
+            rate = newRate;
+            tokens = Math.min(tokens, getBurst());
+            notifyAll();
+        }
+
+        /**
+         * Updates the demand from the bytes received since the last measurement. Too short a period says little
+         * about the rate, the previous demand is kept then.
+         *
+         * @param minDemand lowest rate a transfer which does not use its share is limited to
+         * @return weight and cap of the transfer for the allocation, read together with the demand
+         */
+        private synchronized Share measure(long now, double minDemand) {
+            long elapsed = now - measureTime;
+            if (elapsed >= REALLOCATION_INTERVAL * 1000000L / 2) {
+                double measuredRate = (bytesTaken - measuredBytes) * 1e9 / elapsed;
+                if (rate > 0 && measuredRate < rate * USED_SHARE) {
+                    demand = measuredRate * DEMAND_HEADROOM;
+                } else if (demand > 0) {
+                    // uses all it was limited to, it grows step by step until it gets its whole share again
+                    demand = rate * DEMAND_HEADROOM;
+                }
+                measuredBytes = bytesTaken;
+                measureTime = now;
+            }
+
+            double cap = maxRate > 0 ? maxRate : Double.MAX_VALUE;
+            if (demand > 0) {
+                cap = Math.min(cap, Math.max(minDemand, demand));
+            }
+            return new Share(this, weight, cap);
+        }
+
+        private synchronized void setRateToLimit() {
+            setRate(maxRate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(getBurst(), tokens + (now - lastRefillTime) * rate / 1e9);
+            lastRefillTime = now;
+        }
+
+        private double getBurst() {
+            return rate * BURST_SECONDS;
+        }
+    }
+
+    /**
+     * Weight and cap of a bucket as seen by a single allocation.
+     */
+    private static class Share {
+
+        private final Bucket bucket;
+        private final double weight;
+        // highest rate the transfer gets, its own limit or its demand
+        private final double cap;
+
+        private Share(Bucket bucket, double weight, double cap) {
+            this.bucket = bucket;
+            this.weight = weight;
+            this.cap = cap;
+        }
+    }
+
+    private final List<Bucket> buckets = new ArrayList<>();
+    private long maxRate;
+    private volatile long nextAllocationTime;
+
+    /**
+     * @param weight share of the global limit relative to the other transfers
+     * @param maxRate limit of the transfer, 0 if only the global limit applies
+     */
+    public synchronized Bucket register(double weight, long maxRate) {
+        Bucket bucket = new Bucket(weight, maxRate);
+        buckets.add(bucket);
+        allocate();
+        return bucket;
+    }
+
+    public synchronized void setMaxRate(long maxRate) {
+        this.maxRate = maxRate;
+        allocate();
+    }
+
+    public synchronized long getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Reallocates the global limit by the rates the transfers received recently.
+     */
+    private void reallocateIfDue() {
+        if (System.nanoTime() - nextAllocationTime < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (System.nanoTime() - nextAllocationTime >= 0) {
+                allocate();
+            }
+        }
+    }
+
+    /**
+     * Max-min fair allocation: transfers whose own limit or demand is below their weighted share of what is left get
+     * that much, the rest is split between the others by weight.
+     */
+    private void allocate() {
+        long now = System.nanoTime();
+        nextAllocationTime = now + REALLOCATION_INTERVAL * 1000000L;
+        if (maxRate <= 0) {
+            for (Bucket bucket : buckets) {
+                bucket.setRateToLimit();
+            }
+            return;
+        }
+
+        double minDemand = maxRate * MIN_DEMAND_SHARE / buckets.size();
+        ArrayList<Share> unallocated = new ArrayList<>();
+        for (Bucket bucket : buckets) {
+            unallocated.add(bucket.measure(now, minDemand));
+        }
+
+        double remainingRate = maxRate;
+        boolean isCapped = true;
+        while (isCapped && !unallocated.isEmpty()) {
+            isCapped = false;
+            double totalWeight = getTotalWeight(unallocated);
+            double capped = 0;
+            for (Iterator<Share> it = unallocated.iterator(); it.hasNext(); ) {
+                Share share = it.next();
+                if (share.cap <= remainingRate * share.weight / totalWeight) {
+                    share.bucket.setRate(share.cap);
+                    capped += share.cap;
+                    it.remove();
+                    isCapped = true;
+                }
+            }
+            remainingRate -= capped;
+        }
+
+        double totalWeight = getTotalWeight(unallocated);
+        for (Share share : unallocated) {
+            // the rate must stay positive, 0 would mean unlimited
+            share.bucket.setRate(Math.max(1, remainingRate * share.weight / totalWeight));
+        }
+    }
+
+    private static double getTotalWeight(List<Share> shares) {
+        double totalWeight = 0;
+        for (Share share : shares) {
+            totalWeight += share.weight;
+        }
+        return totalWeight;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+/**
+ * On-device cache of the downloaded files, so the same asset requested into another result file is not downloaded
+ * again. Files are keyed by uri, uriMatcher key or content hash and are stored as hard links to the result files when
+ * possible, copies otherwise. Least recently used files are evicted when the total size exceeds the limit.
+ */
+class DownloadCache {
+
+    private static final String TAG = "BackgroundDownload";
+
+    private static final String PREFERENCES_NAME = "org.apache.cordova.backgroundDownload.cache";
+    private static final String KEY_ENTRY_PREFIX = "entry:";
+    private static final String DIRECTORY_NAME = "backgroundDownloadCache";
+
+    static final long DEFAULT_MAX_SIZE = 268435456; //256MB
+
+    private static class Entry {
+
+        final String key;
+        final File file;
+        final long size;
+        final long lastModified;
+        long lastAccess;
+
+        Entry(String key, File file, long size, long lastModified, long lastAccess) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lastAccess = lastAccess;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("file", file.getAbsolutePath());
+            obj.put("size", size);
+            obj.put("lastModified", lastModified);
+            obj.put("lastAccess", lastAccess);
+            return obj;
+        }
+
+        static Entry fromJSON(String key, JSONObject obj) throws JSONException {
+            return new Entry(key, new File(obj.getString("file")), obj.getLong("size"), obj.getLong("lastModified"),
+                    obj.getLong("lastAccess"));
+        }
+
+        /**
+         * @return false if the file was removed or modified, for example through the hard linked result file
+         */
+        boolean isValid() {
+            return file.exists() && file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final File directory;
+    // access ordered, the least recently used entry goes first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize;
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    DownloadCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        // external files directory is on the same volume as the typical result files, so hard links work
+        File baseDir = context.getExternalFilesDir(null);
+        directory = new File(baseDir != null ? baseDir : context.getFilesDir(), DIRECTORY_NAME);
+
+        List<Entry> storedEntries = new ArrayList<>();
+        for (Map.Entry<String, ?> item : preferences.getAll().entrySet()) {
+            if (!item.getKey().startsWith(KEY_ENTRY_PREFIX)) {
+                continue;
+            }
+            try {
+                String key = item.getKey().substring(KEY_ENTRY_PREFIX.length());
+                storedEntries.add(Entry.fromJSON(key, new JSONObject((String) item.getValue())));
+            } catch (Exception e) {
+                Log.w(TAG, "Ignoring corrupted cache entry " + item.getKey(), e);
+            }
+        }
+        Collections.sort(storedEntries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+            }
+        });
+        for (Entry entry : storedEntries) {
+            entries.put(entry.key, entry);
+            totalSize += entry.size;
+        }
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict(null);
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the cached file or null if there is no valid file for the key
+     */
+    public synchronized File get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isValid()) {
+            remove(entry);
+            return null;
+        }
+
+        entry.lastAccess = System.currentTimeMillis();
+        save(entry);
+        return entry.file;
+    }
+
+    /**
+     * Adds the file to the cache unless it is bigger than the cache itself, then evicts the least recently used
+     * files over the limit.
+     */
+    public synchronized void put(String key, File source) {
+        long size = source.length();
+        if (maxSize <= 0 || size > maxSize) {
+            return;
+        }
+
+        Entry previousEntry = entries.get(key);
+        if (previousEntry != null) {
+            remove(previousEntry);
+        }
+
+        File file = new File(directory, getFileName(key));
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Cannot create cache directory " + directory);
+            }
+            linkOrCopy(source, file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot add " + source + " to the download cache", e);
+            file.delete();
+            return;
+        }
+
+        Entry entry = new Entry(key, file, file.length(), file.lastModified(), System.currentTimeMillis());
+        entries.put(key, entry);
+        totalSize += entry.size;
+        save(entry);
+        evict(entry);
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            remove(entry);
+        }
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("maxSize", maxSize);
+        obj.put("size", totalSize);
+        obj.put("count", entries.size());
+        return obj;
+    }
+
+    /**
+     * Hard links the file to the target, so it takes no additional space, or copies it if the file system does not
+     * support links or the files are on different volumes. Existing target is replaced.
+     */
+    static void linkOrCopy(File from, File to) throws IOException {
+        if (to.exists() && !to.delete()) {
+            throw new IOException("Cannot replace " + to);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(from.getAbsolutePath(), to.getAbsolutePath());
+                return;
+            } catch (ErrnoException e) {
+                Log.d(TAG, "Cannot link " + from + ", copying it");
+            }
+        }
+
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(to);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Cannot copy " + from);
+                }
+                position += transferred;
+            }
+        } catch (IOException e) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            to.delete();
+            throw e;
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private void evict(Entry keep) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry == keep) {
+                continue;
+            }
+            it.remove();
+            delete(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        delete(entry);
+    }
+
+    private void delete(Entry entry) {
+        totalSize -= entry.size;
+        entry.file.delete();
+        preferences.edit().remove(KEY_ENTRY_PREFIX + entry.key).apply();
+    }
+
+    private void save(Entry entry) {
+        try {
+            preferences.edit().putString(KEY_ENTRY_PREFIX + entry.key, entry.toJSON().toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot save cache entry " + entry.key, e);
+        }
+    }
+
+    /**
+     * Keys can be arbitrary strings, so the files are named after the hash of the key.
+     */
+    private static String getFileName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
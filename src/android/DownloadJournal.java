@@ -0,0 +1,370 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Persistent record of the downloads started by the plugin, so that a download can be re-attached after the app
+ * restarts with a keyed lookup instead of scanning all DownloadManager rows.
+ */
+class DownloadJournal {
+
+    private static final String TAG = "BackgroundDownload";
+
+    private static final String PREFERENCES_NAME = "org.apache.cordova.backgroundDownload.journal";
+    // set once the downloads started before the journal existed were imported from DownloadManager
+    private static final String KEY_INITIALIZED = "initialized";
+    private static final String KEY_ENTRY_PREFIX = "download:";
+    private static final String KEY_HASH_PREFIX = "hash:";
+    // verified hashes kept at most, the entries of files which were deleted or modified are dropped first
+    private static final int MAX_VERIFIED_HASHES = 256;
+
+    static class Entry {
+
+        final String uri;
+        final String uriMatcher;
+        final String matcherKey;
+        final long downloadId;
+        final String tempFileUri;
+        final String targetFileUri;
+        final String engine;
+        // state of the paused in-process download, null if it is not paused
+        final JSONObject resumeState;
+
+        Entry(String uri, String uriMatcher, String matcherKey, long downloadId, String tempFileUri,
+                String targetFileUri, String engine, JSONObject resumeState) {
+            this.uri = uri;
+            this.uriMatcher = uriMatcher;
+            this.matcherKey = matcherKey;
+            this.downloadId = downloadId;
+            this.tempFileUri = tempFileUri;
+            this.targetFileUri = targetFileUri;
+            this.engine = engine;
+            this.resumeState = resumeState;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("uri", uri);
+            obj.put("uriMatcher", uriMatcher);
+            obj.put("matcherKey", matcherKey);
+            obj.put("downloadId", downloadId);
+            obj.put("tempFileUri", tempFileUri);
+            obj.put("targetFileUri", targetFileUri);
+            obj.put("engine", engine);
+            obj.put("resumeState", resumeState);
+            return obj;
+        }
+
+        static Entry fromJSON(JSONObject obj) {
+            return new Entry(obj.optString("uri"), optString(obj, "uriMatcher"), optString(obj, "matcherKey"),
+                    obj.optLong("downloadId", -1), optString(obj, "tempFileUri"), optString(obj, "targetFileUri"),
+                    optString(obj, "engine"), obj.optJSONObject("resumeState"));
+        }
+
+        private static String optString(JSONObject obj, String name) {
+            return obj.isNull(name) ? null : obj.optString(name, null);
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private boolean isInitialized;
+    private int verifiedHashCount;
+
+    // compiled uriMatcher patterns, so every matcher is compiled once
+    private final HashMap<String, Pattern> patterns = new HashMap<>();
+    // uriMatcher -> (part of the uri selected by the matcher -> entry), built on the first lookup with the matcher
+    private final HashMap<String, HashMap<String, Entry>> matcherIndexes = new HashMap<>();
+
+    DownloadJournal(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        for (Map.Entry<String, ?> item : preferences.getAll().entrySet()) {
+            if (item.getKey().startsWith(KEY_HASH_PREFIX)) {
+                verifiedHashCount++;
+            }
+            if (!item.getKey().startsWith(KEY_ENTRY_PREFIX)) {
+                continue;
+            }
+            try {
+                Entry entry = Entry.fromJSON(new JSONObject((String) item.getValue()));
+                entries.put(entry.uri, entry);
+            } catch (Exception e) {
+                Log.w(TAG, "Ignoring corrupted journal entry " + item.getKey(), e);
+            }
+        }
+        isInitialized = preferences.contains(KEY_INITIALIZED);
+    }
+
+    public synchronized boolean isInitialized() {
+        return isInitialized;
+    }
+
+    /**
+     * Records the downloads which existed before the journal and marks the journal as initialized.
+     */
+    public synchronized void initialize(Collection<Entry> existingEntries) {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Entry entry : existingEntries) {
+            if (!entries.containsKey(entry.uri)) {
+                put(editor, entry);
+            }
+        }
+        editor.putString(KEY_INITIALIZED, "1");
+        editor.apply();
+        isInitialized = true;
+    }
+
+    /**
+     * Looks the download up by its uri, then by the part of the uri selected by the matcher. Both are hash lookups,
+     * the matcher runs only once for the requested uri.
+     */
+    public synchronized Entry find(String uri, String uriMatcher) {
+        Entry entry = entries.get(uri);
+        if (entry != null || isEmpty(uriMatcher)) {
+            return entry;
+        }
+
+        String key = getMatcherKey(uriMatcher, uri);
+        return key != null ? getMatcherIndex(uriMatcher).get(key) : null;
+    }
+
+    public synchronized Collection<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void put(Entry entry) {
+        SharedPreferences.Editor editor = preferences.edit();
+        put(editor, entry);
+        editor.apply();
+    }
+
+    public synchronized void remove(String uri) {
+        Entry entry = entries.remove(uri);
+        if (entry != null) {
+            for (Map.Entry<String, HashMap<String, Entry>> index : matcherIndexes.entrySet()) {
+                removeFromIndex(index.getValue(), index.getKey(), entry);
+            }
+            preferences.edit().remove(KEY_ENTRY_PREFIX + uri).apply();
+        }
+    }
+
+    private void put(SharedPreferences.Editor editor, Entry entry) {
+        try {
+            editor.putString(KEY_ENTRY_PREFIX + entry.uri, entry.toJSON().toString());
+            Entry previousEntry = entries.put(entry.uri, entry);
+            for (Map.Entry<String, HashMap<String, Entry>> index : matcherIndexes.entrySet()) {
+                if (previousEntry != null) {
+                    removeFromIndex(index.getValue(), index.getKey(), previousEntry);
+                }
+                addToIndex(index.getValue(), index.getKey(), entry);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot save journal entry for " + entry.uri, e);
+        }
+    }
+
+    /**
+     * @return true if the file was verified against the same hash before and was not modified since then
+     */
+    public synchronized boolean isHashVerified(File file, IntegrityCheck integrityCheck) {
+        String key = getHashKey(file, integrityCheck);
+        String value = preferences.getString(key, null);
+        if (value == null) {
+            return false;
+        }
+
+        try {
+            JSONObject obj = new JSONObject(value);
+            if (isUnchanged(obj, file)) {
+                return integrityCheck.matches(obj.optString("hash"));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring corrupted hash entry " + key, e);
+        }
+        // file was replaced or modified
+        preferences.edit().remove(key).apply();
+        verifiedHashCount--;
+        return false;
+    }
+
+    /**
+     * Remembers that the file matches the expected hash, keyed by the path, size and modification time of the file.
+     */
+    public synchronized void putHashVerified(File file, IntegrityCheck integrityCheck) {
+        String key = getHashKey(file, integrityCheck);
+        if (!preferences.contains(key)) {
+            if (verifiedHashCount >= MAX_VERIFIED_HASHES) {
+                // leaves room for more files, so the journal is not scanned on every verification
+                pruneHashVerified(MAX_VERIFIED_HASHES * 3 / 4);
+            }
+            verifiedHashCount++;
+        }
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("size", file.length());
+            obj.put("lastModified", file.lastModified());
+            obj.put("hash", integrityCheck.getExpectedHash());
+            obj.put("verified", System.currentTimeMillis());
+            preferences.edit().putString(key, obj.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot save verified hash for " + file, e);
+        }
+    }
+
+    /**
+     * Forgets the verified hashes of the file, called when the plugin deletes it.
+     */
+    public synchronized void removeHashVerified(File file) {
+        String suffix = ":" + file.getAbsolutePath();
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(KEY_HASH_PREFIX) && key.endsWith(suffix)) {
+                editor.remove(key);
+                verifiedHashCount--;
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the verified hashes of the files which were deleted or modified since they were verified.
+     */
+    public synchronized void pruneHashVerified() {
+        pruneHashVerified(MAX_VERIFIED_HASHES);
+    }
+
+    /**
+     * Drops the hashes of deleted or modified files, then the least recently verified ones over the limit.
+     */
+    private void pruneHashVerified(int maxCount) {
+        SharedPreferences.Editor editor = preferences.edit();
+        ArrayList<Map.Entry<String, Long>> validHashes = new ArrayList<>();
+        for (Map.Entry<String, ?> item : preferences.getAll().entrySet()) {
+            String key = item.getKey();
+            if (!key.startsWith(KEY_HASH_PREFIX)) {
+                continue;
+            }
+            File file = new File(key.substring(key.indexOf(':', KEY_HASH_PREFIX.length()) + 1));
+            try {
+                JSONObject obj = new JSONObject((String) item.getValue());
+                if (isUnchanged(obj, file)) {
+                    validHashes.add(new AbstractMap.SimpleEntry<>(key, obj.optLong("verified")));
+                    continue;
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring corrupted hash entry " + key, e);
+            }
+            editor.remove(key);
+        }
+
+        if (validHashes.size() > maxCount) {
+            Collections.sort(validHashes, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    return a.getValue().compareTo(b.getValue());
+                }
+            });
+            for (Map.Entry<String, Long> hash : validHashes.subList(0, validHashes.size() - maxCount)) {
+                editor.remove(hash.getKey());
+            }
+        }
+        editor.apply();
+        verifiedHashCount = Math.min(validHashes.size(), maxCount);
+    }
+
+    private static boolean isUnchanged(JSONObject hash, File file) {
+        return hash.optLong("size", -1) == file.length() && hash.optLong("lastModified", -1) == file.lastModified();
+    }
+
+    private static String getHashKey(File file, IntegrityCheck integrityCheck) {
+        return KEY_HASH_PREFIX + integrityCheck.getAlgorithm() + ":" + file.getAbsolutePath();
+    }
+
+    /**
+     * @return the part of the uri selected by the matcher or null if there is no matcher or the uri does not match
+     */
+    public synchronized String getMatcherKey(String uriMatcher, String uri) {
+        if (isEmpty(uriMatcher)) {
+            return null;
+        }
+
+        Pattern pattern = patterns.get(uriMatcher);
+        if (pattern == null) {
+            pattern = Pattern.compile(uriMatcher);
+            patterns.put(uriMatcher, pattern);
+        }
+
+        Matcher matcher = pattern.matcher(uri);
+        return matcher.find() ? matcher.group() : null;
+    }
+
+    private HashMap<String, Entry> getMatcherIndex(String uriMatcher) {
+        HashMap<String, Entry> index = matcherIndexes.get(uriMatcher);
+        if (index == null) {
+            index = new HashMap<>();
+            for (Entry entry : entries.values()) {
+                addToIndex(index, uriMatcher, entry);
+            }
+            matcherIndexes.put(uriMatcher, index);
+        }
+        return index;
+    }
+
+    private void addToIndex(HashMap<String, Entry> index, String uriMatcher, Entry entry) {
+        String key = getIndexKey(uriMatcher, entry);
+        if (key != null && !index.containsKey(key)) {
+            index.put(key, entry);
+        }
+    }
+
+    private void removeFromIndex(HashMap<String, Entry> index, String uriMatcher, Entry entry) {
+        String key = getIndexKey(uriMatcher, entry);
+        if (key != null && index.get(key) == entry) {
+            index.remove(key);
+        }
+    }
+
+    private String getIndexKey(String uriMatcher, Entry entry) {
+        // the key is already known for the entries recorded with the same matcher
+        return uriMatcher.equals(entry.uriMatcher) ? entry.matcherKey : getMatcherKey(uriMatcher, entry.uri);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || "".equals(value);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Timings and throughput of a single download. Times are in milliseconds, throughput in bytes per second.
+ * Samples come from progress updates, so for DownloadManager downloads the time to first byte and the time spent
+ * in each state are as precise as the progress polling.
+ */
+class DownloadStats {
+
+    static final String STATE_QUEUED = "queued";
+    static final String STATE_FINALIZING = "finalizing";
+
+    // time constant of the exponentially weighted moving average of the throughput
+    private static final double THROUGHPUT_TIME_CONSTANT = 5000;
+    // shorter samples are merged with the next one, so the instantaneous throughput is not dominated by noise
+    private static final long MIN_SAMPLE_INTERVAL = 100;
+
+    private final long createdTime;
+    private long startedTime = -1;
+    private long firstByteTime = -1;
+
+    private long lastSampleTime = -1;
+    private long lastSampleBytes;
+    private long bytesReceived;
+    private double throughput;
+    private double averageThroughput;
+
+    // time spent in each state, e.g. running or paused:waitingForNetwork
+    private final LinkedHashMap<String, Long> stateTimes = new LinkedHashMap<>();
+    private String state = STATE_QUEUED;
+    private long stateStartTime;
+
+    private long finalizeStartTime = -1;
+    private long finalizeEndTime = -1;
+    private String finalizeMode;
+    private long bytesCopied;
+
+    DownloadStats(long now) {
+        this.createdTime = now;
+        this.stateStartTime = now;
+    }
+
+    /**
+     * Called when the download leaves the queue and is handed over to DownloadManager or the in-process engine.
+     */
+    public synchronized void onStarted(long now) {
+        if (startedTime < 0) {
+            startedTime = now;
+        }
+    }
+
+    public synchronized void onState(String newState, long now) {
+        if (newState.equals(state)) {
+            return;
+        }
+        addStateTime(now);
+        state = newState;
+        stateStartTime = now;
+    }
+
+    public synchronized void onBytesReceived(long bytes, long now) {
+        if (bytes > 0 && firstByteTime < 0) {
+            firstByteTime = now;
+        }
+        bytesReceived = bytes;
+
+        if (lastSampleTime < 0 || bytes < lastSampleBytes) {
+            lastSampleTime = now;
+            lastSampleBytes = bytes;
+            return;
+        }
+
+        long interval = now - lastSampleTime;
+        if (interval < MIN_SAMPLE_INTERVAL) {
+            return;
+        }
+
+        throughput = (bytes - lastSampleBytes) * 1000.0 / interval;
+        // time weighted, so irregular samples are averaged correctly
+        double alpha = 1 - Math.exp(-interval / THROUGHPUT_TIME_CONSTANT);
+        averageThroughput = averageThroughput == 0
+                ? throughput : averageThroughput + alpha * (throughput - averageThroughput);
+        lastSampleTime = now;
+        lastSampleBytes = bytes;
+    }
+
+    public synchronized void onFinalizeStarted(long now) {
+        onState(STATE_FINALIZING, now);
+        finalizeStartTime = now;
+    }
+
+    /**
+     * @param mode how the file was placed to the result file: rename or copy
+     */
+    public synchronized void onFinalizeCompleted(String mode, long bytesCopied, long now) {
+        this.finalizeMode = mode;
+        this.bytesCopied = bytesCopied;
+        this.finalizeEndTime = now;
+        addStateTime(now);
+        stateStartTime = now;
+    }
+
+    public synchronized JSONObject toJSON(long now) throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("queueWait", (startedTime >= 0 ? startedTime : now) - createdTime);
+        obj.put("timeToFirstByte", firstByteTime >= 0 && startedTime >= 0 ? firstByteTime - startedTime : -1);
+        obj.put("bytesReceived", bytesReceived);
+        obj.put("throughput", Math.round(throughput));
+        obj.put("averageThroughput", Math.round(averageThroughput));
+        obj.put("elapsed", (finalizeEndTime >= 0 ? finalizeEndTime : now) - createdTime);
+
+        JSONObject times = new JSONObject();
+        for (Map.Entry<String, Long> entry : stateTimes.entrySet()) {
+            times.put(entry.getKey(), entry.getValue());
+        }
+        if (finalizeEndTime < 0) {
+            Long time = stateTimes.get(state);
+            times.put(state, (time != null ? time : 0) + now - stateStartTime);
+        }
+        obj.put("stateTimes", times);
+
+        if (finalizeStartTime >= 0) {
+            obj.put("finalizeDuration", (finalizeEndTime >= 0 ? finalizeEndTime : now) - finalizeStartTime);
+            obj.put("finalizeMode", finalizeMode);
+            obj.put("bytesCopied", bytesCopied);
+        }
+        return obj;
+    }
+
+    private void addStateTime(long now) {
+        Long time = stateTimes.get(state);
+        stateTimes.put(state, (time != null ? time : 0) + now - stateStartTime);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Copy and hash passes used to finalize downloads. They depend only on the files and a progress listener, not on
+ * the plugin or Android APIs, so they can be run and measured on a plain JVM.
+ */
+class FileCopy {
+
+    static final long CHUNK_SIZE = 8388608; //8MB
+    private static final int BUFFER_SIZE = 262144; //256KB
+    private static final int BUFFER_POOL_SIZE = 4;
+
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_POOL_SIZE, BUFFER_SIZE);
+
+    /**
+     * Called after each chunk. Throwing InterruptedIOException cancels the operation.
+     */
+    interface Listener {
+        void onProgress(long bytesProcessed, long bytesTotal) throws InterruptedIOException;
+    }
+
+    /**
+     * Small bounded pool of direct buffers shared by all copy operations. Buffers are allocated lazily, when all of
+     * them are in use callers wait for one to be released.
+     */
+    private static class BufferPool {
+
+        private final ArrayBlockingQueue<ByteBuffer> buffers;
+        private final int capacity;
+        private final int bufferSize;
+        private int allocated;
+
+        public BufferPool(int capacity, int bufferSize) {
+            this.buffers = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+            this.bufferSize = bufferSize;
+        }
+
+        public ByteBuffer acquire() throws InterruptedIOException {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+
+            synchronized (this) {
+                if (allocated < capacity) {
+                    allocated++;
+                    return ByteBuffer.allocateDirect(bufferSize);
+                }
+            }
+
+            try {
+                return buffers.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Waiting for copy buffer interrupted");
+            }
+        }
+
+        public void release(ByteBuffer buffer) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+
+        public synchronized long getAllocatedBytes() {
+            return (long) allocated * bufferSize;
+        }
+    }
+
+    private FileCopy() {
+    }
+
+    /**
+     * @return memory allocated for the pooled copy buffers
+     */
+    static long getBufferBytesAllocated() {
+        return BUFFER_POOL.getAllocatedBytes();
+    }
+
+    /**
+     * Copies the file with FileChannel.transferTo in chunks so the copy can be canceled and reports progress between
+     * chunks. Falls back to copying through a pooled direct buffer when the channel cannot transfer the data directly.
+     * When the hash has to be computed the data is always copied through the buffer, which is hashed on the way, so
+     * the file is read only once.
+     */
+    static void copy(File fromFile, File toFile, IntegrityCheck integrityCheck, Listener listener) throws IOException {
+        FileInputStream from = null;
+        FileOutputStream to = null;
+        try {
+            from = new FileInputStream(fromFile);
+            to = new FileOutputStream(toFile);
+            FileChannel source = from.getChannel();
+            FileChannel target = to.getChannel();
+
+            long size = source.size();
+            long position = 0;
+            if (integrityCheck != null) {
+                integrityCheck.reset();
+            }
+            while (integrityCheck == null && position < size) {
+                long transferred;
+                try {
+                    transferred = source.transferTo(position, Math.min(CHUNK_SIZE, size - position), target);
+                } catch (IOException e) {
+                    // not supported for this pair of files, the rest is copied through the buffer
+                    break;
+                }
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                listener.onProgress(position, size);
+            }
+
+            if (position < size) {
+                source.position(position);
+                target.position(position);
+                copyBuffered(source, target, position, size, integrityCheck, listener);
+            }
+        } finally {
+            if (from != null)
+                from.close();
+            if (to != null) {
+                try {
+                    to.close();
+                } catch (Exception ignore) {
+                    ignore.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the file in a single sequential pass over memory mapped chunks, so the data is not copied into a heap
+     * buffer first.
+     */
+    static void hash(File file, IntegrityCheck integrityCheck, Listener listener) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = 0;
+            integrityCheck.reset();
+            while (position < size) {
+                long length = Math.min(CHUNK_SIZE, size - position);
+                integrityCheck.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                position += length;
+                listener.onProgress(position, size);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copyBuffered(FileChannel source, FileChannel target, long position, long size,
+            IntegrityCheck integrityCheck, Listener listener) throws IOException {
+        ByteBuffer buffer = BUFFER_POOL.acquire();
+        try {
+            int bytesRead;
+            while ((bytesRead = source.read(buffer)) > 0) {
+                buffer.flip();
+                if (integrityCheck != null) {
+                    integrityCheck.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+                position += bytesRead;
+                listener.onProgress(position, size);
+            }
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+}
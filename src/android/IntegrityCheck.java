@@ -0,0 +1,182 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Computes hash of the downloaded data incrementally, so it can be updated in the same pass which copies the file,
+ * and compares it with the expected value. Supports MessageDigest algorithms (SHA-256, SHA-1, MD5...), CRC32 and
+ * CRC32C. Checksums are reported as 8 hex digits.
+ */
+class IntegrityCheck {
+
+    private static final int CHECKSUM_CHUNK_SIZE = 65536; //64KB
+
+    private final String algorithm;
+    private final String expectedHash;
+    private final MessageDigest digest;
+    private final Checksum checksum;
+    private byte[] checksumChunk;
+
+    private IntegrityCheck(String algorithm, String expectedHash, MessageDigest digest, Checksum checksum) {
+        this.algorithm = algorithm;
+        this.expectedHash = expectedHash.toLowerCase(Locale.US);
+        this.digest = digest;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @param algorithm hash algorithm, SHA-256 if null
+     */
+    static IntegrityCheck create(String algorithm, String expectedHash) throws NoSuchAlgorithmException {
+        if (algorithm == null || "".equals(algorithm)) {
+            algorithm = "SHA-256";
+        }
+        String name = algorithm.toUpperCase(Locale.US);
+
+        if ("CRC32".equals(name)) {
+            return new IntegrityCheck(name, expectedHash, null, new CRC32());
+        }
+        if ("CRC32C".equals(name)) {
+            return new IntegrityCheck(name, expectedHash, null, createCrc32c());
+        }
+        return new IntegrityCheck(name, expectedHash, MessageDigest.getInstance(name), null);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getExpectedHash() {
+        return expectedHash;
+    }
+
+    public void reset() {
+        if (digest != null) {
+            digest.reset();
+        } else {
+            checksum.reset();
+        }
+    }
+
+    /**
+     * Updates the hash with the remaining bytes of the buffer. Position of the buffer is not changed.
+     */
+    public void update(ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate();
+        if (digest != null) {
+            digest.update(data);
+            return;
+        }
+
+        if (data.hasArray()) {
+            checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+
+        if (checksumChunk == null) {
+            checksumChunk = new byte[CHECKSUM_CHUNK_SIZE];
+        }
+        while (data.hasRemaining()) {
+            int length = Math.min(checksumChunk.length, data.remaining());
+            data.get(checksumChunk, 0, length);
+            checksum.update(checksumChunk, 0, length);
+        }
+    }
+
+    /**
+     * @return hex encoded hash of the data passed to update
+     */
+    public String getHash() {
+        if (digest != null) {
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return hex.toString();
+        }
+        return String.format(Locale.US, "%08x", checksum.getValue());
+    }
+
+    public boolean matches(String hash) {
+        return expectedHash.equals(hash);
+    }
+
+    /**
+     * Uses java.util.zip.CRC32C when available (Android 8.0 and later), software implementation otherwise.
+     */
+    private static Checksum createCrc32c() {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").newInstance();
+        } catch (Exception e) {
+            return new Crc32c();
+        }
+    }
+
+    /**
+     * Table driven CRC-32C (Castagnoli).
+     */
+    private static class Crc32c implements Checksum {
+
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int value = crc;
+            for (int i = off; i < off + len; i++) {
+                value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xff];
+            }
+            crc = value;
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
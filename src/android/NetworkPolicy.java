@@ -0,0 +1,173 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+
+/**
+ * Network and power constraints of a download. DownloadManager enforces the constraints it supports on the device,
+ * so such downloads keep waiting for the network even when the app is closed. Constraints it does not support, and
+ * all constraints of in-process downloads, are enforced by holding the download in the plugin queue.
+ */
+class NetworkPolicy {
+
+    static final String CONSTRAINT_WIFI = "wifi";
+    static final String CONSTRAINT_NOT_ROAMING = "notRoaming";
+    static final String CONSTRAINT_UNMETERED = "unmetered";
+    static final String CONSTRAINT_CHARGING = "charging";
+    // low priority downloads held by the scheduler
+    static final String CONSTRAINT_UNMETERED_OR_CHARGING = "unmeteredOrCharging";
+
+    static final NetworkPolicy DEFAULT = new NetworkPolicy(false, true, true, false);
+
+    private final boolean isWifiOnly;
+    private final boolean isRoamingAllowed;
+    private final boolean isMeteredAllowed;
+    private final boolean isChargingRequired;
+
+    private NetworkPolicy(boolean isWifiOnly, boolean isRoamingAllowed, boolean isMeteredAllowed,
+            boolean isChargingRequired) {
+        this.isWifiOnly = isWifiOnly;
+        this.isRoamingAllowed = isRoamingAllowed;
+        this.isMeteredAllowed = isMeteredAllowed;
+        this.isChargingRequired = isChargingRequired;
+    }
+
+    static NetworkPolicy create(JSONObject options) {
+        if (options == null) {
+            return DEFAULT;
+        }
+        return new NetworkPolicy(options.optBoolean("wifiOnly", false), options.optBoolean("allowRoaming", true),
+                options.optBoolean("allowMetered", true), options.optBoolean("requiresCharging", false));
+    }
+
+    /**
+     * Device state read on first use, so a snapshot is cheap when no download has constraints.
+     */
+    static class DeviceState {
+
+        private final Context context;
+        private NetworkInfo network;
+        private boolean isNetworkLoaded;
+        private Boolean isMetered;
+        private Boolean isCharging;
+
+        DeviceState(Context context) {
+            this.context = context;
+        }
+
+        public boolean isWifi() {
+            NetworkInfo info = getNetwork();
+            return info != null && info.isConnected() && (info.getType() == ConnectivityManager.TYPE_WIFI
+                    || info.getType() == ConnectivityManager.TYPE_ETHERNET);
+        }
+
+        public boolean isRoaming() {
+            NetworkInfo info = getNetwork();
+            return info != null && info.isRoaming();
+        }
+
+        public boolean isMetered() {
+            if (isMetered == null) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    isMetered = getConnectivityManager().isActiveNetworkMetered();
+                } else {
+                    isMetered = !isWifi();
+                }
+            }
+            return isMetered;
+        }
+
+        public boolean isCharging() {
+            if (isCharging == null) {
+                // sticky broadcast, no receiver is registered
+                Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+                isCharging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            }
+            return isCharging;
+        }
+
+        private NetworkInfo getNetwork() {
+            if (!isNetworkLoaded) {
+                network = getConnectivityManager().getActiveNetworkInfo();
+                isNetworkLoaded = true;
+            }
+            return network;
+        }
+
+        private ConnectivityManager getConnectivityManager() {
+            return (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+    }
+
+    public boolean isDefault() {
+        return !isWifiOnly && isRoamingAllowed && isMeteredAllowed && !isChargingRequired;
+    }
+
+    /**
+     * Passes the constraints supported on the device to DownloadManager.
+     */
+    public void apply(DownloadManager.Request request) {
+        if (isWifiOnly) {
+            request.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI);
+        }
+        request.setAllowedOverRoaming(isRoamingAllowed);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            request.setAllowedOverMetered(isMeteredAllowed);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            request.setRequiresCharging(isChargingRequired);
+        }
+    }
+
+    /**
+     * @param isEnforcedByDownloadManager true to skip the constraints DownloadManager enforces on the device
+     * @return names of the constraints not met in the current state of the device
+     */
+    public List<String> getUnmetConstraints(DeviceState deviceState, boolean isEnforcedByDownloadManager) {
+        ArrayList<String> constraints = new ArrayList<>();
+        if (isWifiOnly && !isEnforcedByDownloadManager && !deviceState.isWifi()) {
+            constraints.add(CONSTRAINT_WIFI);
+        }
+        if (!isRoamingAllowed && !isEnforcedByDownloadManager && deviceState.isRoaming()) {
+            constraints.add(CONSTRAINT_NOT_ROAMING);
+        }
+        if (!isMeteredAllowed && !(isEnforcedByDownloadManager
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) && deviceState.isMetered()) {
+            constraints.add(CONSTRAINT_UNMETERED);
+        }
+        if (isChargingRequired && !(isEnforcedByDownloadManager && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+                && !deviceState.isCharging()) {
+            constraints.add(CONSTRAINT_CHARGING);
+        }
+        return constraints;
+    }
+}
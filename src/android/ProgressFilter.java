@@ -0,0 +1,96 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import org.json.JSONObject;
+
+import android.app.DownloadManager;
+
+/**
+ * Decides whether a progress snapshot is worth sending over the bridge. Snapshots which do not differ from the
+ * last reported one are dropped before any JSON is built.
+ */
+class ProgressFilter {
+
+    private final long minBytesDelta;
+    private final double minPercentDelta;
+    private final long minEmitInterval;
+    private final boolean stateChangesOnly;
+
+    private boolean hasReported;
+    private int lastStatus;
+    private int lastReason;
+    private long lastBytesDownloaded;
+    private long lastBytesTotal;
+    private long lastReportTime;
+
+    public static ProgressFilter create(JSONObject options) {
+        if (options == null) {
+            return new ProgressFilter(0, 0, 0, false);
+        }
+
+        double maxEmitRate = options.optDouble("maxEmitRate", 0);
+        return new ProgressFilter(
+                options.optLong("minBytesDelta", 0),
+                options.optDouble("minPercentDelta", 0),
+                maxEmitRate > 0 ? (long) (1000 / maxEmitRate) : 0,
+                options.optBoolean("stateChangesOnly", false));
+    }
+
+    public ProgressFilter(long minBytesDelta, double minPercentDelta, long minEmitInterval, boolean stateChangesOnly) {
+        this.minBytesDelta = minBytesDelta;
+        this.minPercentDelta = minPercentDelta;
+        this.minEmitInterval = minEmitInterval;
+        this.stateChangesOnly = stateChangesOnly;
+    }
+
+    public synchronized boolean shouldReport(int status, int reason, long bytesDownloaded, long bytesTotal) {
+        long now = System.currentTimeMillis();
+
+        // state changes are always reported
+        boolean stateChanged = !hasReported || status != lastStatus || reason != lastReason;
+        if (!stateChanged) {
+            if (stateChangesOnly || status != DownloadManager.STATUS_RUNNING) {
+                return false;
+            }
+            if (bytesDownloaded == lastBytesDownloaded && bytesTotal == lastBytesTotal) {
+                return false;
+            }
+
+            long bytesDelta = Math.abs(bytesDownloaded - lastBytesDownloaded);
+            if (bytesDelta < minBytesDelta) {
+                return false;
+            }
+            if (minPercentDelta > 0 && bytesTotal > 0 && bytesDelta * 100.0 / bytesTotal < minPercentDelta) {
+                return false;
+            }
+            if (now - lastReportTime < minEmitInterval) {
+                return false;
+            }
+        }
+
+        hasReported = true;
+        lastStatus = status;
+        lastReason = reason;
+        lastBytesDownloaded = bytesDownloaded;
+        lastBytesTotal = bytesTotal;
+        lastReportTime = now;
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.DownloadManager;
+
+/**
+ * Decides whether a failed download is started again and how long it waits before that. The delay grows
+ * exponentially with the attempt and half of it is random, so clients which failed at the same time, for example
+ * because of the same CDN outage, do not retry at the same time.
+ */
+class RetryPolicy {
+
+    static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1, new HashSet<Integer>());
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_INITIAL_DELAY = 1000;
+    private static final long DEFAULT_MAX_DELAY = 60000;
+    private static final double DEFAULT_MULTIPLIER = 2;
+    private static final int[] DEFAULT_RETRYABLE_REASONS = {
+            DownloadManager.ERROR_HTTP_DATA_ERROR,
+            DownloadManager.ERROR_CANNOT_RESUME,
+            HttpURLConnection.HTTP_INTERNAL_ERROR,
+            HttpURLConnection.HTTP_BAD_GATEWAY,
+            HttpURLConnection.HTTP_UNAVAILABLE,
+            HttpURLConnection.HTTP_GATEWAY_TIMEOUT
+    };
+
+    private static final Random RANDOM = new Random();
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final HashSet<Integer> retryableReasons;
+
+    private RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double multiplier,
+            HashSet<Integer> retryableReasons) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.retryableReasons = retryableReasons;
+    }
+
+    /**
+     * @param options retry settings: maxAttempts, initialDelay, maxDelay, multiplier and retryOn, null if failed
+     *                downloads are not retried
+     */
+    static RetryPolicy create(JSONObject options) throws JSONException {
+        if (options == null) {
+            return NONE;
+        }
+
+        HashSet<Integer> retryableReasons = new HashSet<>();
+        JSONArray reasons = options.optJSONArray("retryOn");
+        if (reasons != null) {
+            for (int i = 0; i < reasons.length(); i++) {
+                retryableReasons.add(reasons.getInt(i));
+            }
+        } else {
+            for (int reason : DEFAULT_RETRYABLE_REASONS) {
+                retryableReasons.add(reason);
+            }
+        }
+
+        return new RetryPolicy(Math.max(1, options.optInt("maxAttempts", DEFAULT_MAX_ATTEMPTS)),
+                Math.max(0, options.optLong("initialDelay", DEFAULT_INITIAL_DELAY)),
+                Math.max(0, options.optLong("maxDelay", DEFAULT_MAX_DELAY)),
+                Math.max(1, options.optDouble("multiplier", DEFAULT_MULTIPLIER)), retryableReasons);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt number of the attempt which has failed, starting from 1
+     * @param reason DownloadManager error or HTTP status code the attempt failed with
+     */
+    public boolean shouldRetry(int attempt, int reason) {
+        return attempt < maxAttempts && retryableReasons.contains(reason);
+    }
+
+    /**
+     * @param attempt number of the attempt which has failed, starting from 1
+     * @return delay before the next attempt in milliseconds, between half of the exponential delay and all of it
+     */
+    public long getDelay(int attempt) {
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt - 1));
+        return Math.round(delay / 2 + RANDOM.nextDouble() * delay / 2);
+    }
+}
@@ -0,0 +1,668 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-process alternative to DownloadManager. The file is split into several HTTP Range segments which are fetched in
+ * parallel and written into a preallocated file with positional writes. Falls back to a single stream when the server
+ * does not support ranges or does not report the file size.
+ *
+ * A paused download keeps the partial file; it is resumed with If-Range requests, so the download is restarted only if
+ * the file has changed on the server since it was paused.
+ *
+ * Does not depend on Android APIs so it can be exercised against a local HTTP server on a plain JVM.
+ */
+class SegmentedDownload {
+
+    interface Listener {
+        void onProgress(SegmentedDownload download);
+
+        void onComplete(SegmentedDownload download);
+
+        void onPaused(SegmentedDownload download);
+
+        /**
+         * @param httpStatus HTTP status code if the server responded with an error, 0 for I/O errors
+         */
+        void onError(SegmentedDownload download, int httpStatus, Exception e);
+    }
+
+    private static final int BUFFER_SIZE = 65536; //64KB
+    private static final long MIN_SEGMENT_SIZE = 1048576; //1MB
+    private static final int TIMEOUT = 30000;
+    // longest wait of the content stream before the transfer state is checked again
+    private static final long CONTENT_WAIT = 100;
+
+    /**
+     * Everything needed to resume a paused download: the validator of the file, its size and the byte ranges which
+     * are not downloaded yet.
+     */
+    static class ResumeState {
+
+        // ETag of the file or its Last-Modified date if there is no strong ETag
+        final String validator;
+        final long totalBytes;
+        final long bytesReceived;
+        // next byte to download and last byte of every segment, the last byte is -1 when the size is unknown
+        final long[] positions;
+        final long[] ends;
+
+        ResumeState(String validator, long totalBytes, long bytesReceived, long[] positions, long[] ends) {
+            this.validator = validator;
+            this.totalBytes = totalBytes;
+            this.bytesReceived = bytesReceived;
+            this.positions = positions;
+            this.ends = ends;
+        }
+    }
+
+    private static class HttpStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private HttpStatusException(int status) {
+            super("Unexpected HTTP status " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Byte range [start, end] of the file fetched by a single connection. End is -1 when the size is unknown.
+     */
+    private class Segment implements Runnable {
+
+        private final long start;
+        private final long end;
+        // next byte to download
+        private volatile long position;
+        private volatile HttpURLConnection connection;
+
+        private Segment(long start, long end, HttpURLConnection connection) {
+            this.start = start;
+            this.end = end;
+            this.position = start;
+            this.connection = connection;
+        }
+
+        private boolean isCompleted() {
+            return end >= 0 && position > end;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (connection == null) {
+                    connection = open(start, end);
+                    int status = connection.getResponseCode();
+                    // full file in response to If-Range means the file has changed during the download
+                    if (status != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new HttpStatusException(status);
+                    }
+                }
+                read(this);
+            } catch (Exception e) {
+                // the other segments fail because of the abort, so only the first error is the cause
+                error.compareAndSet(null, e);
+                // no reason to continue other segments
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Reads the file from the beginning while it is being downloaded, waiting until the next bytes are written.
+     * Segments after the first one are read once all bytes before them are received.
+     */
+    private class ContentStream extends InputStream {
+
+        private FileInputStream in;
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = awaitContent(position);
+            if (available <= position) {
+                return -1;
+            }
+            if (in == null) {
+                in = new FileInputStream(file);
+            }
+            int bytesRead = in.read(b, off, (int) Math.min(len, available - position));
+            if (bytesRead > 0) {
+                position += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private final URL url;
+    private final File file;
+    private final int maxSegments;
+    private final ResumeState resumeState;
+    private final Listener listener;
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final List<Segment> segments = new ArrayList<>();
+    private volatile long totalBytes = -1;
+    private volatile String validator;
+    private volatile long resumedBytes;
+    private volatile long refetchedBytes;
+    private volatile boolean isStarted;
+    private volatile boolean isCanceled;
+    private volatile boolean isPaused;
+    private volatile boolean isAborted;
+    private volatile boolean isCompleted;
+    // first error of a segment, the one which aborted the others
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+    private final Object contentLock = new Object();
+    private volatile BandwidthLimiter.Bucket bandwidth;
+    private FileChannel channel;
+    private final Executor segmentExecutor;
+
+    /**
+     * @param resumeState     state of the paused download to continue or null to start from the beginning
+     * @param segmentExecutor runs the segments other than the first one; a segment it rejects is downloaded on the
+     *                        thread of the transfer after the first one
+     */
+    SegmentedDownload(URL url, File file, int maxSegments, ResumeState resumeState, Executor segmentExecutor,
+            Listener listener) {
+        this.url = url;
+        this.file = file;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.resumeState = resumeState;
+        this.segmentExecutor = segmentExecutor;
+        this.listener = listener;
+    }
+
+    /**
+     * Limits the rate of the transfer, must be set before it is started. The bucket is closed when the transfer
+     * stops.
+     */
+    public void setBandwidth(BandwidthLimiter.Bucket bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public BandwidthLimiter.Bucket getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @param executor runs the transfer, it may wait there until a thread is free
+     */
+    public void start(Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                execute();
+            }
+        });
+    }
+
+    /**
+     * Stops the transfer. The listener is not notified.
+     */
+    public void cancel() {
+        isCanceled = true;
+        abort();
+    }
+
+    /**
+     * Stops the transfer keeping the partial file, the listener is notified with onPaused when the transfer is
+     * stopped. If the transfer completes in the meantime onComplete is called instead.
+     */
+    public void pause() {
+        isPaused = true;
+        abort();
+    }
+
+    /**
+     * @return state to resume the paused download from or null if it has to be started from the beginning
+     */
+    public ResumeState getResumeState() {
+        synchronized (segments) {
+            if (segments.isEmpty()) {
+                // paused before the segments were created
+                return resumeState;
+            }
+            long[] positions = new long[segments.size()];
+            long[] ends = new long[segments.size()];
+            for (int i = 0; i < segments.size(); i++) {
+                positions[i] = segments.get(i).position;
+                ends[i] = segments.get(i).end;
+            }
+            return new ResumeState(validator, totalBytes, bytesReceived.get(), positions, ends);
+        }
+    }
+
+    public boolean isStarted() {
+        return isStarted;
+    }
+
+    /**
+     * @return number of bytes taken from the partial file of the paused download
+     */
+    public long getResumedBytes() {
+        return resumedBytes;
+    }
+
+    /**
+     * @return number of bytes downloaded before the download was paused and discarded because the file has changed
+     * on the server
+     */
+    public long getRefetchedBytes() {
+        return refetchedBytes;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return size of the file or -1 if the server did not report it
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a stream of the file content which follows the transfer, so the file can be processed while it is being
+     * downloaded. The stream ends when the transfer completes and fails with InterruptedIOException when it is
+     * stopped or paused.
+     */
+    public InputStream openContentStream() {
+        return new ContentStream();
+    }
+
+    /**
+     * @return position up to which the file is completely received, Long.MAX_VALUE if all segments are completed
+     */
+    private long getContiguousBytes() {
+        if (!isStarted) {
+            return 0;
+        }
+        synchronized (segments) {
+            long contiguousBytes = Long.MAX_VALUE;
+            // bytes outside of the remaining segments were received before the download was paused
+            for (Segment segment : segments) {
+                if (!segment.isCompleted()) {
+                    contiguousBytes = Math.min(contiguousBytes, segment.position);
+                }
+            }
+            return contiguousBytes;
+        }
+    }
+
+    /**
+     * @return position up to which the file can be read, not greater than the given position at the end of the file
+     */
+    private long awaitContent(long position) throws InterruptedIOException {
+        synchronized (contentLock) {
+            while (true) {
+                if (isCompleted) {
+                    return getContiguousBytes();
+                }
+                if (isAborted) {
+                    throw new InterruptedIOException("Download stopped");
+                }
+                long contiguousBytes = getContiguousBytes();
+                if (contiguousBytes > position) {
+                    return contiguousBytes;
+                }
+                try {
+                    contentLock.wait(CONTENT_WAIT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Waiting for download content interrupted");
+                }
+            }
+        }
+    }
+
+    private void notifyContent() {
+        synchronized (contentLock) {
+            contentLock.notifyAll();
+        }
+    }
+
+    private void execute() {
+        RandomAccessFile raf = null;
+        try {
+            if (isAborted) {
+                // stopped or paused while waiting for a thread
+                throw new IOException("Download aborted");
+            }
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+
+            if (resumeState == null || !resumeSegments()) {
+                startSegments(raf);
+            }
+            if (isAborted) {
+                throw new IOException("Download aborted");
+            }
+
+            isStarted = true;
+            runSegments();
+
+            raf.close();
+            raf = null;
+            isCompleted = true;
+            notifyContent();
+
+            if (!isCanceled) {
+                listener.onComplete(this);
+            }
+        } catch (HttpStatusException e) {
+            if (isPaused && !isCanceled) {
+                listener.onPaused(this);
+            } else if (!isCanceled) {
+                listener.onError(this, e.status, e);
+            }
+        } catch (Exception e) {
+            if (isPaused && !isCanceled) {
+                listener.onPaused(this);
+            } else if (!isCanceled) {
+                listener.onError(this, 0, e);
+            }
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                    ignore.printStackTrace();
+                }
+            }
+            if (bandwidth != null) {
+                bandwidth.close();
+            }
+        }
+    }
+
+    private void startSegments(RandomAccessFile raf) throws IOException {
+        // the first request also tells whether the server supports ranges and reports the file size
+        HttpURLConnection connection = open(0, -1);
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new HttpStatusException(status);
+        }
+
+        long total = status == HttpURLConnection.HTTP_PARTIAL
+                ? parseContentRangeTotal(connection.getHeaderField("Content-Range"))
+                : parseLong(connection.getHeaderField("Content-Length"));
+        totalBytes = total;
+        validator = getValidator(connection);
+
+        synchronized (segments) {
+            segments.clear();
+            if (status == HttpURLConnection.HTTP_PARTIAL && total > 0) {
+                raf.setLength(total);
+                int count = (int) Math.min(maxSegments, Math.max(1, total / MIN_SEGMENT_SIZE));
+                long segmentSize = (total + count - 1) / count;
+                for (int i = 0; i < count; i++) {
+                    long start = i * segmentSize;
+                    long end = Math.min(total, start + segmentSize) - 1;
+                    // first segment reuses the connection which is already open
+                    segments.add(new Segment(start, end, i == 0 ? connection : null));
+                }
+            } else {
+                raf.setLength(0);
+                segments.add(new Segment(0, -1, connection));
+            }
+        }
+        if (isAborted) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Requests the first remaining range with If-Range. Partial content means the file has not changed on the
+     * server and the remaining ranges are downloaded, the full file means it has changed.
+     *
+     * @return false if the download has to be started from the beginning
+     */
+    private boolean resumeSegments() throws IOException {
+        if (resumeState.validator == null) {
+            // there is no way to tell whether the partial file is still valid
+            refetchedBytes = resumeState.bytesReceived;
+            return false;
+        }
+        validator = resumeState.validator;
+        totalBytes = resumeState.totalBytes;
+
+        ArrayList<Segment> remainingSegments = new ArrayList<>();
+        for (int i = 0; i < resumeState.positions.length; i++) {
+            Segment segment = new Segment(resumeState.positions[i], resumeState.ends[i], null);
+            if (!segment.isCompleted()) {
+                remainingSegments.add(segment);
+            }
+        }
+
+        if (!remainingSegments.isEmpty()) {
+            Segment first = remainingSegments.get(0);
+            HttpURLConnection connection = open(first.start, first.end);
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                refetchedBytes = resumeState.bytesReceived;
+                validator = null;
+                return false;
+            }
+            if (status != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new HttpStatusException(status);
+            }
+            first.connection = connection;
+        }
+
+        resumedBytes = resumeState.bytesReceived;
+        bytesReceived.set(resumeState.bytesReceived);
+        synchronized (segments) {
+            segments.clear();
+            segments.addAll(remainingSegments);
+        }
+        if (isAborted && !remainingSegments.isEmpty()) {
+            remainingSegments.get(0).connection.disconnect();
+        }
+        return true;
+    }
+
+    private void runSegments() throws Exception {
+        if (segments.isEmpty()) {
+            // resumed download was paused after all data had been received
+            return;
+        }
+
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        List<Segment> deferredSegments = new ArrayList<>();
+        for (int i = 1; i < segments.size(); i++) {
+            FutureTask<Void> task = new FutureTask<>(segments.get(i), null);
+            try {
+                segmentExecutor.execute(task);
+                tasks.add(task);
+            } catch (RejectedExecutionException e) {
+                // all segment threads are busy
+                deferredSegments.add(segments.get(i));
+            }
+        }
+
+        // the first segment is downloaded on the current thread, then the ones which did not get a thread
+        segments.get(0).run();
+        for (Segment segment : deferredSegments) {
+            if (!isAborted) {
+                segment.run();
+            }
+        }
+
+        for (FutureTask<Void> task : tasks) {
+            task.get();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+        if (isAborted) {
+            throw new IOException("Download aborted");
+        }
+    }
+
+    private void read(Segment segment) throws IOException {
+        InputStream in = segment.connection.getInputStream();
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long position = segment.position;
+            while (segment.end < 0 || position <= segment.end) {
+                int toRead = segment.end < 0 ? buf.length : (int) Math.min(buf.length, segment.end - position + 1);
+                int bytesRead = in.read(buf, 0, toRead);
+                if (bytesRead < 0) {
+                    break;
+                }
+                if (isAborted) {
+                    throw new IOException("Download aborted");
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(buf, 0, bytesRead);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                segment.position = position;
+                notifyContent();
+                bytesReceived.addAndGet(bytesRead);
+                listener.onProgress(this);
+                if (bandwidth != null) {
+                    bandwidth.acquire(bytesRead);
+                }
+            }
+
+            if (segment.end >= 0 && position <= segment.end) {
+                throw new IOException("Connection closed before the segment was completed");
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+                // connection is closed anyway
+            }
+            segment.connection.disconnect();
+        }
+    }
+
+    private void abort() {
+        isAborted = true;
+        notifyContent();
+        if (bandwidth != null) {
+            // segments waiting for bandwidth stop right away
+            bandwidth.close();
+        }
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                if (segment.connection != null) {
+                    segment.connection.disconnect();
+                }
+            }
+        }
+    }
+
+    private HttpURLConnection open(long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+        if (validator != null) {
+            connection.setRequestProperty("If-Range", validator);
+        }
+        // ranges are meaningless for transparently compressed content
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    /**
+     * @return strong ETag or Last-Modified date which can be used in If-Range, null if there is none
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        // weak ETags cannot be used with If-Range
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Parses total size from "bytes 0-1023/146515" header value.
+     */
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int idx = contentRange.lastIndexOf('/');
+        return idx < 0 ? -1 : parseLong(contentRange.substring(idx + 1));
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
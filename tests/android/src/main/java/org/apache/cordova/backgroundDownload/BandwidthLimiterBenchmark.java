@@ -0,0 +1,98 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead the rate limiter adds to every chunk read by the segments of a transfer, and the cost of recalculating the
+ * shares when a limit changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandwidthLimiterBenchmark {
+
+    private static final int CHUNK_SIZE = 65536;
+    // high enough that the segments never wait, so only the bookkeeping is measured
+    private static final long UNREACHABLE_RATE = 1L << 50;
+
+    @Param({ "4", "64" })
+    public int transfers;
+
+    private BandwidthLimiter limiter;
+    private BandwidthLimiter.Bucket unlimited;
+    private BandwidthLimiter.Bucket limited;
+    private BandwidthLimiter.Bucket[] buckets;
+    private int nextBucket;
+
+    @Setup(Level.Trial)
+    public void registerTransfers() {
+        limiter = new BandwidthLimiter();
+        unlimited = new BandwidthLimiter().register(1, 0);
+        limiter.setMaxRate(UNREACHABLE_RATE);
+        buckets = new BandwidthLimiter.Bucket[transfers];
+        for (int i = 0; i < transfers; i++) {
+            buckets[i] = limiter.register(1 + i % 3, i % 4 == 0 ? UNREACHABLE_RATE / transfers / 8 : 0);
+        }
+        limited = buckets[transfers - 1];
+    }
+
+    /**
+     * Four segments of the same transfer without any limit.
+     */
+    @Benchmark
+    @Threads(4)
+    public void acquireUnlimited() throws InterruptedIOException {
+        unlimited.acquire(CHUNK_SIZE);
+    }
+
+    /**
+     * Four segments of the same transfer sharing its token bucket.
+     */
+    @Benchmark
+    @Threads(4)
+    public void acquireLimited() throws InterruptedIOException {
+        limited.acquire(CHUNK_SIZE);
+    }
+
+    @Benchmark
+    public void setLimit() {
+        BandwidthLimiter.Bucket bucket = buckets[nextBucket++ % buckets.length];
+        bucket.setLimit(1 + nextBucket % 3, 0);
+    }
+}
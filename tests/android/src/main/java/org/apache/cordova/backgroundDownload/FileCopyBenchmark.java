@@ -0,0 +1,162 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finalization copy and hash passes of FileCopy against the stream copy the plugin used before and against the NIO
+ * alternatives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCopyBenchmark {
+
+    // buffer of the copy loop the plugin used before FileCopy
+    private static final int STREAM_BUFFER_SIZE = 16777216;
+
+    private static final FileCopy.Listener NO_PROGRESS = new FileCopy.Listener() {
+        @Override
+        public void onProgress(long bytesProcessed, long bytesTotal) {
+        }
+    };
+
+    @Param({ "1048576", "16777216", "67108864" })
+    public int size;
+
+    private File dir;
+    private File source;
+    private File target;
+    private IntegrityCheck integrityCheck;
+
+    @Setup(Level.Trial)
+    public void createFile() throws Exception {
+        dir = Files.createTempDirectory("filecopy").toFile();
+        source = new File(dir, "source");
+        target = new File(dir, "target");
+
+        byte[] chunk = new byte[1048576];
+        new Random(size).nextBytes(chunk);
+        OutputStream out = new FileOutputStream(source);
+        try {
+            for (int written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        integrityCheck = IntegrityCheck.create("SHA-256", "00");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        source.delete();
+        target.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        InputStream from = new FileInputStream(source);
+        OutputStream to = new FileOutputStream(target);
+        try {
+            byte[] buf = new byte[STREAM_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = from.read(buf)) > 0) {
+                to.write(buf, 0, bytesRead);
+            }
+        } finally {
+            from.close();
+            to.close();
+        }
+        return target.length();
+    }
+
+    @Benchmark
+    public long filesCopy() throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target.length();
+    }
+
+    @Benchmark
+    public long transferToCopy() throws IOException {
+        FileCopy.copy(source, target, null, NO_PROGRESS);
+        return target.length();
+    }
+
+    @Benchmark
+    public String hashedCopy() throws IOException {
+        FileCopy.copy(source, target, integrityCheck, NO_PROGRESS);
+        return integrityCheck.getHash();
+    }
+
+    /**
+     * Copy followed by a separate hash pass over the stream, as it was done before the hash was computed on the way.
+     */
+    @Benchmark
+    public byte[] streamCopyThenHash() throws Exception {
+        streamCopy();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        InputStream in = new FileInputStream(target);
+        try {
+            byte[] buf = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = in.read(buf)) > 0) {
+                digest.update(buf, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    @Benchmark
+    public String mappedHash() throws IOException {
+        FileCopy.hash(source, integrityCheck, NO_PROGRESS);
+        return integrityCheck.getHash();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.Activity;
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+
+/**
+ * Runs BackgroundDownload the way Cordova does: actions are called with JSON arguments and the results are collected
+ * from the callbacks. DownloadManager and the network state are in-memory stand-ins controlled by the test.
+ */
+public class PluginHarness {
+
+    private static final long DEFAULT_TIMEOUT = 10000;
+
+    /**
+     * Records every result sent to the callback, including the ones sent after the final result.
+     */
+    public static class Callback extends CallbackContext {
+
+        private final List<PluginResult> results = new ArrayList<>();
+        private PluginResult finalResult;
+        private int lateResults;
+
+        public Callback(String callbackId) {
+            super(callbackId, null);
+        }
+
+        @Override
+        public synchronized boolean isFinished() {
+            return finalResult != null;
+        }
+
+        @Override
+        public synchronized void sendPluginResult(PluginResult pluginResult) {
+            if (finalResult != null) {
+                lateResults++;
+                return;
+            }
+            results.add(pluginResult);
+            if (!pluginResult.getKeepCallback()) {
+                finalResult = pluginResult;
+            }
+            notifyAll();
+        }
+
+        /**
+         * @return the final result, the test fails if there is none within the timeout
+         */
+        public synchronized PluginResult await(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (finalResult == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new AssertionError("No result for " + getCallbackId() + " within " + timeout + " ms, got "
+                            + describe(results));
+                }
+                wait(wait);
+            }
+            return finalResult;
+        }
+
+        public PluginResult await() throws InterruptedException {
+            return await(DEFAULT_TIMEOUT);
+        }
+
+        /**
+         * Waits for a kept-alive result whose message contains the given text.
+         */
+        public synchronized PluginResult awaitProgress(String text, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                for (PluginResult result : results) {
+                    if (result.getKeepCallback() && result.getMessage().contains(text)) {
+                        return result;
+                    }
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || finalResult != null) {
+                    throw new AssertionError("No progress with " + text + " for " + getCallbackId() + ", got "
+                            + describe(results));
+                }
+                wait(wait);
+            }
+        }
+
+        public synchronized PluginResult getFinalResult() {
+            return finalResult;
+        }
+
+        public synchronized List<PluginResult> getResults() {
+            return new ArrayList<>(results);
+        }
+
+        /**
+         * @return number of results sent after the final one, always an error of the plugin
+         */
+        public synchronized int getLateResults() {
+            return lateResults;
+        }
+
+        public boolean isSuccess() {
+            PluginResult result = getFinalResult();
+            return result != null && result.getStatus() == PluginResult.Status.OK.ordinal();
+        }
+
+        public String getError() {
+            PluginResult result = getFinalResult();
+            return result != null && result.getStatus() == PluginResult.Status.ERROR.ordinal()
+                    ? result.getStrMessage() : null;
+        }
+
+        private static String describe(List<PluginResult> results) {
+            StringBuilder sb = new StringBuilder("[");
+            for (PluginResult result : results) {
+                sb.append(result.getStatus()).append(':').append(result.getMessage()).append(' ');
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private final Activity activity;
+    private final DownloadManager downloadManager;
+    private final ConnectivityManager connectivityManager;
+    private final CordovaPreferences preferences;
+    // Cordova runs the plugin actions on a cached thread pool as well
+    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final BackgroundDownload plugin = new BackgroundDownload();
+    private int nextCallbackId;
+
+    public PluginHarness() {
+        this(new CordovaPreferences());
+    }
+
+    public PluginHarness(CordovaPreferences preferences) {
+        this(new Activity(), new DownloadManager(), new ConnectivityManager(), preferences);
+    }
+
+    private PluginHarness(Activity activity, DownloadManager downloadManager, ConnectivityManager connectivityManager,
+            CordovaPreferences preferences) {
+        this.activity = activity;
+        this.downloadManager = downloadManager;
+        this.connectivityManager = connectivityManager;
+        this.preferences = preferences;
+        activity.addSystemService(Context.DOWNLOAD_SERVICE, downloadManager);
+        activity.addSystemService(Context.CONNECTIVITY_SERVICE, connectivityManager);
+        plugin.privateInitialize("BackgroundDownload", new CordovaInterface() {
+            @Override
+            public Activity getActivity() {
+                return activity;
+            }
+
+            @Override
+            public ExecutorService getThreadPool() {
+                return threadPool;
+            }
+        }, null, preferences);
+    }
+
+    public BackgroundDownload getPlugin() {
+        return plugin;
+    }
+
+    public Activity getActivity() {
+        return activity;
+    }
+
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
+    public ConnectivityManager getConnectivityManager() {
+        return connectivityManager;
+    }
+
+    /**
+     * @return directory the downloaded files can be saved to
+     */
+    public File getFilesDir() {
+        return activity.getExternalFilesDir(null);
+    }
+
+    /**
+     * @param args arguments of the action, converted to a JSON array
+     */
+    public Callback execute(String action, Object... args) throws JSONException {
+        Callback callback;
+        synchronized (this) {
+            callback = new Callback(action + "-" + nextCallbackId++);
+        }
+        JSONArray jsonArgs = new JSONArray();
+        for (Object arg : args) {
+            jsonArgs.put(arg == null ? JSONObject.NULL : arg);
+        }
+        plugin.execute(action, jsonArgs, callback);
+        return callback;
+    }
+
+    /**
+     * @param options download options such as the engine, null for the defaults
+     */
+    public Callback startAsync(String uri, File resultFile, JSONObject options) throws JSONException {
+        return execute("startAsync", uri, Uri.fromFile(resultFile).toString(), null, null, null, options);
+    }
+
+    public static JSONArray downloadArgs(String uri, File resultFile, JSONObject options) {
+        JSONArray args = new JSONArray();
+        args.put(uri);
+        args.put(Uri.fromFile(resultFile).toString());
+        args.put(JSONObject.NULL);
+        args.put(JSONObject.NULL);
+        args.put(JSONObject.NULL);
+        args.put(options != null ? options : JSONObject.NULL);
+        return args;
+    }
+
+    /**
+     * Waits until all actions called so far are completed, they are run one at a time in the order of the calls.
+     */
+    public void awaitActions() throws JSONException, InterruptedException {
+        execute("getQueue").await();
+    }
+
+    /**
+     * Sends the broadcast DownloadManager sends when a download completes, progress of all downloads is updated.
+     */
+    public void broadcastDownloadComplete() {
+        activity.sendBroadcast(new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+    }
+
+    /**
+     * Destroys the plugin and starts a new one the way the app is started again: the shared preferences, the files
+     * and the DownloadManager downloads are kept.
+     */
+    public PluginHarness restart() throws InterruptedException {
+        destroy();
+        return new PluginHarness(activity, downloadManager, connectivityManager, preferences);
+    }
+
+    public void destroy() throws InterruptedException {
+        plugin.onDestroy();
+        threadPool.shutdown();
+        threadPool.awaitTermination(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.app.DownloadManager;
+
+/**
+ * Cost of deciding whether a progress snapshot is sent, compared to building the progress JSON which the filter
+ * avoids for dropped snapshots.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressFilterBenchmark {
+
+    private static final long TOTAL_BYTES = 1L << 30;
+
+    private ProgressFilter reportAll;
+    private ProgressFilter percentDelta;
+    private ProgressFilter stateChangesOnly;
+    private long bytesReceived;
+
+    @Setup
+    public void createFilters() {
+        reportAll = ProgressFilter.create(null);
+        percentDelta = new ProgressFilter(0, 1, 0, false);
+        stateChangesOnly = new ProgressFilter(0, 0, 0, true);
+    }
+
+    @Benchmark
+    public boolean reportAll() {
+        bytesReceived += 65536;
+        return reportAll.shouldReport(DownloadManager.STATUS_RUNNING, 0, bytesReceived, TOTAL_BYTES);
+    }
+
+    @Benchmark
+    public boolean percentDelta() {
+        bytesReceived += 65536;
+        return percentDelta.shouldReport(DownloadManager.STATUS_RUNNING, 0, bytesReceived, TOTAL_BYTES);
+    }
+
+    @Benchmark
+    public boolean stateChangesOnly() {
+        bytesReceived += 65536;
+        return stateChangesOnly.shouldReport(DownloadManager.STATUS_RUNNING, 0, bytesReceived, TOTAL_BYTES);
+    }
+
+    /**
+     * Progress notification of a single download as it is sent over the bridge.
+     */
+    @Benchmark
+    public String progressJson() throws Exception {
+        bytesReceived += 65536;
+        JSONObject jsonProgress = new JSONObject();
+        jsonProgress.put("bytesReceived", bytesReceived);
+        jsonProgress.put("totalBytesToReceive", TOTAL_BYTES);
+        JSONObject obj = new JSONObject();
+        obj.put("progress", jsonProgress);
+        return obj.toString();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.app.DownloadManager;
+
+/**
+ * A single progress tick of the plugin: one DownloadManager query for all downloads, the rows are dispatched to the
+ * downloads and every download which has moved on gets its progress notification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressTickBenchmark {
+
+    private static final long TOTAL_BYTES = 1L << 30;
+
+    @Param({ "10", "100", "1000" })
+    public int downloads;
+
+    private PluginHarness harness;
+    private List<Long> ids;
+    private long bytesReceived;
+
+    @Setup(Level.Trial)
+    public void startDownloads() throws Exception {
+        harness = new PluginHarness();
+        for (int i = 0; i < downloads; i++) {
+            harness.startAsync("http://cdn.example.com/file" + i, new File(harness.getFilesDir(), "file" + i), null);
+        }
+        harness.awaitActions();
+        ids = harness.getDownloadManager().getIds();
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() throws Exception {
+        harness.destroy();
+    }
+
+    @Benchmark
+    public void tick() {
+        bytesReceived += 65536;
+        DownloadManager downloadManager = harness.getDownloadManager();
+        for (long id : ids) {
+            downloadManager.setStatus(id, DownloadManager.STATUS_RUNNING, 0, bytesReceived, TOTAL_BYTES);
+        }
+        harness.getPlugin().updateProgress();
+    }
+}
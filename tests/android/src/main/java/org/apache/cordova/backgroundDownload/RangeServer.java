@@ -0,0 +1,221 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server which serves a single file from memory at any path. Byte ranges and If-Range are supported unless
+ * turned off, the ETag and the content can be changed between the requests.
+ */
+public class RangeServer {
+
+    private static final int CHUNK_SIZE = 65536;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> ifRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, Integer> failingRanges = new ConcurrentHashMap<>();
+    private final AtomicInteger failingRequests = new AtomicInteger();
+    private final AtomicLong disconnectAfter = new AtomicLong(-1);
+    private volatile int failureStatus;
+    private volatile byte[] content;
+    private volatile String etag;
+    private volatile boolean isRangeSupported = true;
+    private volatile long chunkDelay;
+
+    public RangeServer(byte[] content, String etag) throws IOException {
+        this.content = content;
+        this.etag = etag;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), path);
+    }
+
+    public void setContent(byte[] content, String etag) {
+        this.content = content;
+        this.etag = etag;
+    }
+
+    public void setRangeSupported(boolean isRangeSupported) {
+        this.isRangeSupported = isRangeSupported;
+    }
+
+    /**
+     * Slows the responses down, so a transfer can be paused or stopped before it completes.
+     */
+    public void setChunkDelay(long chunkDelay) {
+        this.chunkDelay = chunkDelay;
+    }
+
+    /**
+     * Answers the requests with the given Range header with the status instead of the content.
+     */
+    public void failRange(String range, int status) {
+        failingRanges.put(range, status);
+    }
+
+    /**
+     * Answers the next requests with the given status instead of the content.
+     */
+    public void failNextRequests(int count, int status) {
+        failureStatus = status;
+        failingRequests.set(count);
+    }
+
+    /**
+     * Closes the connection of the next request once the given number of bytes of the body has been sent.
+     */
+    public void disconnectNextRequestAfter(long bytes) {
+        disconnectAfter.set(bytes);
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return Range headers of the requests in the order they were received
+     */
+    public List<String> getRanges() {
+        synchronized (ranges) {
+            return new ArrayList<>(ranges);
+        }
+    }
+
+    /**
+     * @return If-Range headers of the requests which had one
+     */
+    public List<String> getIfRanges() {
+        synchronized (ifRanges) {
+            return new ArrayList<>(ifRanges);
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        byte[] body = content;
+        String currentEtag = etag;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        ranges.add(range);
+        if (ifRange != null) {
+            ifRanges.add(ifRange);
+        }
+        if (currentEtag != null) {
+            exchange.getResponseHeaders().set("ETag", currentEtag);
+        }
+        Integer rangeStatus = range != null ? failingRanges.get(range) : null;
+        if (rangeStatus != null) {
+            exchange.sendResponseHeaders(rangeStatus, -1);
+            return;
+        }
+        if (failingRequests.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            exchange.sendResponseHeaders(failureStatus, -1);
+            return;
+        }
+
+        long start = 0;
+        long end = body.length - 1;
+        boolean isPartial = isRangeSupported && range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(currentEtag));
+        if (isPartial) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            if (start > end) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+        }
+
+        long limit = disconnectAfter.getAndSet(-1);
+        long last = limit >= 0 ? Math.min(end, start + limit - 1) : end;
+        OutputStream out = exchange.getResponseBody();
+        try {
+            for (long position = start; position <= last; position += CHUNK_SIZE) {
+                out.write(body, (int) position, (int) Math.min(CHUNK_SIZE, last - position + 1));
+                out.flush();
+                if (chunkDelay > 0) {
+                    Thread.sleep(chunkDelay);
+                }
+            }
+        } catch (IOException e) {
+            // the client has closed the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+                // the client has closed the connection
+            }
+        }
+        if (last < end) {
+            // the server drops the connection of an exchange which fails
+            throw new IOException("Disconnected after " + limit + " bytes");
+        }
+    }
+}
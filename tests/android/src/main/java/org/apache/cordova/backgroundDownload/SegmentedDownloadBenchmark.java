@@ -0,0 +1,151 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downloads a file from a local server with one or several Range segments. The content stream variant also reads the
+ * file while the segments are written, so it measures how the out of order segments are merged into a contiguous
+ * stream as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentedDownloadBenchmark {
+
+    private static final int FILE_SIZE = 33554432;
+
+    @Param({ "1", "4" })
+    public int segments;
+
+    @Param({ "true", "false" })
+    public boolean isRangeSupported;
+
+    private RangeServer server;
+    private File dir;
+    private File file;
+    private ExecutorService executor;
+
+    private static class CompletionListener implements SegmentedDownload.Listener {
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Exception error;
+
+        @Override
+        public void onProgress(SegmentedDownload download) {
+        }
+
+        @Override
+        public void onComplete(SegmentedDownload download) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onPaused(SegmentedDownload download) {
+            error = new IllegalStateException("paused");
+            completed.countDown();
+        }
+
+        @Override
+        public void onError(SegmentedDownload download, int httpStatus, Exception e) {
+            error = e;
+            completed.countDown();
+        }
+
+        private void await() throws Exception {
+            completed.await();
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(content);
+        server = new RangeServer(content, "\"v1\"");
+        server.setRangeSupported(isRangeSupported);
+        dir = Files.createTempDirectory("segmented").toFile();
+        file = new File(dir, "file");
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        executor.shutdownNow();
+        server.stop();
+        file.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        CompletionListener listener = new CompletionListener();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file"), file, segments, null, executor, listener);
+        download.start(executor);
+        listener.await();
+        return download.getBytesReceived();
+    }
+
+    @Benchmark
+    public long downloadAndStream() throws Exception {
+        CompletionListener listener = new CompletionListener();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file"), file, segments, null, executor, listener);
+        InputStream in = download.openContentStream();
+        download.start(executor);
+        long bytesRead = 0;
+        try {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                bytesRead += n;
+            }
+        } finally {
+            in.close();
+        }
+        listener.await();
+        return bytesRead;
+    }
+}
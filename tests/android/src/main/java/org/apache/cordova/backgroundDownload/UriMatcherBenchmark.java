@@ -0,0 +1,95 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.app.Activity;
+
+/**
+ * Reattaching a download whose uri differs from the existing one only in the part ignored by uriMatcher, e.g. a
+ * token. The journal index is compared to the loop it has replaced, which compiled the pattern on every call and ran
+ * two matchers per existing download.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriMatcherBenchmark {
+
+    private static final String URI_MATCHER = "files/file-\\d+\\.bin";
+
+    @Param({ "10", "1000", "10000" })
+    private int entries;
+
+    private DownloadJournal journal;
+    private String[] existingUris;
+    private String uri;
+
+    @Setup
+    public void createJournal() {
+        journal = new DownloadJournal(new Activity());
+        existingUris = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            existingUris[i] = "https://cdn.example.com/files/file-" + i + ".bin?token=" + i;
+            journal.put(new DownloadJournal.Entry(existingUris[i], URI_MATCHER,
+                    journal.getMatcherKey(URI_MATCHER, existingUris[i]), i, null, null, "downloadManager", null));
+        }
+        // the last download with a new token, so the loop goes through all of them
+        uri = "https://cdn.example.com/files/file-" + (entries - 1) + ".bin?token=new";
+        // the index of the matcher is built on the first lookup
+        journal.find(uri, URI_MATCHER);
+    }
+
+    @Benchmark
+    public DownloadJournal.Entry journalFind() {
+        return journal.find(uri, URI_MATCHER);
+    }
+
+    @Benchmark
+    public String legacyLoop() {
+        final Pattern pattern = Pattern.compile(URI_MATCHER);
+        for (String existingDownloadUri : existingUris) {
+            Matcher mForExistingUri = pattern.matcher(existingDownloadUri);
+            Matcher mForNewUri = pattern.matcher(uri);
+            boolean uriMatches = mForExistingUri.find() && mForNewUri.find()
+                    && mForExistingUri.group().equals(mForNewUri.group());
+            if (uriMatches || uri.equals(existingDownloadUri)) {
+                return existingDownloadUri;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.app;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Keeps the downloads in memory, nothing is transferred: the test moves them between the states with setStatus and
+ * complete. Queries are counted.
+ */
+public class DownloadManager {
+
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_STATUS = "status";
+    public static final String COLUMN_REASON = "reason";
+    public static final String COLUMN_BYTES_DOWNLOADED_SO_FAR = "bytes_so_far";
+    public static final String COLUMN_TOTAL_SIZE_BYTES = "total_size";
+    public static final String COLUMN_URI = "uri";
+    public static final String COLUMN_LOCAL_URI = "local_uri";
+    public static final String ACTION_DOWNLOAD_COMPLETE = "android.intent.action.DOWNLOAD_COMPLETE";
+
+    public static final int STATUS_PENDING = 1;
+    public static final int STATUS_RUNNING = 2;
+    public static final int STATUS_PAUSED = 4;
+    public static final int STATUS_SUCCESSFUL = 8;
+    public static final int STATUS_FAILED = 16;
+
+    public static final int ERROR_UNKNOWN = 1000;
+    public static final int ERROR_FILE_ERROR = 1001;
+    public static final int ERROR_UNHANDLED_HTTP_CODE = 1002;
+    public static final int ERROR_HTTP_DATA_ERROR = 1004;
+    public static final int ERROR_TOO_MANY_REDIRECTS = 1005;
+    public static final int ERROR_INSUFFICIENT_SPACE = 1006;
+    public static final int ERROR_DEVICE_NOT_FOUND = 1007;
+    public static final int ERROR_CANNOT_RESUME = 1008;
+    public static final int ERROR_FILE_ALREADY_EXISTS = 1009;
+
+    public static final int PAUSED_WAITING_TO_RETRY = 1;
+    public static final int PAUSED_WAITING_FOR_NETWORK = 2;
+    public static final int PAUSED_QUEUED_FOR_WIFI = 3;
+    public static final int PAUSED_UNKNOWN = 4;
+
+    private static final String[] COLUMNS = { COLUMN_ID, COLUMN_STATUS, COLUMN_REASON, COLUMN_BYTES_DOWNLOADED_SO_FAR,
+            COLUMN_TOTAL_SIZE_BYTES, COLUMN_URI, COLUMN_LOCAL_URI };
+
+    public static class Query {
+
+        private long[] ids;
+        private int statusFlags;
+
+        public Query setFilterById(long... ids) {
+            this.ids = ids;
+            return this;
+        }
+
+        public Query setFilterByStatus(int flags) {
+            this.statusFlags = flags;
+            return this;
+        }
+
+        private boolean matches(long id, int status) {
+            if (statusFlags != 0 && (statusFlags & status) == 0) {
+                return false;
+            }
+            if (ids == null) {
+                return true;
+            }
+            for (long filterId : ids) {
+                if (filterId == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static class Request {
+
+        public static final int NETWORK_MOBILE = 1;
+        public static final int NETWORK_WIFI = 2;
+
+        private final Uri uri;
+        private Uri destinationUri;
+
+        public Request(Uri uri) {
+            this.uri = uri;
+        }
+
+        public Request setTitle(CharSequence title) {
+            return this;
+        }
+
+        public Request setVisibleInDownloadsUi(boolean isVisible) {
+            return this;
+        }
+
+        public Request setNotificationVisibility(int visibility) {
+            return this;
+        }
+
+        public Request setDestinationUri(Uri uri) {
+            this.destinationUri = uri;
+            return this;
+        }
+
+        public Request setAllowedOverRoaming(boolean allowed) {
+            return this;
+        }
+
+        public Request setAllowedOverMetered(boolean allow) {
+            return this;
+        }
+
+        public Request setAllowedNetworkTypes(int flags) {
+            return this;
+        }
+
+        public Request setRequiresCharging(boolean requiresCharging) {
+            return this;
+        }
+    }
+
+    private static class Row {
+
+        private final long id;
+        private final String uri;
+        private final String localUri;
+        private int status = STATUS_PENDING;
+        private int reason;
+        private long bytesDownloaded;
+        private long bytesTotal = -1;
+
+        private Row(long id, String uri, String localUri) {
+            this.id = id;
+            this.uri = uri;
+            this.localUri = localUri;
+        }
+    }
+
+    private final Map<Long, Row> rows = new LinkedHashMap<>();
+    private final AtomicLong queryCount = new AtomicLong();
+    private long nextId = 1;
+
+    public synchronized long enqueue(Request request) {
+        long id = nextId++;
+        rows.put(id, new Row(id, request.uri.toString(),
+                request.destinationUri != null ? request.destinationUri.toString() : null));
+        return id;
+    }
+
+    public Cursor query(Query query) {
+        queryCount.incrementAndGet();
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        synchronized (this) {
+            for (Row row : rows.values()) {
+                if (query.matches(row.id, row.status)) {
+                    cursor.addRow(new Object[] { row.id, row.status, row.reason, row.bytesDownloaded, row.bytesTotal,
+                            row.uri, row.localUri });
+                }
+            }
+        }
+        return cursor;
+    }
+
+    public synchronized int remove(long... ids) {
+        int removed = 0;
+        for (long id : ids) {
+            if (rows.remove(id) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Adds a download made before the test started, for example by the previous run of the app.
+     */
+    public synchronized long addExisting(String uri, String localUri, int status) {
+        long id = enqueue(new Request(Uri.parse(uri)).setDestinationUri(localUri != null ? Uri.parse(localUri) : null));
+        rows.get(id).status = status;
+        return id;
+    }
+
+    public synchronized void setStatus(long id, int status, int reason, long bytesDownloaded, long bytesTotal) {
+        Row row = rows.get(id);
+        if (row == null) {
+            throw new IllegalArgumentException("Unknown download " + id);
+        }
+        row.status = status;
+        row.reason = reason;
+        row.bytesDownloaded = bytesDownloaded;
+        row.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * Writes the content to the destination file and marks the download as successful.
+     */
+    public void complete(long id, byte[] content) throws IOException {
+        String localUri;
+        synchronized (this) {
+            Row row = rows.get(id);
+            if (row == null) {
+                throw new IllegalArgumentException("Unknown download " + id);
+            }
+            localUri = row.localUri;
+        }
+        FileOutputStream out = new FileOutputStream(new File(Uri.parse(localUri).getPath()));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        setStatus(id, STATUS_SUCCESSFUL, 0, content.length, content.length);
+    }
+
+    public synchronized List<Long> getIds() {
+        return new ArrayList<>(rows.keySet());
+    }
+
+    public synchronized long findId(String uri) {
+        for (Row row : rows.values()) {
+            if (row.uri.equals(uri)) {
+                return row.id;
+            }
+        }
+        return -1;
+    }
+
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+}
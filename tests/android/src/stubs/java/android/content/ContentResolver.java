@@ -0,0 +1,52 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.content;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.ContentObserver;
+import android.net.Uri;
+
+public class ContentResolver {
+
+    private final List<ContentObserver> observers = new ArrayList<>();
+
+    public final synchronized void registerContentObserver(Uri uri, boolean notifyForDescendants,
+            ContentObserver observer) {
+        observers.add(observer);
+    }
+
+    public final synchronized void unregisterContentObserver(ContentObserver observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Notifies all registered observers, the uri is not matched.
+     */
+    public void notifyChange(Uri uri, ContentObserver observer) {
+        List<ContentObserver> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(observers);
+        }
+        for (ContentObserver target : targets) {
+            target.onChange(false);
+        }
+    }
+}
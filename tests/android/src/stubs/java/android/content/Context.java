@@ -0,0 +1,249 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Build;
+
+/**
+ * Context of a single app with its own data directory. System services are registered by the test with
+ * addSystemService, broadcasts are delivered synchronously on the sending thread. From Android 14 a receiver has to be
+ * registered with RECEIVER_EXPORTED or RECEIVER_NOT_EXPORTED, as on a device.
+ */
+public class Context {
+
+    public static final String DOWNLOAD_SERVICE = "download";
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+    public static final int MODE_PRIVATE = 0;
+    public static final int RECEIVER_EXPORTED = 0x2;
+    public static final int RECEIVER_NOT_EXPORTED = 0x4;
+
+    private static class Registration {
+
+        private final BroadcastReceiver receiver;
+        private final IntentFilter filter;
+        private final int flags;
+
+        private Registration(BroadcastReceiver receiver, IntentFilter filter, int flags) {
+            this.receiver = receiver;
+            this.filter = filter;
+            this.flags = flags;
+        }
+    }
+
+    private static class MapSharedPreferences implements SharedPreferences {
+
+        private final Map<String, String> values = new LinkedHashMap<>();
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+
+                private final Map<String, String> changes = new HashMap<>();
+                private boolean isCleared;
+
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    changes.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    isCleared = true;
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    synchronized (MapSharedPreferences.this) {
+                        if (isCleared) {
+                            values.clear();
+                        }
+                        for (Map.Entry<String, String> change : changes.entrySet()) {
+                            if (change.getValue() == null) {
+                                values.remove(change.getKey());
+                            } else {
+                                values.put(change.getKey(), change.getValue());
+                            }
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            String value = values.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return values.containsKey(key);
+        }
+    }
+
+    private final File dataDir;
+    private final ContentResolver contentResolver = new ContentResolver();
+    private final Map<String, Object> services = new HashMap<>();
+    private final Map<String, SharedPreferences> preferences = new HashMap<>();
+    private final List<Registration> registrations = new ArrayList<>();
+    private final Map<String, Intent> stickyIntents = new HashMap<>();
+
+    public Context() {
+        try {
+            dataDir = Files.createTempDirectory("context").toFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public synchronized void addSystemService(String name, Object service) {
+        services.put(name, service);
+    }
+
+    public synchronized Object getSystemService(String name) {
+        return services.get(name);
+    }
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences prefs = preferences.get(name);
+        if (prefs == null) {
+            prefs = new MapSharedPreferences();
+            preferences.put(name, prefs);
+        }
+        return prefs;
+    }
+
+    public File getExternalFilesDir(String type) {
+        return mkdirs(new File(dataDir, "external"));
+    }
+
+    public File getFilesDir() {
+        return mkdirs(new File(dataDir, "files"));
+    }
+
+    public ContentResolver getContentResolver() {
+        return contentResolver;
+    }
+
+    /**
+     * @param receiver null to only get the last sticky intent matching the filter
+     */
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        if (receiver != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            throw new SecurityException("One of RECEIVER_EXPORTED or RECEIVER_NOT_EXPORTED should be specified");
+        }
+        return registerReceiver(receiver, filter, 0);
+    }
+
+    public synchronized Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter, int flags) {
+        if (receiver != null) {
+            registrations.add(new Registration(receiver, filter, flags));
+        }
+        for (Intent intent : stickyIntents.values()) {
+            if (filter.hasAction(intent.getAction())) {
+                return intent;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void unregisterReceiver(BroadcastReceiver receiver) {
+        for (int i = 0; i < registrations.size(); i++) {
+            if (registrations.get(i).receiver == receiver) {
+                registrations.remove(i);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Receiver not registered: " + receiver);
+    }
+
+    public synchronized int getRegisteredReceiverCount() {
+        return registrations.size();
+    }
+
+    /**
+     * @return flags of the receiver registered for the action, -1 if there is none
+     */
+    public synchronized int getReceiverFlags(String action) {
+        for (Registration registration : registrations) {
+            if (registration.filter.hasAction(action)) {
+                return registration.flags;
+            }
+        }
+        return -1;
+    }
+
+    public void sendBroadcast(Intent intent) {
+        List<BroadcastReceiver> receivers = new ArrayList<>();
+        synchronized (this) {
+            for (Registration registration : registrations) {
+                if (registration.filter.hasAction(intent.getAction())) {
+                    receivers.add(registration.receiver);
+                }
+            }
+        }
+        for (BroadcastReceiver receiver : receivers) {
+            receiver.onReceive(this, intent);
+        }
+    }
+
+    public void sendStickyBroadcast(Intent intent) {
+        synchronized (this) {
+            stickyIntents.put(intent.getAction(), intent);
+        }
+        sendBroadcast(intent);
+    }
+
+    private static File mkdirs(File dir) {
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cursor over rows kept in memory.
+ */
+public class MatrixCursor implements Cursor {
+
+    private final List<String> columnNames;
+    private final List<Object[]> rows = new ArrayList<>();
+    private int position = -1;
+
+    public MatrixCursor(String[] columnNames) {
+        this.columnNames = Arrays.asList(columnNames);
+    }
+
+    public void addRow(Object[] columnValues) {
+        rows.add(columnValues);
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return columnNames.indexOf(columnName);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        Object value = get(columnIndex);
+        return value != null ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        Object value = get(columnIndex);
+        return value != null ? ((Number) value).intValue() : 0;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        Object value = get(columnIndex);
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        position = 0;
+        return !rows.isEmpty();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (position < rows.size()) {
+            position++;
+        }
+        return position < rows.size();
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return rows.isEmpty() || position >= rows.size();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Object get(int columnIndex) {
+        if (position < 0 || position >= rows.size()) {
+            throw new IllegalStateException("Cursor is not on a row: " + position);
+        }
+        return rows.get(position)[columnIndex];
+    }
+}
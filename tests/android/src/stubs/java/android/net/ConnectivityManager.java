@@ -0,0 +1,46 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.net;
+
+/**
+ * Network state is set by the test, Wi-Fi by default.
+ */
+public class ConnectivityManager {
+
+    public static final String CONNECTIVITY_ACTION = "android.net.conn.CONNECTIVITY_CHANGE";
+    public static final int TYPE_MOBILE = 0;
+    public static final int TYPE_WIFI = 1;
+    public static final int TYPE_ETHERNET = 9;
+
+    private volatile NetworkInfo activeNetwork = new NetworkInfo(TYPE_WIFI, true, false);
+    private volatile boolean isMetered;
+
+    public NetworkInfo getActiveNetworkInfo() {
+        return activeNetwork;
+    }
+
+    public boolean isActiveNetworkMetered() {
+        return isMetered;
+    }
+
+    public void setActiveNetwork(NetworkInfo network, boolean isMetered) {
+        this.activeNetwork = network;
+        this.isMetered = isMetered;
+    }
+}
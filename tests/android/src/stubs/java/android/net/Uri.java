@@ -0,0 +1,85 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.net;
+
+import java.io.File;
+import java.net.URI;
+
+public abstract class Uri {
+
+    private static class StringUri extends Uri {
+
+        private final String uriString;
+        private final URI uri;
+
+        private StringUri(String uriString) {
+            this.uriString = uriString;
+            this.uri = URI.create(uriString);
+        }
+
+        @Override
+        public String getPath() {
+            return uri.getPath();
+        }
+
+        @Override
+        public String getHost() {
+            return uri.getHost();
+        }
+
+        @Override
+        public String getLastPathSegment() {
+            String path = getPath();
+            if (path == null || path.isEmpty()) {
+                return null;
+            }
+            String[] segments = path.split("/");
+            return segments.length > 0 ? segments[segments.length - 1] : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StringUri && uriString.equals(((StringUri) o).uriString);
+        }
+
+        @Override
+        public int hashCode() {
+            return uriString.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return uriString;
+        }
+    }
+
+    public static Uri parse(String uriString) {
+        return new StringUri(uriString);
+    }
+
+    public static Uri fromFile(File file) {
+        return new StringUri("file://" + file.getAbsoluteFile().toURI().getRawPath());
+    }
+
+    public abstract String getPath();
+
+    public abstract String getHost();
+
+    public abstract String getLastPathSegment();
+}
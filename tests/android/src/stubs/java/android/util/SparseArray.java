@@ -0,0 +1,42 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package android.util;
+
+import java.util.HashMap;
+
+public class SparseArray<E> {
+
+    private final HashMap<Integer, E> values = new HashMap<>();
+
+    public E get(int key) {
+        return values.get(key);
+    }
+
+    public void put(int key, E value) {
+        values.put(key, value);
+    }
+
+    public void remove(int key) {
+        values.remove(key);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.app.DownloadManager;
+
+public class AggregatedProgressTest {
+
+    private static final String FIRST = "http://cdn.example.com/first.bin";
+    private static final String SECOND = "http://cdn.example.com/second.bin";
+
+    private PluginHarness harness;
+    private PluginHarness.Callback progress;
+
+    @Before
+    public void setUp() throws Exception {
+        CordovaPreferences preferences = new CordovaPreferences();
+        preferences.set("BackgroundDownloadMaxConcurrentDownloads", "1");
+        harness = new PluginHarness(preferences);
+        progress = harness.execute("subscribeProgress");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+    }
+
+    @Test
+    public void reportsQueuedDownloadsAndResults() throws Exception {
+        PluginHarness.Callback first = harness.startAsync(FIRST, new File(harness.getFilesDir(), "first.bin"), null);
+        PluginHarness.Callback second = harness.startAsync(SECOND, new File(harness.getFilesDir(), "second.bin"), null);
+        harness.awaitActions();
+        harness.getPlugin().updateProgress();
+        assertEquals(DownloadManager.STATUS_PENDING, getLastStatus(SECOND));
+
+        long id = harness.getDownloadManager().findId(FIRST);
+        harness.getDownloadManager().complete(id, "content".getBytes("UTF-8"));
+        harness.getPlugin().updateProgress();
+        first.await();
+        assertTrue(first.getError(), first.isSuccess());
+        // sent once, when the file is in place
+        List<Integer> statuses = getStatuses(FIRST);
+        assertEquals(statuses.size() - 1, statuses.indexOf(DownloadManager.STATUS_SUCCESSFUL));
+        JSONArray result = getTuples(FIRST).get(getTuples(FIRST).size() - 1);
+        assertEquals(7, result.getLong(1));
+        assertEquals(7, result.getLong(2));
+
+        harness.execute("stop", SECOND).await();
+        harness.broadcastDownloadComplete();
+        second.await();
+        assertEquals("CANCELED", second.getError());
+        assertEquals(DownloadManager.STATUS_FAILED, getLastStatus(SECOND));
+        assertEquals(0, progress.getLateResults());
+    }
+
+    @Test
+    public void doesNotReportSuccessBeforeFinalization() throws Exception {
+        PluginHarness.Callback first = harness.startAsync(FIRST, new File(harness.getFilesDir(), "first.bin"), null);
+        harness.awaitActions();
+
+        // completed by DownloadManager, but the file it has downloaded is gone so the finalization fails
+        long id = harness.getDownloadManager().findId(FIRST);
+        harness.getDownloadManager().setStatus(id, DownloadManager.STATUS_SUCCESSFUL, 0, 7, 7);
+        harness.getPlugin().updateProgress();
+        first.await();
+
+        assertFalse(first.isSuccess());
+        assertFalse(getStatuses(FIRST).contains(DownloadManager.STATUS_SUCCESSFUL));
+        assertEquals(DownloadManager.STATUS_FAILED, getLastStatus(FIRST));
+    }
+
+    private List<JSONArray> getTuples(String uri) throws Exception {
+        ArrayList<JSONArray> tuples = new ArrayList<>();
+        for (PluginResult result : progress.getResults()) {
+            if (result.getMessageType() != PluginResult.MESSAGE_TYPE_JSON) {
+                continue;
+            }
+            JSONArray update = new JSONArray(result.getMessage());
+            for (int i = 0; i < update.length(); i++) {
+                if (uri.equals(update.getJSONArray(i).getString(0))) {
+                    tuples.add(update.getJSONArray(i));
+                }
+            }
+        }
+        return tuples;
+    }
+
+    private List<Integer> getStatuses(String uri) throws Exception {
+        ArrayList<Integer> statuses = new ArrayList<>();
+        for (JSONArray tuple : getTuples(uri)) {
+            statuses.add(tuple.getInt(3));
+        }
+        return statuses;
+    }
+
+    private int getLastStatus(String uri) throws Exception {
+        List<Integer> statuses = getStatuses(uri);
+        assertFalse("no progress of " + uri, statuses.isEmpty());
+        return statuses.get(statuses.size() - 1);
+    }
+}
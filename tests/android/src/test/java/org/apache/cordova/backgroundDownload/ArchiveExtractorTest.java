@@ -0,0 +1,212 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveExtractorTest {
+
+    private static final ArchiveExtractor.Listener NO_LISTENER = new ArchiveExtractor.Listener() {
+        @Override
+        public void onEntry(ArchiveExtractor extractor) throws InterruptedIOException {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("extracted");
+    }
+
+    @Test
+    public void extractsZip() throws Exception {
+        byte[] archive = zip("docs/", null, "docs/readme.txt", "readme", "data.bin", "data");
+        ArchiveExtractor extractor = extract("zip", archive);
+
+        assertEquals(3, extractor.getEntriesExtracted());
+        assertEquals(10, extractor.getBytesExtracted());
+        assertEquals(archive.length, extractor.getArchiveBytesRead());
+        assertContent("readme", new File(directory, "docs/readme.txt"));
+        assertContent("data", new File(directory, "data.bin"));
+    }
+
+    @Test
+    public void extractsTarGz() throws Exception {
+        byte[] archive = tarGz("docs/", null, "docs/readme.txt", "readme", "data.bin", "data");
+        ArchiveExtractor extractor = extract("tgz", archive);
+
+        assertEquals(ArchiveExtractor.FORMAT_TAR_GZ, extractor.getFormat());
+        assertEquals(3, extractor.getEntriesExtracted());
+        assertEquals(archive.length, extractor.getArchiveBytesRead());
+        assertContent("readme", new File(directory, "docs/readme.txt"));
+        assertContent("data", new File(directory, "data.bin"));
+    }
+
+    @Test
+    public void rejectsEntriesOutsideOfDirectory() throws Exception {
+        byte[] archive = zip("first.txt", "first", "../evil.txt", "evil");
+        try {
+            extract("zip", archive);
+            fail("zip slip not rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("../evil.txt"));
+        }
+
+        assertFalse(new File(folder.getRoot(), "evil.txt").exists());
+        assertFalse("partial extraction not deleted", new File(directory, "first.txt").exists());
+        assertTrue(directory.isDirectory());
+    }
+
+    @Test
+    public void failedExtractionKeepsExistingFiles() throws Exception {
+        File existing = new File(directory, "data.bin");
+        Files.write(existing.toPath(), "existing".getBytes(StandardCharsets.UTF_8));
+        File existingDir = new File(directory, "docs");
+        assertTrue(existingDir.mkdir());
+
+        byte[] archive = tarGz("data.bin", "data", "docs/readme.txt", "readme", "new/file.txt", "new");
+        // the entries are extracted before the cut end of the stream fails the extraction
+        try {
+            extract("tar.gz", Arrays.copyOf(archive, archive.length - 20));
+            fail("truncated archive extracted");
+        } catch (IOException expected) {
+            // truncated gzip stream
+        }
+
+        assertContent("existing", existing);
+        assertTrue(existingDir.isDirectory());
+        assertFalse(new File(existingDir, "readme.txt").exists());
+        assertFalse(new File(directory, "new").exists());
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void existingFilesAreReplacedOnCommit() throws Exception {
+        File existing = new File(directory, "data.bin");
+        Files.write(existing.toPath(), "existing".getBytes(StandardCharsets.UTF_8));
+
+        ArchiveExtractor extractor = extract("zip", zip("data.bin", "data", "other.txt", "other"));
+        assertContent("existing", existing);
+
+        extractor.commit();
+        assertContent("data", existing);
+        assertContent("other", new File(directory, "other.txt"));
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void discardKeepsExistingFiles() throws Exception {
+        File existing = new File(directory, "data.bin");
+        Files.write(existing.toPath(), "existing".getBytes(StandardCharsets.UTF_8));
+
+        ArchiveExtractor extractor = extract("zip", zip("data.bin", "data", "other.txt", "other"));
+        extractor.discard();
+
+        assertContent("existing", existing);
+        assertEquals(1, directory.list().length);
+    }
+
+    private ArchiveExtractor extract(String format, byte[] archive) throws IOException {
+        ArchiveExtractor extractor = ArchiveExtractor.create(format, directory);
+        extractor.extract(new ByteArrayInputStream(archive), null, NO_LISTENER);
+        return extractor;
+    }
+
+    private static void assertContent(String expected, File file) throws IOException {
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * @param entries names and contents, null content for directories
+     */
+    private static byte[] zip(String... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < entries.length; i += 2) {
+            zip.putNextEntry(new ZipEntry(entries[i]));
+            if (entries[i + 1] != null) {
+                zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+            }
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param entries names and contents, null content for directories
+     */
+    private static byte[] tarGz(String... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream tar = new GZIPOutputStream(bytes);
+        for (int i = 0; i < entries.length; i += 2) {
+            byte[] data = entries[i + 1] != null ? entries[i + 1].getBytes(StandardCharsets.UTF_8) : new byte[0];
+            byte[] header = new byte[512];
+            putTarField(header, 0, 100, entries[i]);
+            putTarField(header, 100, 8, "0000644");
+            putTarField(header, 124, 12, String.format("%011o", data.length));
+            putTarField(header, 136, 12, "00000000000");
+            header[156] = (byte) (entries[i + 1] != null ? '0' : '5');
+            putTarField(header, 257, 6, "ustar");
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            putTarField(header, 148, 8, String.format("%06o", checksum));
+            tar.write(header);
+            tar.write(data);
+            tar.write(new byte[(512 - data.length % 512) % 512]);
+        }
+        // end of archive
+        tar.write(new byte[1024]);
+        tar.close();
+        return bytes.toByteArray();
+    }
+
+    private static void putTarField(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+}
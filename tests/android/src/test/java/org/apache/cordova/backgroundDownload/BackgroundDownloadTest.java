@@ -0,0 +1,192 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.app.DownloadManager;
+import android.net.Uri;
+
+public class BackgroundDownloadTest {
+
+    private PluginHarness harness;
+
+    @Before
+    public void setUp() {
+        harness = new PluginHarness();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+    }
+
+    @Test
+    public void completesDownloadManagerDownload() throws Exception {
+        File target = new File(harness.getFilesDir(), "file.bin");
+        PluginHarness.Callback callback = harness.startAsync("http://cdn.example.com/file.bin", target, null);
+        harness.awaitActions();
+
+        long id = harness.getDownloadManager().findId("http://cdn.example.com/file.bin");
+        byte[] content = "content".getBytes("UTF-8");
+        harness.getDownloadManager().complete(id, content);
+        harness.broadcastDownloadComplete();
+
+        callback.await();
+        assertTrue(callback.getError(), callback.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertTrue(harness.getDownloadManager().getIds().isEmpty());
+    }
+
+    @Test
+    public void stopReportsCanceled() throws Exception {
+        File target = new File(harness.getFilesDir(), "file.bin");
+        PluginHarness.Callback callback = harness.startAsync("http://cdn.example.com/file.bin", target, null);
+
+        PluginHarness.Callback stop = harness.execute("stop", "http://cdn.example.com/file.bin");
+        stop.await();
+        assertTrue(stop.isSuccess());
+        harness.broadcastDownloadComplete();
+
+        callback.await();
+        assertEquals("CANCELED", callback.getError());
+        assertFalse(target.exists());
+        assertEquals(-1, harness.getDownloadManager().findId("http://cdn.example.com/file.bin"));
+    }
+
+    @Test
+    public void reportsDownloadManagerFailure() throws Exception {
+        File target = new File(harness.getFilesDir(), "file.bin");
+        PluginHarness.Callback callback = harness.startAsync("http://cdn.example.com/file.bin", target, null);
+        harness.awaitActions();
+
+        long id = harness.getDownloadManager().findId("http://cdn.example.com/file.bin");
+        harness.getDownloadManager().setStatus(id, DownloadManager.STATUS_FAILED,
+                DownloadManager.ERROR_INSUFFICIENT_SPACE, 0, 100);
+        harness.broadcastDownloadComplete();
+
+        callback.await();
+        assertEquals("ERROR_INSUFFICIENT_SPACE", callback.getError());
+    }
+
+    @Test
+    public void stoppedOwnerHandsTransferOver() throws Exception {
+        File first = new File(harness.getFilesDir(), "first.bin");
+        File second = new File(harness.getFilesDir(), "second.bin");
+        PluginHarness.Callback owner = harness.startAsync("http://cdn.example.com/file.bin", first, null);
+        PluginHarness.Callback subscriber = harness.startAsync("http://cdn.example.com/file.bin", second, null);
+        harness.awaitActions();
+        long id = harness.getDownloadManager().findId("http://cdn.example.com/file.bin");
+
+        harness.execute("stop", "http://cdn.example.com/file.bin", Uri.fromFile(first).toString()).await();
+        owner.await();
+        assertEquals("CANCELED", owner.getError());
+        assertEquals(id, harness.getDownloadManager().findId("http://cdn.example.com/file.bin"));
+
+        byte[] content = "content".getBytes("UTF-8");
+        harness.getDownloadManager().complete(id, content);
+        harness.broadcastDownloadComplete();
+        subscriber.await();
+        assertTrue(subscriber.getError(), subscriber.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        assertFalse(first.exists());
+        assertEquals(0, owner.getLateResults());
+    }
+
+    @Test
+    public void stoppedSubscriberIsDetached() throws Exception {
+        File first = new File(harness.getFilesDir(), "first.bin");
+        File second = new File(harness.getFilesDir(), "second.bin");
+        PluginHarness.Callback owner = harness.startAsync("http://cdn.example.com/file.bin", first, null);
+        PluginHarness.Callback subscriber = harness.startAsync("http://cdn.example.com/file.bin", second, null);
+        harness.awaitActions();
+
+        harness.execute("stop", "http://cdn.example.com/file.bin", Uri.fromFile(second).toString()).await();
+        subscriber.await();
+        assertEquals("CANCELED", subscriber.getError());
+
+        long id = harness.getDownloadManager().findId("http://cdn.example.com/file.bin");
+        harness.getDownloadManager().complete(id, "content".getBytes("UTF-8"));
+        harness.broadcastDownloadComplete();
+        owner.await();
+        assertTrue(owner.getError(), owner.isSuccess());
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+    }
+
+    @Test
+    public void stopWithoutResultFileStopsOwnerOnly() throws Exception {
+        File first = new File(harness.getFilesDir(), "first.bin");
+        File second = new File(harness.getFilesDir(), "second.bin");
+        PluginHarness.Callback owner = harness.startAsync("http://cdn.example.com/file.bin", first, null);
+        PluginHarness.Callback subscriber = harness.startAsync("http://cdn.example.com/file.bin", second, null);
+        harness.awaitActions();
+
+        harness.execute("stop", "http://cdn.example.com/file.bin").await();
+        owner.await();
+        assertEquals("CANCELED", owner.getError());
+        assertTrue(harness.getDownloadManager().findId("http://cdn.example.com/file.bin") >= 0);
+
+        // the request which has taken over is stopped next, nothing shares the transfer anymore
+        harness.execute("stop", "http://cdn.example.com/file.bin").await();
+        harness.broadcastDownloadComplete();
+        subscriber.await();
+        assertEquals("CANCELED", subscriber.getError());
+        assertEquals(-1, harness.getDownloadManager().findId("http://cdn.example.com/file.bin"));
+    }
+
+    @Test
+    public void tagsBatchResultsWithIndex() throws Exception {
+        JSONArray items = new JSONArray();
+        items.put(PluginHarness.downloadArgs("http://cdn.example.com/file.bin",
+                new File(harness.getFilesDir(), "first.bin"), null));
+        items.put(PluginHarness.downloadArgs("http://cdn.example.com/file.bin",
+                new File(harness.getFilesDir(), "second.bin"), null));
+        PluginHarness.Callback batch = harness.execute("startBatch", items);
+        harness.awaitActions();
+
+        long id = harness.getDownloadManager().findId("http://cdn.example.com/file.bin");
+        harness.getDownloadManager().complete(id, "content".getBytes("UTF-8"));
+        harness.broadcastDownloadComplete();
+        batch.await();
+
+        boolean[] completed = new boolean[2];
+        for (PluginResult result : batch.getResults()) {
+            JSONObject item = new JSONObject(result.getMessage());
+            if (item.optBoolean("completed")) {
+                assertEquals("http://cdn.example.com/file.bin", item.getString("uri"));
+                completed[item.getInt("index")] = true;
+            }
+        }
+        assertTrue(completed[0] && completed[1]);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the rates of segmented downloads from local servers throttled by a shared limiter.
+ */
+public class BandwidthLimiterTest {
+
+    private static final long MAX_RATE = 2 * 1048576;
+    private static final int SIZE = 32 * 1048576;
+    private static final long WARM_UP = 1500;
+    private static final long MEASUREMENT = 2000;
+    private static final double TOLERANCE = 0.2;
+
+    private static class NoopListener implements SegmentedDownload.Listener {
+
+        @Override
+        public void onProgress(SegmentedDownload download) {
+        }
+
+        @Override
+        public void onComplete(SegmentedDownload download) {
+        }
+
+        @Override
+        public void onPaused(SegmentedDownload download) {
+        }
+
+        @Override
+        public void onError(SegmentedDownload download, int httpStatus, Exception e) {
+        }
+    }
+
+    private byte[] content;
+    private final List<RangeServer> servers = new ArrayList<>();
+    private final List<SegmentedDownload> downloads = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+    private ExecutorService executor;
+    private BandwidthLimiter limiter;
+
+    @Before
+    public void setUp() {
+        content = new byte[SIZE];
+        new Random(1).nextBytes(content);
+        executor = Executors.newCachedThreadPool();
+        limiter = new BandwidthLimiter();
+        limiter.setMaxRate(MAX_RATE);
+    }
+
+    @After
+    public void tearDown() {
+        for (SegmentedDownload download : downloads) {
+            download.cancel();
+        }
+        executor.shutdownNow();
+        for (RangeServer server : servers) {
+            server.stop();
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void sharesGlobalLimitByWeight() throws Exception {
+        RangeServer server = startServer(0);
+        SegmentedDownload light = startDownload(server, 1);
+        SegmentedDownload heavy = startDownload(server, 3);
+
+        double[] rates = measureRates(light, heavy);
+        assertWithin("total rate", MAX_RATE, rates[0] + rates[1]);
+        assertWithin("weight ratio", 3, rates[1] / rates[0]);
+    }
+
+    @Test
+    public void unusedShareGoesToOtherTransfers() throws Exception {
+        // about 320 KB/s, well below the equal share of 1 MB/s
+        SegmentedDownload slow = startDownload(startServer(200), 1);
+        SegmentedDownload fast = startDownload(startServer(0), 1);
+
+        double[] rates = measureRates(slow, fast);
+        assertTrue("slow rate " + rates[0], rates[0] < MAX_RATE / 4);
+        assertWithin("total rate", MAX_RATE, rates[0] + rates[1]);
+    }
+
+    private RangeServer startServer(long chunkDelay) throws Exception {
+        RangeServer server = new RangeServer(content, "\"v1\"");
+        server.setChunkDelay(chunkDelay);
+        servers.add(server);
+        return server;
+    }
+
+    private SegmentedDownload startDownload(RangeServer server, double weight) throws Exception {
+        File file = File.createTempFile("throttled", ".bin");
+        files.add(file);
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 1, null, executor,
+                new NoopListener());
+        download.setBandwidth(limiter.register(weight, 0));
+        downloads.add(download);
+        download.start(executor);
+        return download;
+    }
+
+    /**
+     * @return bytes per second received by each download after the shares have settled
+     */
+    private double[] measureRates(SegmentedDownload... downloads) throws InterruptedException {
+        Thread.sleep(WARM_UP);
+        long[] startBytes = new long[downloads.length];
+        for (int i = 0; i < downloads.length; i++) {
+            startBytes[i] = downloads[i].getBytesReceived();
+        }
+        long startTime = System.nanoTime();
+        Thread.sleep(MEASUREMENT);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double[] rates = new double[downloads.length];
+        for (int i = 0; i < downloads.length; i++) {
+            rates[i] = (downloads[i].getBytesReceived() - startBytes[i]) / seconds;
+            assertTrue("download finished before the measurement ended", downloads[i].getBytesReceived() < SIZE);
+        }
+        return rates;
+    }
+
+    private static void assertWithin(String name, double expected, double actual) {
+        assertTrue(String.format("%s %.0f, expected %.0f", name, actual, expected),
+                Math.abs(actual - expected) <= expected * TOLERANCE);
+    }
+}
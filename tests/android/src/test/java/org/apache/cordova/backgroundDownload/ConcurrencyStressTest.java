@@ -0,0 +1,235 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrencyStressTest {
+
+    private static final long TIMEOUT = 60000;
+    private static final int THREADS = 16;
+    private static final int OPERATIONS_PER_THREAD = 150;
+    private static final int URIS = 20;
+    // MAX_CONCURRENT_TRANSFERS and MAX_SEGMENT_THREADS of the plugin
+    private static final int MAX_TRANSFER_THREADS = 8 + 16;
+
+    private PluginHarness harness;
+    private RangeServer server;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new PluginHarness();
+        content = new byte[256 * 1024];
+        new Random(1).nextBytes(content);
+        server = new RangeServer(content, "\"v1\"");
+        server.setChunkDelay(5);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void serialExecutorRunsTasksOneAtATimeInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final SerialExecutor executor = new SerialExecutor(pool);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<List<Integer>> order = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(THREADS * 1000);
+        try {
+            List<Thread> submitters = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final List<Integer> submitted = Collections.synchronizedList(new ArrayList<Integer>());
+                order.add(submitted);
+                submitters.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int n = 0; n < 1000; n++) {
+                            final int value = n;
+                            executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (running.incrementAndGet() != 1) {
+                                        overlaps.incrementAndGet();
+                                    }
+                                    submitted.add(value);
+                                    running.decrementAndGet();
+                                    done.countDown();
+                                }
+                            });
+                        }
+                    }
+                }));
+            }
+            for (Thread submitter : submitters) {
+                submitter.start();
+            }
+            assertTrue("tasks lost", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(0, overlaps.get());
+            for (List<Integer> submitted : order) {
+                assertEquals(1000, submitted.size());
+                for (int n = 0; n < 1000; n++) {
+                    assertEquals(Integer.valueOf(n), submitted.get(n));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentActionsReportEveryDownloadOnce() throws Exception {
+        final List<PluginHarness.Callback> downloads = Collections.synchronizedList(new ArrayList<PluginHarness.Callback>());
+        final List<File> targets = Collections.synchronizedList(new ArrayList<File>());
+        final List<PluginHarness.Callback> actions = Collections.synchronizedList(new ArrayList<PluginHarness.Callback>());
+        final AtomicInteger nextTarget = new AtomicInteger();
+        final AtomicInteger maxThreads = new AtomicInteger();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final AtomicBoolean isPolling = new AtomicBoolean(true);
+
+        // progress is polled all the time rather than by the timer, so it always races with the final results
+        Thread poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isPolling.get()) {
+                    harness.getPlugin().updateProgress();
+                }
+            }
+        });
+        poller.start();
+
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final Random random = new Random(i);
+            callers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        for (int n = 0; n < OPERATIONS_PER_THREAD; n++) {
+                            String uri = getUri(random.nextInt(URIS));
+                            int operation = random.nextInt(10);
+                            if (operation < 4) {
+                                File target = new File(harness.getFilesDir(), "file-" + nextTarget.incrementAndGet() + ".bin");
+                                synchronized (downloads) {
+                                    targets.add(target);
+                                    downloads.add(harness.startAsync(uri, target,
+                                            new JSONObject().put("engine", "segmented")));
+                                }
+                            } else if (operation < 6) {
+                                actions.add(harness.execute("stop", uri));
+                            } else if (operation < 8) {
+                                actions.add(harness.execute("pause", uri));
+                            } else {
+                                actions.add(harness.execute("resume", uri));
+                            }
+                            maxThreads.accumulateAndGet(countTransferThreads(), Math::max);
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread caller : callers) {
+            caller.start();
+        }
+        startGate.countDown();
+        for (Thread caller : callers) {
+            caller.join(TIMEOUT);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        // every action is answered exactly once
+        harness.awaitActions();
+        for (PluginHarness.Callback action : actions) {
+            assertNotNull("action not answered", action.await(TIMEOUT));
+            assertEquals(0, action.getLateResults());
+        }
+
+        // downloads left paused by the storm are continued, then every one completes, fails or was stopped once
+        for (int i = 0; i < URIS; i++) {
+            harness.execute("resume", getUri(i)).await(TIMEOUT);
+        }
+        for (int i = 0; i < downloads.size(); i++) {
+            PluginHarness.Callback download = downloads.get(i);
+            assertNotNull("download not finished", download.await(TIMEOUT));
+            if (download.isSuccess()) {
+                assertArrayEquals(content, Files.readAllBytes(targets.get(i).toPath()));
+            }
+        }
+        assertTrue("too many transfer threads: " + maxThreads.get(), maxThreads.get() <= MAX_TRANSFER_THREADS);
+
+        PluginHarness.Callback active = harness.execute("getActiveDownloads");
+        active.await();
+        assertEquals(0, new JSONArray(active.getFinalResult().getMessage()).length());
+
+        // nothing can be sent anymore once the poller and the plugin are stopped, so late results are all counted
+        isPolling.set(false);
+        poller.join(TIMEOUT);
+        harness.destroy();
+        for (PluginHarness.Callback download : downloads) {
+            assertEquals(0, download.getLateResults());
+        }
+        for (PluginHarness.Callback action : actions) {
+            assertEquals(0, action.getLateResults());
+        }
+    }
+
+    private String getUri(int index) throws Exception {
+        return server.getUrl("/file-" + index + ".bin").toString();
+    }
+
+    private static int countTransferThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("SegmentedDownload-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+public class DownloadCacheTest {
+
+    private static final long TIMEOUT = 20000;
+    private static final int SIZE = 64 * 1024;
+
+    private PluginHarness harness;
+    private RangeServer server;
+    private byte[] content;
+    private String uri;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new PluginHarness();
+        content = new byte[SIZE];
+        new Random(1).nextBytes(content);
+        server = new RangeServer(content, "\"v1\"");
+        uri = server.getUrl("/file.bin").toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void cacheHitSkipsNetwork() throws Exception {
+        File first = download("first.bin");
+        File second = download("second.bin");
+
+        assertEquals(1, server.getRequestCount());
+        assertArrayEquals(content, Files.readAllBytes(first.toPath()));
+        assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        assertEquals(1, getCacheInfo().getInt("count"));
+    }
+
+    @Test
+    public void modifiedResultFileInvalidatesEntry() throws Exception {
+        File first = download("first.bin");
+        // the cached file is linked to the result file
+        Files.write(first.toPath(), new byte[] {1, 2, 3});
+
+        File second = download("second.bin");
+        assertEquals(2, server.getRequestCount());
+        assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+    }
+
+    @Test
+    public void clearCacheRemovesCachedFiles() throws Exception {
+        File first = download("first.bin");
+        assertEquals(SIZE, getCacheInfo().getLong("size"));
+
+        PluginHarness.Callback clear = harness.execute("clearCache");
+        clear.await();
+        assertTrue(clear.isSuccess());
+        JSONObject info = getCacheInfo();
+        assertEquals(0, info.getInt("count"));
+        assertEquals(0, info.getLong("size"));
+        // result files are kept
+        assertArrayEquals(content, Files.readAllBytes(first.toPath()));
+
+        download("second.bin");
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreEvicted() throws Exception {
+        Context context = new Context();
+        DownloadCache cache = new DownloadCache(context);
+        cache.setMaxSize(3 * SIZE);
+        File dir = Files.createTempDirectory("cached").toFile();
+        File a = createFile(dir, "a");
+        File b = createFile(dir, "b");
+        File c = createFile(dir, "c");
+        File d = createFile(dir, "d");
+
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.put("c", c);
+        File cachedB = cache.get("b");
+        assertNotNull(cachedB);
+        // a becomes the most recently used, b the least
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("a"));
+
+        cache.put("d", d);
+        assertNull(cache.get("b"));
+        assertFalse("evicted file not deleted", cachedB.exists());
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(3 * SIZE, cache.toJSON().getLong("size"));
+
+        // lowering the limit evicts the least recently used files at once
+        cache.setMaxSize(SIZE);
+        assertEquals(1, cache.toJSON().getInt("count"));
+        assertNotNull(cache.get("d"));
+
+        // a file bigger than the cache is not added
+        cache.put("big", createFile(dir, "big", 2 * SIZE));
+        assertNull(cache.get("big"));
+        assertNotNull(cache.get("d"));
+    }
+
+    private File download(String name) throws Exception {
+        File target = new File(harness.getFilesDir(), name);
+        PluginHarness.Callback download = harness.startAsync(uri, target, new JSONObject()
+                .put("engine", "segmented")
+                .put("cache", true));
+        assertNotNull(download.await(TIMEOUT));
+        assertTrue(download.getError(), download.isSuccess());
+        return target;
+    }
+
+    private JSONObject getCacheInfo() throws Exception {
+        PluginHarness.Callback configure = harness.execute("configureCache", new JSONObject());
+        configure.await();
+        return new JSONObject(configure.getFinalResult().getMessage());
+    }
+
+    private File createFile(File dir, String name) throws Exception {
+        return createFile(dir, name, SIZE);
+    }
+
+    private File createFile(File dir, String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        File file = new File(dir, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+
+/**
+ * DownloadManager completion is reported from its broadcast rather than from the fallback poll. Also run with
+ * -Dandroid.sdk=34, where a receiver registered without the export flags is rejected.
+ */
+public class DownloadEventsTest {
+
+    private static final String URI = "http://cdn.example.com/file.bin";
+    // longer than the first tick, well below the fallback poll of 10 s
+    private static final long IDLE = 1500;
+    private static final long TIMEOUT = 3000;
+
+    private PluginHarness harness;
+
+    @Before
+    public void setUp() {
+        harness = new PluginHarness();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+    }
+
+    @Test
+    public void registersReceiversWithExportFlags() throws Exception {
+        harness.startAsync(URI, new File(harness.getFilesDir(), "file.bin"), null);
+        harness.awaitActions();
+
+        int completeFlags = harness.getActivity().getReceiverFlags(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
+        int connectivityFlags = harness.getActivity().getReceiverFlags(ConnectivityManager.CONNECTIVITY_ACTION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            assertEquals(Context.RECEIVER_EXPORTED, completeFlags);
+            assertEquals(Context.RECEIVER_NOT_EXPORTED, connectivityFlags);
+        } else {
+            assertEquals(0, completeFlags);
+            assertEquals(0, connectivityFlags);
+        }
+    }
+
+    @Test
+    public void completionIsReportedFromBroadcast() throws Exception {
+        File target = new File(harness.getFilesDir(), "file.bin");
+        PluginHarness.Callback callback = harness.startAsync(URI, target, null);
+        harness.awaitActions();
+
+        // DownloadManager is not polled while nothing happens
+        Thread.sleep(IDLE);
+        long queries = harness.getDownloadManager().getQueryCount();
+        Thread.sleep(IDLE);
+        assertEquals(queries, harness.getDownloadManager().getQueryCount());
+
+        long id = harness.getDownloadManager().findId(URI);
+        byte[] content = "content".getBytes("UTF-8");
+        harness.getDownloadManager().complete(id, content);
+        harness.broadcastDownloadComplete();
+
+        assertNotNull("not reported from the broadcast", callback.await(TIMEOUT));
+        assertTrue(callback.getError(), callback.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+}
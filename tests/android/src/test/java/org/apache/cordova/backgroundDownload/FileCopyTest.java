@@ -0,0 +1,146 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileCopyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class RecordingListener implements FileCopy.Listener {
+
+        private long lastBytesProcessed;
+        private long bytesTotal;
+        private int calls;
+
+        @Override
+        public void onProgress(long bytesProcessed, long bytesTotal) throws InterruptedIOException {
+            assertTrue(bytesProcessed > lastBytesProcessed);
+            this.lastBytesProcessed = bytesProcessed;
+            this.bytesTotal = bytesTotal;
+            calls++;
+        }
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String sha256(File file) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void copiesFileInChunks() throws Exception {
+        int size = (int) FileCopy.CHUNK_SIZE * 2 + 12345;
+        File source = createFile("source", size);
+        File target = new File(folder.getRoot(), "target");
+        RecordingListener listener = new RecordingListener();
+
+        FileCopy.copy(source, target, null, listener);
+
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(target.toPath()));
+        assertEquals(size, listener.lastBytesProcessed);
+        assertEquals(size, listener.bytesTotal);
+        assertEquals(3, listener.calls);
+    }
+
+    @Test
+    public void hashesWhileCopying() throws Exception {
+        File source = createFile("source", 3000000);
+        File target = new File(folder.getRoot(), "target");
+        IntegrityCheck integrityCheck = IntegrityCheck.create("SHA-256", sha256(source));
+
+        FileCopy.copy(source, target, integrityCheck, new RecordingListener());
+
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(target.toPath()));
+        assertTrue(integrityCheck.matches(integrityCheck.getHash()));
+    }
+
+    @Test
+    public void hashesMappedFile() throws Exception {
+        File file = createFile("file", (int) FileCopy.CHUNK_SIZE + 1);
+        IntegrityCheck integrityCheck = IntegrityCheck.create("SHA-256", sha256(file));
+        RecordingListener listener = new RecordingListener();
+
+        FileCopy.hash(file, integrityCheck, listener);
+
+        assertTrue(integrityCheck.matches(integrityCheck.getHash()));
+        assertEquals(2, listener.calls);
+    }
+
+    @Test
+    public void detectsHashMismatch() throws Exception {
+        File file = createFile("file", 1000);
+        IntegrityCheck integrityCheck = IntegrityCheck.create("CRC32", "00000000");
+
+        FileCopy.hash(file, integrityCheck, new RecordingListener());
+
+        assertFalse(integrityCheck.matches(integrityCheck.getHash()));
+    }
+
+    @Test
+    public void listenerCancelsCopy() throws Exception {
+        File source = createFile("source", (int) FileCopy.CHUNK_SIZE * 2);
+        File target = new File(folder.getRoot(), "target");
+        try {
+            FileCopy.copy(source, target, null, new FileCopy.Listener() {
+                @Override
+                public void onProgress(long bytesProcessed, long bytesTotal) throws InterruptedIOException {
+                    throw new InterruptedIOException("Copying terminated");
+                }
+            });
+            fail("Copy was not canceled");
+        } catch (InterruptedIOException expected) {
+            assertEquals(FileCopy.CHUNK_SIZE, target.length());
+        }
+    }
+}
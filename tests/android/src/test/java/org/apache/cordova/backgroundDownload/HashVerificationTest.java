@@ -0,0 +1,165 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+public class HashVerificationTest {
+
+    private static final long TIMEOUT = 20000;
+    private static final String JOURNAL_PREFERENCES = "org.apache.cordova.backgroundDownload.journal";
+
+    private PluginHarness harness;
+    private RangeServer server;
+    private byte[] content;
+    private String uri;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new PluginHarness();
+        content = new byte[256 * 1024];
+        new Random(1).nextBytes(content);
+        server = new RangeServer(content, "\"v1\"");
+        uri = server.getUrl("/file.bin").toString();
+        target = new File(harness.getFilesDir(), "file.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void mismatchFailsAndRemovesFiles() throws Exception {
+        PluginHarness.Callback download = harness.startAsync(uri, target, new JSONObject()
+                .put("engine", "segmented")
+                .put("expectedHash", sha256(new byte[] {1})));
+
+        assertNotNull(download.await(TIMEOUT));
+        assertEquals("HASH_MISMATCH", download.getError());
+        assertFalse(target.exists());
+        assertFalse("temporary file not removed", new File(target.getParentFile(), ".file.bin.part").exists());
+    }
+
+    @Test
+    public void verifiedFileIsNotHashedAgain() throws Exception {
+        JSONObject options = new JSONObject()
+                .put("engine", "segmented")
+                .put("cache", true)
+                .put("expectedHash", sha256(content));
+        PluginHarness.Callback first = harness.startAsync(uri, target, options);
+        first.await(TIMEOUT);
+        assertTrue(first.getError(), first.isSuccess());
+
+        // changed without changing its size and modification time, only hashing the file again would notice
+        long lastModified = target.lastModified();
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.write(content[0] + 1);
+        } finally {
+            file.close();
+        }
+        assertTrue(target.setLastModified(lastModified));
+
+        // served from the cache into the same result file
+        PluginHarness.Callback second = harness.startAsync(uri, target, options);
+        second.await(TIMEOUT);
+        assertTrue(second.getError(), second.isSuccess());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void journalForgetsDeletedAndOldestFiles() throws Exception {
+        Context context = new Context();
+        DownloadJournal journal = new DownloadJournal(context);
+        File dir = Files.createTempDirectory("verified").toFile();
+        IntegrityCheck integrityCheck = IntegrityCheck.create("SHA-256", sha256(content));
+
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            File file = new File(dir, "file-" + i + ".bin");
+            Files.write(file.toPath(), content);
+            journal.putHashVerified(file, integrityCheck);
+            files.add(file);
+            Thread.sleep(i % 50 == 0 ? 2 : 0);
+        }
+        assertTrue(countHashes(context) <= 256);
+        assertTrue(journal.isHashVerified(files.get(299), integrityCheck));
+        assertFalse("oldest hash kept", journal.isHashVerified(files.get(0), integrityCheck));
+
+        // deleted by the plugin
+        journal.removeHashVerified(files.get(299));
+        assertFalse(journal.isHashVerified(files.get(299), integrityCheck));
+
+        // deleted by the app
+        int count = countHashes(context);
+        for (int i = 250; i < 260; i++) {
+            assertTrue(files.get(i).delete());
+        }
+        journal.pruneHashVerified();
+        assertEquals(count - 10, countHashes(context));
+        assertTrue(journal.isHashVerified(files.get(270), integrityCheck));
+
+        // the count survives a restart
+        DownloadJournal restored = new DownloadJournal(context);
+        for (int i = 0; i < 300; i++) {
+            restored.putHashVerified(files.get(i), integrityCheck);
+        }
+        assertTrue(countHashes(context) <= 256);
+    }
+
+    private static int countHashes(Context context) {
+        int count = 0;
+        for (String key : context.getSharedPreferences(JOURNAL_PREFERENCES, Context.MODE_PRIVATE).getAll().keySet()) {
+            if (key.startsWith("hash:")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
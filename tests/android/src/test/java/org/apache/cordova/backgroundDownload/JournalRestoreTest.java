@@ -0,0 +1,151 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.app.DownloadManager;
+import android.net.Uri;
+
+/**
+ * DownloadManager downloads are re-attached after the app restarts through the journal kept in the shared
+ * preferences.
+ */
+public class JournalRestoreTest {
+
+    private static final String URI = "http://cdn.example.com/file.bin";
+    private static final long TIMEOUT = 3000;
+
+    private PluginHarness harness;
+    private File target;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new PluginHarness();
+        target = new File(harness.getFilesDir(), "file.bin");
+        content = "content".getBytes("UTF-8");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+    }
+
+    @Test
+    public void downloadIsAttachedByUriAfterRestart() throws Exception {
+        harness.startAsync(URI, target, null);
+        harness.awaitActions();
+        long id = harness.getDownloadManager().findId(URI);
+        assertNotEquals(-1, id);
+
+        harness = harness.restart();
+        assertListed(URI, false);
+
+        PluginHarness.Callback download = harness.startAsync(URI, target, null);
+        harness.awaitActions();
+        // attached instead of being started again
+        assertEquals(1, harness.getDownloadManager().getIds().size());
+        assertListed(URI, true);
+
+        assertCompletes(download, id);
+    }
+
+    @Test
+    public void downloadIsAttachedByUriMatcherAfterRestart() throws Exception {
+        String matcher = "cdn\\.example\\.com/file\\.bin";
+        harness.execute("startAsync", URI + "?token=1", Uri.fromFile(target).toString(), matcher, null, null, null);
+        harness.awaitActions();
+        long id = harness.getDownloadManager().findId(URI + "?token=1");
+
+        harness = harness.restart();
+        PluginHarness.Callback download = harness.execute("startAsync", URI + "?token=2",
+                Uri.fromFile(target).toString(), matcher, null, null, null);
+        harness.awaitActions();
+        assertEquals(1, harness.getDownloadManager().getIds().size());
+        // recorded with the uri of the new request
+        assertListed(URI + "?token=2", true);
+
+        assertCompletes(download, id);
+    }
+
+    @Test
+    public void existingDownloadsAreImportedOnFirstRunOnly() throws Exception {
+        DownloadManager downloadManager = harness.getDownloadManager();
+        File partialFile = new File(harness.getFilesDir(), "existing.part");
+        long id = downloadManager.addExisting(URI, Uri.fromFile(partialFile).toString(),
+                DownloadManager.STATUS_RUNNING);
+
+        PluginHarness.Callback download = harness.startAsync(URI, target, null);
+        harness.awaitActions();
+        assertEquals(1, downloadManager.getIds().size());
+
+        // rows which appear after the journal was initialized are not scanned for
+        harness = harness.restart();
+        String otherUri = "http://cdn.example.com/other.bin";
+        downloadManager.addExisting(otherUri, null, DownloadManager.STATUS_RUNNING);
+        long queryCount = downloadManager.getQueryCount();
+        harness.startAsync(otherUri, new File(harness.getFilesDir(), "other.bin"), null);
+        harness.awaitActions();
+        assertEquals(queryCount, downloadManager.getQueryCount());
+        assertEquals(3, downloadManager.getIds().size());
+
+        // the imported download is still attached after the restart
+        download = harness.startAsync(URI, target, null);
+        harness.awaitActions();
+        assertEquals(3, downloadManager.getIds().size());
+        assertCompletes(download, id);
+    }
+
+    private void assertListed(String uri, boolean isAttached) throws Exception {
+        PluginHarness.Callback active = harness.execute("getActiveDownloads");
+        active.await();
+        JSONArray downloads = new JSONArray(active.getFinalResult().getMessage());
+        for (int i = 0; i < downloads.length(); i++) {
+            JSONObject download = downloads.getJSONObject(i);
+            if (uri.equals(download.getString("uri"))) {
+                assertEquals(Uri.fromFile(target).toString(), download.getString("resultFile"));
+                assertEquals(isAttached, download.getBoolean("attached"));
+                return;
+            }
+        }
+        throw new AssertionError(uri + " not in " + downloads);
+    }
+
+    private void assertCompletes(PluginHarness.Callback download, long id) throws Exception {
+        harness.getDownloadManager().complete(id, content);
+        harness.broadcastDownloadComplete();
+        assertNotNull(download.await(TIMEOUT));
+        assertTrue(download.getError(), download.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+public class PauseResumeTest {
+
+    private static final long TIMEOUT = 20000;
+
+    private PluginHarness harness;
+    private RangeServer server;
+    private byte[] content;
+    private String uri;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new PluginHarness();
+        content = new byte[4 * 1048576];
+        new Random(1).nextBytes(content);
+        server = new RangeServer(content, "\"v1\"");
+        server.setChunkDelay(50);
+        uri = server.getUrl("/file.bin").toString();
+        target = new File(harness.getFilesDir(), "file.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void resumeRightAfterPauseContinues() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            target.delete();
+            PluginHarness.Callback download = harness.startAsync(uri, target, new JSONObject().put("engine", "segmented"));
+            download.awaitProgress("bytesReceived", TIMEOUT);
+
+            // the transfer may or may not have stopped when resume arrives
+            PluginHarness.Callback pause = harness.execute("pause", uri);
+            PluginHarness.Callback resume = harness.execute("resume", uri);
+            pause.await();
+            resume.await();
+            assertTrue(pause.isSuccess());
+            assertTrue(resume.getError(), resume.isSuccess());
+
+            download.await(TIMEOUT);
+            assertTrue(download.getError(), download.isSuccess());
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        }
+    }
+
+    @Test
+    public void resumeOfRunningDownloadFails() throws Exception {
+        PluginHarness.Callback download = harness.startAsync(uri, target, new JSONObject().put("engine", "segmented"));
+        download.awaitProgress("bytesReceived", TIMEOUT);
+
+        PluginHarness.Callback resume = harness.execute("resume", uri);
+        resume.await();
+        assertEquals("download is not paused", resume.getError());
+
+        harness.execute("stop", uri).await();
+        download.await();
+    }
+
+    @Test
+    public void transferIsHeldWhenPolicyNoLongerHolds() throws Exception {
+        PluginHarness.Callback download = harness.startAsync(uri, target,
+                new JSONObject().put("engine", "segmented").put("segments", 1).put("wifiOnly", true));
+        download.awaitProgress("bytesReceived", TIMEOUT);
+
+        setActiveNetwork(new NetworkInfo(ConnectivityManager.TYPE_MOBILE, true, false), true);
+        download.awaitProgress("\"waitingFor\":[\"wifi\"]", TIMEOUT);
+        harness.awaitActions();
+        int requestCount = server.getRequestCount();
+        Thread.sleep(200);
+        assertFalse(download.isFinished());
+        assertEquals(requestCount, server.getRequestCount());
+
+        setActiveNetwork(new NetworkInfo(ConnectivityManager.TYPE_WIFI, true, false), false);
+        download.await(TIMEOUT);
+        assertTrue(download.getError(), download.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+
+        // continued from the partial file
+        List<String> ranges = server.getRanges();
+        String lastRange = ranges.get(ranges.size() - 1);
+        assertTrue(lastRange, lastRange != null && !lastRange.startsWith("bytes=0-"));
+    }
+
+    private void setActiveNetwork(NetworkInfo network, boolean isMetered) {
+        harness.getConnectivityManager().setActiveNetwork(network, isMetered);
+        harness.getActivity().sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import android.app.DownloadManager;
+
+public class ProgressFilterTest {
+
+    private static final int RUNNING = DownloadManager.STATUS_RUNNING;
+    private static final int PAUSED = DownloadManager.STATUS_PAUSED;
+
+    @Test
+    public void dropsUnchangedSnapshots() {
+        ProgressFilter filter = ProgressFilter.create(null);
+
+        assertTrue(filter.shouldReport(RUNNING, 0, 100, 1000));
+        assertFalse(filter.shouldReport(RUNNING, 0, 100, 1000));
+        assertTrue(filter.shouldReport(RUNNING, 0, 200, 1000));
+    }
+
+    @Test
+    public void reportsStateChangesOnly() throws Exception {
+        ProgressFilter filter = ProgressFilter.create(new JSONObject().put("stateChangesOnly", true));
+
+        assertTrue(filter.shouldReport(RUNNING, 0, 100, 1000));
+        assertFalse(filter.shouldReport(RUNNING, 0, 200, 1000));
+        assertTrue(filter.shouldReport(PAUSED, DownloadManager.PAUSED_WAITING_FOR_NETWORK, 200, 1000));
+        assertTrue(filter.shouldReport(PAUSED, DownloadManager.PAUSED_QUEUED_FOR_WIFI, 200, 1000));
+    }
+
+    @Test
+    public void appliesByteAndPercentDeltas() throws Exception {
+        ProgressFilter bytes = ProgressFilter.create(new JSONObject().put("minBytesDelta", 100));
+        assertTrue(bytes.shouldReport(RUNNING, 0, 0, 1000));
+        assertFalse(bytes.shouldReport(RUNNING, 0, 99, 1000));
+        assertTrue(bytes.shouldReport(RUNNING, 0, 100, 1000));
+
+        ProgressFilter percent = ProgressFilter.create(new JSONObject().put("minPercentDelta", 10));
+        assertTrue(percent.shouldReport(RUNNING, 0, 0, 1000));
+        assertFalse(percent.shouldReport(RUNNING, 0, 99, 1000));
+        assertTrue(percent.shouldReport(RUNNING, 0, 100, 1000));
+    }
+
+    @Test
+    public void limitsEmitRate() throws Exception {
+        ProgressFilter filter = ProgressFilter.create(new JSONObject().put("maxEmitRate", 1));
+
+        assertTrue(filter.shouldReport(RUNNING, 0, 0, 1000));
+        assertFalse(filter.shouldReport(RUNNING, 0, 500, 1000));
+        // state changes are not rate limited
+        assertTrue(filter.shouldReport(PAUSED, 0, 500, 1000));
+    }
+}
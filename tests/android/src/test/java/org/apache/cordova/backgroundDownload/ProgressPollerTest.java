@@ -0,0 +1,93 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The progress of all downloads is polled by one timer with one DownloadManager query per tick, so neither grows
+ * with the number of downloads.
+ */
+public class ProgressPollerTest {
+
+    private static final int TICKS = 5;
+    // threads of the cached pool running the actions and of the JVM come and go
+    private static final int THREAD_SLACK = 3;
+
+    private PluginHarness harness;
+    private int started;
+
+    @Before
+    public void setUp() {
+        harness = new PluginHarness();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+    }
+
+    @Test
+    public void threadAndQueryCountsStayFlat() throws Exception {
+        startDownloads(10);
+        int threadsFew = ManagementFactory.getThreadMXBean().getThreadCount();
+        long queriesFew = queriesPerTicks();
+
+        startDownloads(490);
+        int threadsMany = ManagementFactory.getThreadMXBean().getThreadCount();
+        long queriesMany = queriesPerTicks();
+
+        assertEquals(500, harness.getDownloadManager().getIds().size());
+        assertTrue("threads grew from " + threadsFew + " to " + threadsMany,
+                threadsMany <= threadsFew + THREAD_SLACK);
+        assertEquals(TICKS, queriesFew);
+        assertEquals(TICKS, queriesMany);
+    }
+
+    private void startDownloads(int count) throws Exception {
+        for (int i = 0; i < count; i++, started++) {
+            harness.startAsync("http://cdn" + started % 8 + ".example.com/file" + started + ".bin",
+                    new File(harness.getFilesDir(), "file" + started + ".bin"), null);
+        }
+        harness.awaitActions();
+    }
+
+    /**
+     * @return DownloadManager queries of a few progress ticks
+     */
+    private long queriesPerTicks() {
+        BackgroundDownload plugin = harness.getPlugin();
+        // the timer of the plugin collects the downloads under the same lock, so it does not tick in between
+        synchronized (plugin) {
+            long before = harness.getDownloadManager().getQueryCount();
+            for (int i = 0; i < TICKS; i++) {
+                plugin.updateProgress();
+            }
+            return harness.getDownloadManager().getQueryCount() - before;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.app.DownloadManager;
+
+/**
+ * Failed in-process downloads are started again by their retry policy.
+ */
+public class RetryTest {
+
+    private static final long TIMEOUT = 20000;
+
+    private PluginHarness harness;
+    private RangeServer server;
+    private byte[] content;
+    private String uri;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new PluginHarness();
+        content = new byte[4 * 1048576];
+        new Random(1).nextBytes(content);
+        server = new RangeServer(content, "\"v1\"");
+        server.setChunkDelay(50);
+        uri = server.getUrl("/file.bin").toString();
+        target = new File(harness.getFilesDir(), "file.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void delayGrowsExponentiallyWithJitter() throws Exception {
+        RetryPolicy policy = RetryPolicy.create(new JSONObject()
+                .put("initialDelay", 1000).put("maxDelay", 6000).put("multiplier", 2));
+        long[] maxDelays = {1000, 2000, 4000, 6000, 6000};
+        for (int attempt = 1; attempt <= maxDelays.length; attempt++) {
+            HashSet<Long> delays = new HashSet<>();
+            for (int i = 0; i < 200; i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue("attempt " + attempt + " delay " + delay,
+                        delay >= maxDelays[attempt - 1] / 2 && delay <= maxDelays[attempt - 1]);
+                delays.add(delay);
+            }
+            assertTrue("no jitter", delays.size() > 1);
+        }
+    }
+
+    @Test
+    public void policyLimitsAttemptsAndReasons() throws Exception {
+        RetryPolicy policy = RetryPolicy.create(new JSONObject().put("maxAttempts", 3));
+        assertTrue(policy.shouldRetry(1, HttpURLConnection.HTTP_UNAVAILABLE));
+        assertTrue(policy.shouldRetry(2, DownloadManager.ERROR_HTTP_DATA_ERROR));
+        assertFalse(policy.shouldRetry(3, HttpURLConnection.HTTP_UNAVAILABLE));
+        assertFalse(policy.shouldRetry(1, HttpURLConnection.HTTP_NOT_FOUND));
+
+        RetryPolicy custom = RetryPolicy.create(new JSONObject().put("retryOn", new JSONArray().put(404)));
+        assertTrue(custom.shouldRetry(1, HttpURLConnection.HTTP_NOT_FOUND));
+        assertFalse(custom.shouldRetry(1, HttpURLConnection.HTTP_UNAVAILABLE));
+
+        assertFalse(RetryPolicy.create(null).shouldRetry(1, HttpURLConnection.HTTP_UNAVAILABLE));
+    }
+
+    @Test
+    public void failedAttemptsAreRetriedAfterDelay() throws Exception {
+        server.failNextRequests(2, HttpURLConnection.HTTP_UNAVAILABLE);
+        long startTime = System.currentTimeMillis();
+        PluginHarness.Callback download = startDownload(3);
+
+        // the transfer reports the attempt it belongs to
+        download.awaitProgress("\"attempt\":3", TIMEOUT);
+        assertNotNull(download.await(TIMEOUT));
+        long elapsed = System.currentTimeMillis() - startTime;
+        assertTrue(download.getError(), download.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(3, server.getRequestCount());
+
+        List<JSONObject> retries = getRetries(download);
+        assertEquals(2, retries.size());
+        long totalDelay = 0;
+        for (int i = 0; i < retries.size(); i++) {
+            JSONObject retry = retries.get(i);
+            long maxDelay = 200L << i;
+            long delay = retry.getLong("retryDelay");
+            assertTrue("delay " + delay, delay >= maxDelay / 2 && delay <= maxDelay);
+            assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, retry.getInt("reason"));
+            // number of the next attempt
+            assertEquals(i + 2, retry.getInt("attempt"));
+            assertEquals(3, retry.getInt("maxAttempts"));
+            totalDelay += delay;
+        }
+        assertTrue("retried before the delay, " + elapsed + " ms", elapsed >= totalDelay);
+    }
+
+    @Test
+    public void errorIsReportedAfterLastAttempt() throws Exception {
+        server.failNextRequests(10, HttpURLConnection.HTTP_UNAVAILABLE);
+        PluginHarness.Callback download = startDownload(2);
+
+        assertNotNull(download.await(TIMEOUT));
+        assertFalse(download.isSuccess());
+        assertTrue(download.getError(), download.getError().contains("503"));
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, getRetries(download).size());
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void reasonWhichIsNotRetryableFailsAtOnce() throws Exception {
+        server.failNextRequests(10, HttpURLConnection.HTTP_NOT_FOUND);
+        PluginHarness.Callback download = startDownload(3);
+
+        assertNotNull(download.await(TIMEOUT));
+        assertFalse(download.isSuccess());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, getRetries(download).size());
+    }
+
+    @Test
+    public void retryContinuesFromPartialFile() throws Exception {
+        server.disconnectNextRequestAfter(content.length / 2);
+        PluginHarness.Callback download = startDownload(3);
+
+        assertNotNull(download.await(TIMEOUT));
+        assertTrue(download.getError(), download.isSuccess());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(1, getRetries(download).size());
+
+        List<String> ranges = server.getRanges();
+        assertEquals(2, ranges.size());
+        assertTrue(ranges.get(1), ranges.get(1).startsWith("bytes=" + content.length / 2 + "-"));
+    }
+
+    private PluginHarness.Callback startDownload(int maxAttempts) throws Exception {
+        return harness.startAsync(uri, target, new JSONObject()
+                .put("engine", "segmented")
+                .put("segments", 1)
+                .put("retry", new JSONObject().put("maxAttempts", maxAttempts).put("initialDelay", 200)));
+    }
+
+    /**
+     * @return retry notifications sent to the download in the order they were sent
+     */
+    private static List<JSONObject> getRetries(PluginHarness.Callback download) throws Exception {
+        List<JSONObject> retries = new ArrayList<>();
+        for (PluginResult result : download.getResults()) {
+            if (result.getMessage().contains("\"retrying\":true")) {
+                retries.add(new JSONObject(result.getMessage()).getJSONObject("progress"));
+            }
+        }
+        return retries;
+    }
+}
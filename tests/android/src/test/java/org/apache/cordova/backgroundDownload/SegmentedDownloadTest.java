@@ -0,0 +1,219 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.backgroundDownload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedDownloadTest {
+
+    private static final int SIZE = 4 * 1048576;
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Waits for the transfer to complete, to pause or to fail.
+     */
+    private static class Result implements SegmentedDownload.Listener {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final CountDownLatch progress = new CountDownLatch(1);
+        private volatile boolean isCompleted;
+        private volatile boolean isPaused;
+        private volatile Exception error;
+        private volatile int httpStatus;
+
+        @Override
+        public void onProgress(SegmentedDownload download) {
+            progress.countDown();
+        }
+
+        @Override
+        public void onComplete(SegmentedDownload download) {
+            isCompleted = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onPaused(SegmentedDownload download) {
+            isPaused = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(SegmentedDownload download, int httpStatus, Exception e) {
+            this.httpStatus = httpStatus;
+            error = e;
+            done.countDown();
+        }
+
+        void awaitProgress() throws InterruptedException {
+            assertTrue("no progress", progress.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void await() throws InterruptedException {
+            awaitResult();
+            assertNull(error);
+        }
+
+        void awaitResult() throws InterruptedException {
+            assertTrue("not finished", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private byte[] content;
+    private RangeServer server;
+    private File file;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        content = createContent(1);
+        server = new RangeServer(content, "\"v1\"");
+        file = File.createTempFile("segmented", ".bin");
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void downloadsSegmentsInParallel() throws Exception {
+        Result result = new Result();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 4, null, executor, result);
+        download.start(executor);
+        result.await();
+
+        assertTrue(result.isCompleted);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(SIZE, download.getTotalBytes());
+        assertEquals(SIZE, download.getBytesReceived());
+        List<String> ranges = server.getRanges();
+        assertEquals(4, ranges.size());
+        // the first request also tells the size, the other segments are requested with their ranges
+        assertEquals("bytes=0-", ranges.get(0));
+        assertTrue(ranges.contains("bytes=3145728-4194303"));
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutRanges() throws Exception {
+        server.setRangeSupported(false);
+        Result result = new Result();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 4, null, executor, result);
+        download.start(executor);
+        result.await();
+
+        assertTrue(result.isCompleted);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(SIZE, download.getTotalBytes());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void resumesWhenFileIsUnchanged() throws Exception {
+        SegmentedDownload.ResumeState resumeState = pauseDownload();
+
+        Result result = new Result();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 4, resumeState, executor, result);
+        download.start(executor);
+        result.await();
+
+        assertTrue(result.isCompleted);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(resumeState.bytesReceived, download.getResumedBytes());
+        assertEquals(0, download.getRefetchedBytes());
+        assertTrue(server.getIfRanges().contains("\"v1\""));
+    }
+
+    @Test
+    public void restartsWhenFileHasChanged() throws Exception {
+        SegmentedDownload.ResumeState resumeState = pauseDownload();
+        byte[] changedContent = createContent(2);
+        server.setContent(changedContent, "\"v2\"");
+
+        Result result = new Result();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 4, resumeState, executor, result);
+        download.start(executor);
+        result.await();
+
+        assertTrue(result.isCompleted);
+        assertArrayEquals(changedContent, Files.readAllBytes(file.toPath()));
+        assertEquals(0, download.getResumedBytes());
+        assertEquals(resumeState.bytesReceived, download.getRefetchedBytes());
+        // the partial file was validated with the old ETag
+        assertTrue(server.getIfRanges().contains("\"v1\""));
+    }
+
+    @Test
+    public void reportsStatusOfFailedSegment() throws Exception {
+        // the other segments are still running when the last one fails, they are aborted by its failure
+        server.setChunkDelay(20);
+        server.failRange("bytes=3145728-4194303", 503);
+        Result result = new Result();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 4, null, executor, result);
+        download.start(executor);
+        result.awaitResult();
+
+        assertNotNull(result.error);
+        assertEquals(503, result.httpStatus);
+    }
+
+    private SegmentedDownload.ResumeState pauseDownload() throws Exception {
+        server.setChunkDelay(20);
+        Result result = new Result();
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), file, 4, null, executor, result);
+        download.start(executor);
+        result.awaitProgress();
+        download.pause();
+        result.await();
+        server.setChunkDelay(0);
+
+        assertTrue(result.isPaused);
+        SegmentedDownload.ResumeState resumeState = download.getResumeState();
+        assertNotNull(resumeState);
+        assertEquals("\"v1\"", resumeState.validator);
+        assertTrue(resumeState.bytesReceived > 0 && resumeState.bytesReceived < SIZE);
+        return resumeState;
+    }
+
+    private static byte[] createContent(long seed) {
+        byte[] bytes = new byte[SIZE];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -19,27 +19,236 @@
  *
 */
 
-var DownloadOperation = require('./DownloadOperation');
+var exec = require('cordova/exec'),
+    Promise = require('./Promise'),
+    DownloadOperation = require('./DownloadOperation'),
+    DownloadBatch = require('./DownloadBatch');
 
 /**
  * Initializes a new instance of BackgroundDownloader object.
  * Used to configure downloads prior to the actual creation of the download operation using CreateDownload.
  * 
  * @param {string} uriMatcher The regexp to compare location of the resources with already downloading ones.
+ * @param {Object} options Optional default settings of the downloads created by this downloader, for example
+ *  the network policy; settings passed to createDownload override them. See DownloadOperation.
  */
-var BackgroundDownloader = function(uriMatcher) {
+var BackgroundDownloader = function(uriMatcher, options) {
     this.uriMatcher = uriMatcher;
+    this.options = options;
 };
 
+function mergeOptions(defaults, options) {
+    if (!defaults) {
+        return options;
+    }
+
+    var result = {}, name;
+    for (name in defaults) {
+        if (defaults.hasOwnProperty(name)) {
+            result[name] = defaults[name];
+        }
+    }
+    for (name in options) {
+        if (options.hasOwnProperty(name)) {
+            result[name] = options[name];
+        }
+    }
+    return result;
+}
+
 /**
  * Initializes a DownloadOperation object that contains the specified Uri and the file that the response is written to.
  *
  * @param {string} uri The location of the resource.
  * @param {File} resultFile The file that the response will be written to.
  * @param {string} notificationTitle The title for downloading in notification.
+ * @param {Object} options Optional download settings, see DownloadOperation.
+ */
+BackgroundDownloader.prototype.createDownload = function(uri, resultFile, notificationTitle, options) {
+    return new DownloadOperation(uri, resultFile, this.uriMatcher, notificationTitle, mergeOptions(this.options, options));
+};
+
+/**
+ * Initializes a DownloadBatch object which starts and stops several downloads with a single call.
+ *
+ * @param {Array} downloads Items { uri, resultFile, notificationTitle, options }, see DownloadOperation.
+ */
+BackgroundDownloader.prototype.createDownloads = function(downloads) {
+    var defaults = this.options;
+    if (defaults && Array.isArray(downloads)) {
+        downloads = downloads.map(function (download) {
+            if (download == null) {
+                return download;
+            }
+            return {
+                uri: download.uri,
+                resultFile: download.resultFile,
+                notificationTitle: download.notificationTitle,
+                options: mergeOptions(defaults, download.options)
+            };
+        });
+    }
+    return new DownloadBatch(downloads, this.uriMatcher);
+};
+
+/**
+ * Limits the number of downloads running at the same time. Downloads above the limits are queued and started
+ * in order of priority. 0 means no limit.
+ *
+ * @param {Object} options Scheduler settings:
+ *  maxConcurrentDownloads - maximum number of downloads running at the same time,
+ *  maxConcurrentDownloadsPerHost - maximum number of downloads from the same host running at the same time,
+ *  hostLimits - per host overrides of maxConcurrentDownloadsPerHost, e.g. { "cdn.example.com": 4 },
+ *  holdLowPriority - keep downloads with negative priority in the queue until the device is on an unmetered
+ *      network or charging (Android),
+ *  maxBytesPerSecond - rate limit shared by all 'segmented' downloads in proportion to their bandwidthWeight (Android).
+ */
+BackgroundDownloader.configureScheduler = function(options) {
+    var deferral = new Promise.Deferral();
+
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "configureScheduler", [options]);
+
+    return deferral.promise;
+};
+
+/**
+ * Returns the state of the download queue: the scheduler limits, running downloads and queued downloads
+ * in the order they will be started.
+ */
+BackgroundDownloader.getQueue = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function(queue) {
+        deferral.resolve(queue);
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "getQueue", []);
+
+    return deferral.promise;
+};
+
+/**
+ * Returns all downloads started by the application which are not completed yet, including the ones started
+ * before the application was restarted and not attached with startAsync yet. Each item contains uri, resultFile,
+ * status, bytesReceived, totalBytesToReceive and attached flag telling whether there is an operation tracking it.
+ */
+BackgroundDownloader.getActiveDownloads = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function(downloads) {
+        downloads.forEach(function(download) {
+            download.status = BackgroundDownloader.DownloadStatus[download.status];
+        });
+        deferral.resolve(downloads);
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "getActiveDownloads", []);
+
+    return deferral.promise;
+};
+
+/**
+ * Configures the download cache (Android). Downloads created with the cache option are stored in the cache, so the
+ * same file requested again into another result file is linked or copied from the cache instead of downloaded.
+ *
+ * @param {Object} options Cache settings:
+ *  maxSize - size limit of the cache in bytes, the least recently used files are evicted above it.
+ * @return {Promise} resolved with { maxSize, size, count } describing the cache.
+ */
+BackgroundDownloader.configureCache = function(options) {
+    var deferral = new Promise.Deferral();
+
+    exec(function(info) {
+        deferral.resolve(info);
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "configureCache", [options || {}]);
+
+    return deferral.promise;
+};
+
+/**
+ * Removes all files from the download cache (Android). Result files of the downloads are not affected.
+ */
+BackgroundDownloader.clearCache = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "clearCache", []);
+
+    return deferral.promise;
+};
+
+/**
+ * Gets the download metrics (Android): plugin wide counters and stats of the running and recently completed downloads.
+ *
+ * @return {Promise} resolved with { pollCount, downloadManagerQueries, bridgeMessages, copyBufferBytesAllocated,
+ *  downloads, recentDownloads }.
+ */
+BackgroundDownloader.getStats = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function(stats) {
+        deferral.resolve(stats);
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "getStats", []);
+
+    return deferral.promise;
+};
+
+/**
+ * Download states reported by the aggregated progress channel.
+ */
+BackgroundDownloader.DownloadStatus = {
+    1: 'pending',
+    2: 'running',
+    4: 'paused',
+    8: 'successful',
+    16: 'failed'
+};
+
+/**
+ * Subscribes to a single batched progress notification for all active downloads. Each notification contains
+ * only the downloads whose state has changed since the previous one. The last notification of a download is
+ * 'successful' once its file is in place or 'failed'. Only one subscriber is supported, subscribing again replaces
+ * the previous subscriber.
+ *
+ * @param {function} onProgress Called with an array of { uri, bytesReceived, totalBytesToReceive, status } objects.
+ * @param {function} onError Called if the subscription fails.
+ */
+BackgroundDownloader.subscribeProgress = function(onProgress, onError) {
+    var successCallback = function(result) {
+        // final notification is sent without payload when subscription is released
+        if (!Array.isArray(result)) {
+            return;
+        }
+
+        onProgress(result.map(function(tuple) {
+            return {
+                uri: tuple[0],
+                bytesReceived: tuple[1],
+                totalBytesToReceive: tuple[2],
+                status: BackgroundDownloader.DownloadStatus[tuple[3]]
+            };
+        }));
+    };
+
+    exec(successCallback, onError, "BackgroundDownload", "subscribeProgress", []);
+};
+
+/**
+ * Stops batched progress notifications.
  */
-BackgroundDownloader.prototype.createDownload = function(uri, resultFile, notificationTitle) {
-    return new DownloadOperation(uri, resultFile, this.uriMatcher, notificationTitle);
+BackgroundDownloader.unsubscribeProgress = function() {
+    exec(null, null, "BackgroundDownload", "unsubscribeProgress", []);
 };
 
 module.exports = BackgroundDownloader;
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+*/
+
+var exec = require('cordova/exec'),
+    Promise = require('./Promise');
+
+/**
+ * Downloads several files with a single call to the native side, which saves a bridge round trip and
+ * the per-download setup for every file (Android).
+ *
+ * @param {Array} downloads Items { uri, resultFile, notificationTitle, options }, see DownloadOperation.
+ * @param {string} uriMatcher The regexp to compare location of the resources with already downloading ones.
+ */
+var DownloadBatch = function (downloads, uriMatcher) {
+
+    if (!Array.isArray(downloads)) {
+        throw new Error("missing or invalid argument");
+    }
+    downloads.forEach(function (download) {
+        if (download == null || download.uri == null || download.resultFile == null) {
+            throw new Error("missing or invalid argument");
+        }
+    });
+
+    this.downloads = downloads;
+    this.uriMatcher = uriMatcher;
+};
+
+/**
+ * Starts all downloads of the batch.
+ *
+ * @param {Object} progressOptions Optional settings to reduce the number of progress notifications,
+ *  see DownloadOperation.startAsync. Using stateChangesOnly is recommended for big batches.
+ * @return {Promise} notified with { uri, index, progress } while the files are downloaded and with
+ *  { uri, index, completed } or { uri, index, error } when a file is completed, index is the position of the
+ *  download in the batch; resolved with the array of { uri, index, completed, error } results in the order of the
+ *  downloads when all files are completed.
+ */
+DownloadBatch.prototype.startAsync = function(progressOptions) {
+
+    var deferral = new Promise.Deferral(),
+        me = this,
+        results = [],
+        items = this.downloads.map(function (download) {
+            return [download.uri, download.resultFile.toURL(), me.uriMatcher, download.notificationTitle,
+                progressOptions || null, download.options || {}];
+        }),
+        successCallback = function(result) {
+            if (!result || result.batchCompleted) {
+                deferral.resolve(me.downloads.map(function (download, index) {
+                    return results[index];
+                }));
+                return;
+            }
+
+            if (typeof result.progress == 'undefined') {
+                // the same uri can be downloaded to several files
+                results[result.index] = result;
+            }
+            deferral.notify(result);
+        },
+        errorCallback = function(err) {
+            deferral.reject(err);
+        };
+
+    exec(successCallback, errorCallback, "BackgroundDownload", "startBatch", [items]);
+
+    // custom mechanism to trigger stop when user cancels pending operation
+    deferral.promise.onCancelled = function () {
+        me.stop();
+    };
+
+    return deferral.promise;
+};
+
+/**
+ * Stops all downloads of the batch which are not completed yet.
+ */
+DownloadBatch.prototype.stop = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "stopBatch", [this.downloads.map(function (download) {
+        return download.uri;
+    }), this.downloads.map(function (download) {
+        return download.resultFile.toURL();
+    })]);
+
+    return deferral.promise;
+};
+
+module.exports = DownloadBatch;
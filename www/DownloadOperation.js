@@ -29,8 +29,28 @@ var exec = require('cordova/exec'),
  * @param {File} resultFile The file that the response will be written to.
  * @param {string} uriMatcher The regexp to compare location of the resources with already downloading ones.
  * @param {string} notificationTitle The title for downloading in notification.
+ * @param {Object} options Optional download settings:
+ *  priority - downloads with higher priority are started first when the number of concurrent downloads is limited,
+ *  engine - 'downloadManager' (default) or 'segmented' to download the file in-process with several parallel
+ *      HTTP Range requests (Android),
+ *  segments - maximum number of parallel requests used by the 'segmented' engine, 4 by default,
+ *  expectedHash - hex encoded hash of the file; the download fails with HASH_MISMATCH if the file does not match (Android),
+ *  hashAlgorithm - 'SHA-256' (default), 'SHA-1', 'MD5', 'CRC32' or 'CRC32C',
+ *  cache - store the file in the download cache and take it from there if it is already cached (Android),
+ *  cacheKey - key of the file in the cache, by default the expected hash, uriMatcher match or uri is used,
+ *  wifiOnly - download only over Wi-Fi (Android),
+ *  allowRoaming - false to not download while roaming, true by default (Android),
+ *  allowMetered - false to not download over metered networks, true by default (Android),
+ *  requiresCharging - download only while the device is charging (Android),
+ *  maxBytesPerSecond - rate limit of the download, 0 (default) if only the global limit applies ('segmented' engine),
+ *  bandwidthWeight - share of the global rate limit relative to the other downloads, 1 by default ('segmented' engine),
+ *  extract - 'zip' or 'tar.gz' to extract the archive into resultFile, which is a directory then; the archive itself
+ *      is not kept and the download cache is not used (Android),
+ *  retry - retry policy for transient failures (Android): maxAttempts (3), initialDelay (1000 ms), maxDelay
+ *      (60000 ms), multiplier (2) and retryOn, the DownloadManager error and HTTP status codes to retry on,
+ *      [1004, 1008, 500, 502, 503, 504] by default. Failed downloads are not retried without it.
  */
-var DownloadOperation = function (uri, resultFile, uriMatcher, notificationTitle) {
+var DownloadOperation = function (uri, resultFile, uriMatcher, notificationTitle, options) {
 
     if (uri == null || resultFile == null) {
         throw new Error("missing or invalid argument");
@@ -40,12 +60,21 @@ var DownloadOperation = function (uri, resultFile, uriMatcher, notificationTitle
     this.resultFile = resultFile;
     this.uriMatcher = uriMatcher;
     this.notificationTitle = notificationTitle;
+    this.options = options || {};
 };
 
 /**
  * Starts an asynchronous download operation.
+ *
+ * @param {Object} progressOptions Optional settings to reduce the number of progress notifications:
+ *  minBytesDelta - minimum number of bytes received since the last notification,
+ *  minPercentDelta - minimum change of the progress in percent since the last notification,
+ *  maxEmitRate - maximum number of notifications per second,
+ *  stateChangesOnly - notify only when the download state changes (for example running -> paused),
+ *  includeStats - add timings and throughput of the download as stats to progress notifications and the result.
+ *  Notifications are never sent if nothing has changed since the last one.
  */
-DownloadOperation.prototype.startAsync = function() {
+DownloadOperation.prototype.startAsync = function(progressOptions) {
 
     var deferral = new Promise.Deferral(),
         me = this,
@@ -64,7 +93,7 @@ DownloadOperation.prototype.startAsync = function() {
             deferral.reject(err);
         };
 
-    exec(successCallback, errorCallback, "BackgroundDownload", "startAsync", [this.uri, this.resultFile.toURL(), this.uriMatcher, this.notificationTitle]);
+    exec(successCallback, errorCallback, "BackgroundDownload", "startAsync", [this.uri, this.resultFile.toURL(), this.uriMatcher, this.notificationTitle, progressOptions || null, this.options]);
 
     // custom mechanism to trigger stop when user cancels pending operation
     deferral.promise.onCancelled = function () {
@@ -75,12 +104,88 @@ DownloadOperation.prototype.startAsync = function() {
 };
 
 /**
- * Stops a download operation.
+ * Stops a download operation. Other operations sharing its transfer keep downloading (Android).
  */
 DownloadOperation.prototype.stop = function() {
     // TODO return promise
-    exec(null, null, "BackgroundDownload", "stop", [this.uri]);
+    exec(null, null, "BackgroundDownload", "stop", [this.uri, this.resultFile.toURL()]);
+
+};
+
+/**
+ * Pauses the download keeping the data received so far (Android, 'segmented' engine only). The operation is notified
+ * with { paused: true, bytesReceived, totalBytesToReceive } progress once the transfer is stopped.
+ */
+DownloadOperation.prototype.pause = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "pause", [this.uri]);
+
+    return deferral.promise;
+};
+
+/**
+ * Resumes the paused download. The download continues from where it was paused unless the file has changed
+ * on the server; progress then reports resumedBytes taken from the partial file and refetchedBytes downloaded again.
+ */
+DownloadOperation.prototype.resume = function() {
+    var deferral = new Promise.Deferral();
+
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "resume", [this.uri]);
+
+    return deferral.promise;
+};
 
+/**
+ * Changes priority of the download. If the download is waiting in the queue, raising its priority lets it start
+ * before the downloads with lower priority.
+ *
+ * @param {number} priority The new priority.
+ */
+DownloadOperation.prototype.setPriority = function(priority) {
+    var deferral = new Promise.Deferral();
+
+    this.options.priority = priority;
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "setPriority", [this.uri, priority]);
+
+    return deferral.promise;
+};
+
+/**
+ * Changes the rate limit of the running download (Android, 'segmented' engine only).
+ *
+ * @param {Object} options maxBytesPerSecond - rate limit of the download, 0 for no limit of its own,
+ *  bandwidthWeight - share of the global rate limit relative to the other downloads.
+ */
+DownloadOperation.prototype.setBandwidth = function(options) {
+    var deferral = new Promise.Deferral();
+
+    options = options || {};
+    if (typeof options.maxBytesPerSecond != 'undefined') {
+        this.options.maxBytesPerSecond = options.maxBytesPerSecond;
+    }
+    if (typeof options.bandwidthWeight != 'undefined') {
+        this.options.bandwidthWeight = options.bandwidthWeight;
+    }
+    exec(function() {
+        deferral.resolve();
+    }, function(err) {
+        deferral.reject(err);
+    }, "BackgroundDownload", "setBandwidth", [this.uri, options]);
+
+    return deferral.promise;
 };
 
 module.exports = DownloadOperation;
\ No newline at end of file